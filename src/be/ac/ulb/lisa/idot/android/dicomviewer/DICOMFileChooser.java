@@ -35,6 +35,7 @@ package be.ac.ulb.lisa.idot.android.dicomviewer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -65,6 +66,8 @@ import be.ac.ulb.lisa.idot.android.dicomviewer.thread.DICOMImageCacher;
 import be.ac.ulb.lisa.idot.android.dicomviewer.thread.ThreadState;
 import be.ac.ulb.lisa.idot.dicom.data.DICOMMetaInformation;
 import be.ac.ulb.lisa.idot.dicom.file.DICOMReader;
+import be.ac.ulb.lisa.idot.image.file.LISASeriesPack;
+import be.ac.ulb.lisa.idot.image.file.LISASeriesPackJournal;
 
 /**
  * File chooser.
@@ -141,6 +144,12 @@ public class DICOMFileChooser extends ListActivity {
 	 */
 	private ProgressDialog cachingDialog;
 	
+	/**
+	 * The thread that caches the images. It is null
+	 * when no image is being cached.
+	 */
+	private DICOMImageCacher mDICOMImageCacher = null;
+	
 	
 	// ---------------------------------------------------------------
 	// # <override> FUNCTIONS
@@ -341,8 +350,6 @@ public class DICOMFileChooser extends ListActivity {
 	@Override
 	protected Dialog onCreateDialog(int id) {
 		
-		// TODO : cancelable dialog ?
-       
 		switch(id) {
 		
 		// Create image cache dialog
@@ -350,7 +357,27 @@ public class DICOMFileChooser extends ListActivity {
             cachingDialog = new ProgressDialog(this);
             cachingDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
             cachingDialog.setMessage("Caching image...");
-            cachingDialog.setCancelable(false);
+            
+            // Cancel the caching with the back key or the button,
+            // the cached images are kept
+            cachingDialog.setCancelable(true);
+            cachingDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            	
+				public void onCancel(DialogInterface dialog) {
+					
+					if (mDICOMImageCacher != null)
+						mDICOMImageCacher.cancel();
+					
+				}
+				
+			});
+            cachingDialog.setButton("Cancel", new DialogInterface.OnClickListener() {
+            	
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.cancel();
+				}
+				
+			});
             return cachingDialog;
         	
         default:
@@ -503,6 +530,26 @@ public class DICOMFileChooser extends ListActivity {
 			
 		}
 		
+		// Count the images of the series pack
+		try {
+			
+			LISASeriesPack seriesPack = new LISASeriesPack(mTopDirectory);
+			
+			try {
+				
+				seriesPack.refresh();
+				cachedImageCount += seriesPack.getImageCount();
+				
+			} finally {
+				
+				seriesPack.close();
+				
+			}
+			
+		} catch (IOException ex) {
+			// The series pack cannot be read
+		}
+		
 		// Sort both list
 		Collections.sort(directoryList,String.CASE_INSENSITIVE_ORDER);
 		Collections.sort(fileList,String.CASE_INSENSITIVE_ORDER);
@@ -579,6 +626,16 @@ public class DICOMFileChooser extends ListActivity {
 			
 		}
 		
+		// Delete the series pack and its journal
+		try {
+			
+			LISASeriesPack.delete(mTopDirectory);
+			LISASeriesPackJournal.delete(mTopDirectory);
+			
+		} catch (IOException ex) {
+			// Do nothing
+		}
+		
 		// Update the view
 		fill();
 		
@@ -608,6 +665,7 @@ public class DICOMFileChooser extends ListActivity {
 		            	break;
 		            	
 		            case ThreadState.FINISHED:
+		            	mDICOMImageCacher = null;
 		            	try {
 		            		
 		            		dismissDialog(PROGRESS_DIALOG_CACHE);
@@ -679,6 +737,7 @@ public class DICOMFileChooser extends ListActivity {
 			DICOMImageCacher dicomImageCacher =
 				new DICOMImageCacher(cacheHandler, mTopDirectory);
 			
+			mDICOMImageCacher = dicomImageCacher;
 			dicomImageCacher.start();
             
 			
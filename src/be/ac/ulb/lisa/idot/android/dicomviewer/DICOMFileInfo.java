@@ -5,8 +5,9 @@ import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.res.AssetManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -14,27 +15,30 @@ import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
-import be.ac.ulb.lisa.idot.android.dicomviewer.data.DCM4CheTagNameHack;
-import org.dcm4che2.data.*;
-import org.dcm4che2.io.DicomInputHandler;
-import org.dcm4che2.io.DicomInputStream;
-import org.dcm4che2.util.TagUtils;
+import be.ac.ulb.lisa.idot.android.dicomviewer.thread.ThreadState;
+import be.ac.ulb.lisa.idot.dicom.DICOMTag;
+import be.ac.ulb.lisa.idot.dicom.data.DICOMDataSet;
+import be.ac.ulb.lisa.idot.dicom.file.DICOMReader;
+import be.ac.ulb.lisa.idot.image.file.LISASeriesPack;
 
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 
-public class DICOMFileInfo extends ListActivity implements DicomInputHandler {
-    ArrayList<RowModel> info;
-    char[] cbuf = new char[64];
-    int maxValLen = 64;
+public class DICOMFileInfo extends ListActivity {
+    ArrayList<RowModel> info = new ArrayList<RowModel>();
+    DICOMMetaAdapter adapter;
+    DICOMInfoLoader loader;
     String currentFileName = null;
     private static final String FILE_NAME = "file_name";
+    // Number of rows sent at once by the loader
+    private static final int PAGE_SIZE = 64;
+    // Maximum length of a displayed value
+    private static final int MAX_VALUE_LENGTH = 64;
     private boolean from_viewer;
 
 
@@ -88,37 +92,14 @@ public class DICOMFileInfo extends ListActivity implements DicomInputHandler {
             // Load the file
         } else {
 
-            try {
-                currentFileName = fileName;
-                File file = new File(fileName);
-
-                DicomInputStream dis = new DicomInputStream(file);
-
-
-                BasicDicomObject bdo = new BasicDicomObject();
-                ElementDictionary dict = ElementDictionary.getDictionary();
-                AssetManager asm = getAssets();
+            currentFileName = fileName;
 
+            // The rows are listed while the loader reads them
+            adapter = new DICOMMetaAdapter();
+            setListAdapter(adapter);
 
-                info = new ArrayList<RowModel>();
-
-                dis.setHandler(this);
-                dis.readDicomObject(bdo, -1);
-
-                dis.close();
-
-                setListAdapter(new DICOMMetaAdapter());
-            } catch (Exception e){
-                new AlertDialog.Builder(this)
-                    .setTitle("Error")
-                    .setMessage("Unable to load metadata: " + e)
-                    .setNeutralButton("Return", new DialogInterface.OnClickListener(){
-                        @Override
-                        public void onClick(DialogInterface dialogInterface, int i) {
-                            finish();
-                        }
-                    });
-            }
+            loader = new DICOMInfoLoader(loadingHandler, new File(fileName));
+            loader.start();
 
         }
 
@@ -148,97 +129,48 @@ public class DICOMFileInfo extends ListActivity implements DicomInputHandler {
 
 
     @Override
-    public boolean readValue(DicomInputStream in) throws IOException {
-        switch (in.tag()){
-            case Tag.Item:
-                if (in.sq().vr() != VR.SQ && in.valueLength() != -1) {
-                    outFragment(in);
-                } else {
-                    outItem(in);
-                }
-                break;
-            case Tag.ItemDelimitationItem:
-            case Tag.SequenceDelimitationItem:
-                if (in.level() > 0)
-                    outItem(in);
-                break;
-            default:
-                outElement(in);
-        }
-
-        return true;
+    protected void onDestroy() {
+        super.onDestroy();
 
+        // Stop listing the rows of the file
+        if (loader != null)
+            loader.interrupt();
     }
 
-    private void outItem(DicomInputStream in) throws IOException{
-        in.readValue(in);
-    }
-
-    public void outFragment(DicomInputStream in) throws IOException{
-        in.readValue(in);
-        in.readValue(in);
-        DicomElement sq = in.sq();
-        byte[] data = sq.removeFragment(0);
-        boolean bigEndian = in.getTransferSyntax().bigEndian();
-        StringBuffer line = new StringBuffer();
-        sq.vr().promptValue(data, bigEndian, null, cbuf, maxValLen, line);
-        RowModel row = new RowModel(in.tag(),line.toString());
-        info.add(row);
+    private final Handler loadingHandler = new Handler() {
 
-    }
+        @SuppressWarnings("unchecked")
+        public void handleMessage(Message message) {
 
-    public void outElement(DicomInputStream in) throws IOException{
+            switch (message.what) {
 
-        if (hasItems(in)) {
-//            outLine(in);
-            readItems(in);
-        } else {
-            outValue(in);
-//            outLine(in);
-        }
-
-
-    }
+                case ThreadState.PROGRESSION_UPDATE:
+                    info.addAll((ArrayList<RowModel>) message.obj);
+                    adapter.notifyDataSetChanged();
+                    break;
 
-    private void outValue(DicomInputStream in) throws IOException {
-        int tag = in.tag();
-        VR vr = in.vr();
-        byte[] val = in.readBytes(in.valueLength());
-        DicomObject dcmobj = in.getDicomObject();
-        boolean bigEndian = in.getTransferSyntax().bigEndian();
-        StringBuffer line = new StringBuffer();
-        vr.promptValue(val, bigEndian, dcmobj.getSpecificCharacterSet(),
-                cbuf, maxValLen, line);
-        RowModel row = new RowModel(tag,line.toString());
-        info.add(row);
-
-        if (tag == Tag.SpecificCharacterSet
-                || tag == Tag.TransferSyntaxUID
-                || TagUtils.isPrivateCreatorDataElement(tag)) {
-            try {
-                dcmobj.putBytes(tag, vr, val, bigEndian);
-            } catch (UnsupportedOperationException e) {
+                case ThreadState.OUT_OF_MEMORY:
+                case ThreadState.UNCATCHABLE_ERROR_OCCURRED:
+                    if (isFinishing())
+                        break;
+
+                    new AlertDialog.Builder(DICOMFileInfo.this)
+                        .setTitle("Error")
+                        .setMessage("Unable to load metadata: " + message.obj)
+                        .setNeutralButton("Return", new DialogInterface.OnClickListener(){
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i) {
+                                finish();
+                            }
+                        })
+                        .show();
+                    break;
 
             }
-        }
-        if (tag == 0x00020000) {
-            in.setEndOfFileMetaInfoPosition(
-                    in.getStreamPosition() + vr.toInt(val, bigEndian));
-        }
-    }
-
-    private void readItems(DicomInputStream in) throws IOException {
-        in.readValue(in);
-        in.getDicomObject().remove(in.tag());
-    }
 
-    private boolean hasItems(DicomInputStream in) {
-        return in.valueLength() == -1 || in.vr() == VR.SQ;
-    }
+        }
 
-    private String outLine(DicomInputStream in) {
-        return in.getDicomObject().nameOf(in.tag());
-    }
+    };
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
@@ -249,14 +181,30 @@ public class DICOMFileInfo extends ListActivity implements DicomInputHandler {
     }
 
 
-    class RowModel {
+    static class RowModel {
         String description;
         String value;
         int tag;
 
-        public RowModel(int tag, String value){
-            this.tag = tag;
-            this.value = value;
+        public RowModel(DICOMDataSet dataSet, int index){
+            this.tag = dataSet.getTag(index);
+            this.value = dataSet.getValueString(index, MAX_VALUE_LENGTH);
+
+            // Nested elements are prefixed by one '>' per sequence
+            StringBuilder builder = new StringBuilder();
+            for (int depth = dataSet.getDepth(index); depth > 0; depth--)
+                builder.append('>');
+
+            DICOMTag dicomTag = dataSet.getDICOMTag(index);
+            String keyword = dicomTag.getKeyword();
+            if (keyword == null){
+                builder.append('(').append(dicomTag.getGroup()).append(',')
+                    .append(dicomTag.getElement()).append(')');
+            } else {
+                builder.append(keyword);
+            }
+
+            this.description = builder.toString();
         }
 
         public String toString() {
@@ -264,19 +212,6 @@ public class DICOMFileInfo extends ListActivity implements DicomInputHandler {
         }
 
         public String getDescription() {
-            description = Integer.toHexString(tag);
-
-            switch(tag){
-                case Tag.PatientAge:
-                    break;
-                default:
-                    description = DCM4CheTagNameHack.getTagName(tag);
-            }
-
-            if (description == null){
-                description = "N/A";
-            };
-
             return description;
         }
 
@@ -286,6 +221,88 @@ public class DICOMFileInfo extends ListActivity implements DicomInputHandler {
 
     }
 
+    /**
+     * Thread that lists the data elements of a DICOM file. The
+     * element index stored in the series pack is used if it is
+     * up to date, else the file is walked without reading the
+     * values. The rows are then formatted and sent by pages of
+     * PAGE_SIZE rows, such that the first rows are shown before
+     * the end of a large header.
+     */
+    static final class DICOMInfoLoader extends Thread {
+        private final Handler handler;
+        private final File file;
+
+        public DICOMInfoLoader(Handler handler, File file){
+            this.handler = handler;
+            this.file = file;
+        }
+
+        public void run() {
+            DICOMReader reader = null;
+
+            try {
+                reader = new DICOMReader(file, true);
+                DICOMDataSet dataSet = reader.parseDataSet(readIndex());
+
+                ArrayList<RowModel> page = new ArrayList<RowModel>(PAGE_SIZE);
+
+                for (int i = 0; i < dataSet.size(); i++) {
+                    if (isInterrupted())
+                        return;
+
+                    page.add(new RowModel(dataSet, i));
+
+                    if (page.size() == PAGE_SIZE || i == dataSet.size() - 1) {
+                        Message message = handler.obtainMessage();
+                        message.what = ThreadState.PROGRESSION_UPDATE;
+                        message.obj = page;
+                        handler.sendMessage(message);
+
+                        page = new ArrayList<RowModel>(PAGE_SIZE);
+                    }
+                }
+
+            } catch (OutOfMemoryError e) {
+                Message message = handler.obtainMessage();
+                message.what = ThreadState.OUT_OF_MEMORY;
+                message.obj = e.getMessage();
+                handler.sendMessage(message);
+            } catch (Exception e) {
+                Message message = handler.obtainMessage();
+                message.what = ThreadState.UNCATCHABLE_ERROR_OCCURRED;
+                message.obj = e;
+                handler.sendMessage(message);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // The rows are already read
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The element index of the file stored in the
+         * series pack of its directory, or null.
+         */
+        private ByteBuffer readIndex() {
+            try {
+                LISASeriesPack seriesPack = new LISASeriesPack(file.getParentFile());
+                try {
+                    seriesPack.refresh();
+                    return seriesPack.readMetadata(file);
+                } finally {
+                    seriesPack.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
     class DICOMMetaAdapter extends ArrayAdapter<RowModel> {
         DICOMMetaAdapter() {
             super(DICOMFileInfo.this,android.R.layout.simple_list_item_1, info);
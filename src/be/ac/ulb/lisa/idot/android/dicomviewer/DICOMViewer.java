@@ -35,9 +35,12 @@ package be.ac.ulb.lisa.idot.android.dicomviewer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -64,16 +67,17 @@ import be.ac.ulb.lisa.idot.android.dicomviewer.data.DICOMViewerData;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.CLUTMode;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.ScaleMode;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.ToolMode;
+import be.ac.ulb.lisa.idot.android.dicomviewer.render.Palette;
 import be.ac.ulb.lisa.idot.android.dicomviewer.thread.DICOMImageCacher;
+import be.ac.ulb.lisa.idot.android.dicomviewer.thread.DICOMSliceLoader;
 import be.ac.ulb.lisa.idot.android.dicomviewer.thread.ThreadState;
 import be.ac.ulb.lisa.idot.android.dicomviewer.view.DICOMImageView;
 import be.ac.ulb.lisa.idot.android.dicomviewer.view.GrayscaleWindowView;
-import be.ac.ulb.lisa.idot.dicom.data.DICOMImage;
 import be.ac.ulb.lisa.idot.dicom.file.DICOMFileFilter;
-import be.ac.ulb.lisa.idot.dicom.file.DICOMImageReader;
 import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
-import be.ac.ulb.lisa.idot.image.file.LISAImageGray16BitReader;
-import be.ac.ulb.lisa.idot.image.file.LISAImageGray16BitWriter;
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16BitCache;
+import be.ac.ulb.lisa.idot.image.data.LISAPixelArena;
+import be.ac.ulb.lisa.idot.image.file.LISASeriesPack;
 
 /**
  * DicomViewer activity that shows an image.
@@ -106,6 +110,38 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	 */
 	private static final String FILE_NAME = "file_name";
 	
+	// PIXEL ARENA
+	/**
+	 * Maximum size in bytes of the released pixel buffers
+	 * kept for the next images.
+	 */
+	private static final long PIXEL_ARENA_POOLED_SIZE = 4 * 1024 * 1024;
+	
+	// SLICE CACHE
+	/**
+	 * Maximum size in bytes of the pixel data of the decoded
+	 * slices kept in memory.
+	 */
+	private static final long SLICE_CACHE_SIZE = 32 * 1024 * 1024;
+	
+	/**
+	 * Number of slices prefetched in the scroll direction.
+	 */
+	private static final int PREFETCH_SLICE_COUNT = 4;
+	
+	/**
+	 * Maximum size in bytes of the pixel data of the
+	 * thumbnails that are shown while the user scrubs.
+	 */
+	private static final long THUMBNAIL_CACHE_SIZE = 4 * 1024 * 1024;
+	
+	// SCRUBBING
+	/**
+	 * Time in milliseconds during which the thumb of the seek
+	 * bar must rest before the slice is loaded.
+	 */
+	private static final long SCRUB_REST_DELAY = 200;
+	
 	// ---------------------------------------------------------------
 	// - VARIABLES
 	// ---------------------------------------------------------------
@@ -218,11 +254,11 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	 */
 	private boolean mSingle_image_view = false;
 	
-	// DICOM FILE LOADER THREAD
+	// DICOM SLICE LOADER
 	/**
-	 * File loader thread.
+	 * Loader of the requested and prefetched slices.
 	 */
-	private DICOMFileLoader mDICOMFileLoader = null;
+	private DICOMSliceLoader mSliceLoader = null;
 	
 	// WAIT VARIABLE
 	/**
@@ -236,14 +272,10 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	private ProgressDialog cachingDialog;
 	
 	/**
-	 * Set if the activity is busy (true) or not (false).
-	 * When a DICOM image is parsed or a LISA 16-Bit grayscale
-	 * image is loaded, the activity is in waiting mode
-	 * => busy = true.
+	 * The thread that caches the images. It is null
+	 * when no image is being cached.
 	 */
-	private boolean mBusy = false;
-	// TODO needed ? or wait for the end of the loading thread
-	// is enough ?
+	private DICOMImageCacher mDICOMImageCacher = null;
 	
 	// FILE VARIABLE
 	/**
@@ -257,11 +289,76 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	 */
 	private LISAImageGray16Bit mImage = null;
 	
+	/**
+	 * The arena from which the pixel data of the images
+	 * are allocated outside of the Java heap.
+	 */
+	private final LISAPixelArena mPixelArena =
+		new LISAPixelArena(PIXEL_ARENA_POOLED_SIZE);
+	
+	/**
+	 * The series pack that caches the images of
+	 * the directory.
+	 */
+	private LISASeriesPack mSeriesPack = null;
+	
+	/**
+	 * The decoded slices of the series.
+	 */
+	private final LISAImageGray16BitCache<String> mSliceCache =
+		new LISAImageGray16BitCache<String>(SLICE_CACHE_SIZE);
+	
+	/**
+	 * The thumbnails of the decoded slices.
+	 */
+	private final LISAImageGray16BitCache<String> mThumbnailCache =
+		new LISAImageGray16BitCache<String>(THUMBNAIL_CACHE_SIZE);
+	
+	/**
+	 * The image that is displayed while it is decoded or
+	 * null. It is owned by the slice loader until it is
+	 * finished.
+	 */
+	private LISAImageGray16Bit mProgressiveImage = null;
+	
+	/**
+	 * The scroll direction through the series: 1 to the
+	 * next slices, -1 to the previous slices.
+	 */
+	private int mScrollDirection = 1;
+	
 	/**
 	 * The index of the current file.
 	 */
 	private int mCurrentFileIndex;
 	
+	/**
+	 * The index of the last file asked to the slice loader.
+	 */
+	private int mRequestedFileIndex = -1;
+	
+	/**
+	 * Set if the user drags the thumb of the seek bar. The
+	 * slices are then previewed and the slice is loaded
+	 * when the thumb rests.
+	 */
+	private boolean mIsScrubbing = false;
+	
+	/**
+	 * Load the current slice once the thumb of the seek bar
+	 * rests.
+	 */
+	private final Runnable mScrubRestRunnable = new Runnable() {
+		
+		public void run() {
+			
+			if (mImage != null && mRequestedFileIndex != mCurrentFileIndex)
+				loadImage(mScrollDirection);
+			
+		}
+		
+	};
+	
 	// INITIALIZATION VARIABLE
 	/**
 	 * Set if the DICOM Viewer is initialized or not.
@@ -351,10 +448,13 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 			// Get the File object for the current file
 			File currentFile = new File(fileName);
 			
-			// Start the loading thread to load the DICOM image
-			mDICOMFileLoader = new DICOMFileLoader(loadingHandler, currentFile);
-			mDICOMFileLoader.start();
-			mBusy = true;
+			// Get the series pack of the directory
+			mSeriesPack = new LISASeriesPack(currentFile.getParentFile());
+			
+			// Start to load the DICOM image
+			mSliceLoader = new DICOMSliceLoader(loadingHandler,
+					mPixelArena, mSeriesPack, mSliceCache, mThumbnailCache);
+			mSliceLoader.load(currentFile);
 			
 			// Get the files array = get the files contained
 			// in the parent of the current file
@@ -499,22 +599,10 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	@Override
 	protected void onPause() {
 		
-		// We wait until the end of the loading thread
-		// before putting the activity in pause mode
-		if (mDICOMFileLoader != null) {
-			
-			// Wait until the loading thread die
-			while (mDICOMFileLoader.isAlive()) {
-				try {
-					synchronized(this) {
-						wait(10);
-					}
-				} catch (InterruptedException e) {
-					// Do nothing
-				}
-			}
-			
-		}
+		// Stop prefetching the slices. The requested slice
+		// is still loaded and shown when the activity resumes.
+		if (mSliceLoader != null)
+			mSliceLoader.cancelPrefetch();
 		
 		super.onPause();
 		
@@ -523,10 +611,33 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		
+		// Drop the requests. The slices that are being loaded
+		// are released when they are received.
+		if (mSliceLoader != null)
+			mSliceLoader.shutdown();
+		
+		// The images read from the pack stay valid
+		if (mSeriesPack != null)
+			mSeriesPack.close();
+		
+		loadingHandler.removeCallbacks(mScrubRestRunnable);
+		
+		// Give back the pixel data of the cached slices
+		// and of the current image
+		mSliceCache.clear();
+		mThumbnailCache.clear();
+		
+		if (mImage != null)
+			mImage.release();
+		
+		mPixelArena.clear();
+		
 		mImage = null;
 		mDICOMViewerData = null;
 		mFileArray = null;
-		mDICOMFileLoader = null;
+		mSliceLoader = null;
+		mProgressiveImage = null;
 		
 		// Free the drawable callback
 		if (mImageView != null) {
@@ -552,8 +663,6 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	@Override
 	protected Dialog onCreateDialog(int id) {
 		
-		// TODO : cancelable dialog ?
-       
 		switch(id) {
 		
 		// Create image cache dialog
@@ -561,7 +670,27 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
             cachingDialog = new ProgressDialog(this);
             cachingDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
             cachingDialog.setMessage("Caching image...");
-            cachingDialog.setCancelable(false);
+            
+            // Cancel the caching with the back key or the button,
+            // the cached images are kept
+            cachingDialog.setCancelable(true);
+            cachingDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            	
+				public void onCancel(DialogInterface dialog) {
+					
+					if (mDICOMImageCacher != null)
+						mDICOMImageCacher.cancel();
+					
+				}
+				
+			});
+            cachingDialog.setButton("Cancel", new DialogInterface.OnClickListener() {
+            	
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.cancel();
+				}
+				
+			});
             return cachingDialog;
             
         // Create image load dialog
@@ -588,6 +717,14 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	@Override
 	public void onLowMemory() {
 		
+		// Drop the cached slices and the released pixel buffers
+		if (mSliceLoader != null)
+			mSliceLoader.cancelPrefetch();
+		
+		mSliceCache.clear();
+		mThumbnailCache.clear();
+		mPixelArena.clear();
+		
 		// Hint the garbage collector
 		System.gc();
 		
@@ -656,6 +793,11 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
         	clutMode = menu.findItem(R.id.show_rainbowCLUT);
         	clutMode.setChecked(true);
         	break;
+        	
+        case CLUTMode.CUSTOM:
+        	clutMode = menu.findItem(R.id.show_customCLUT);
+        	clutMode.setChecked(true);
+        	break;
         
         }
         
@@ -758,6 +900,8 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
     			mCLUTRainbowButton.setBackgroundResource(
     					R.drawable.clut_rainbow);
     			
+            	mDICOMViewerData.setCLUTMode(CLUTMode.INVERSE);
+            	
             	mGrayscaleWindow.updateCLUTMode();
             	
             	mImageView.draw();
@@ -782,6 +926,10 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
             	
             	return true;
             	
+            case R.id.show_customCLUT:
+            	showCustomCLUTDialog();
+            	return true;
+            	
             // GRAYSCALE WINDOW
             case R.id.grayscaleWindow_CTBone:
             	mDICOMViewerData.setWindowWidth(1500);
@@ -859,37 +1007,38 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	/* (non-Javadoc)
 	 * @see android.widget.SeekBar.OnSeekBarChangeListener#onProgressChanged(android.widget.SeekBar, int, boolean)
 	 */
-	public synchronized void onProgressChanged(SeekBar seekBar, int progress,
+	public void onProgressChanged(SeekBar seekBar, int progress,
 			boolean fromUser) {
 		
 		try {
 			
-			// If it is busy, do nothing
-			if (mBusy)
+			// If the first slice is not shown yet or if the slice
+			// is already shown (the buttons update the seek bar),
+			// do nothing
+			if (mImage == null || progress == mCurrentFileIndex)
 				return;
 			
-			// It is busy now
-			mBusy = true;
-			
-			// Wait until the loading thread die
-			while (mDICOMFileLoader.isAlive()) {
-				try {
-					synchronized(this) {
-						wait(10);
-					}
-				} catch (InterruptedException e) {
-					// Do nothing
-				}
-			}
-			
 			// Set the current file index
+			int scrollDirection = (progress < mCurrentFileIndex) ? -1 : 1;
 			mCurrentFileIndex = progress;
 			
-			// Start the loading thread to load the DICOM image
-			mDICOMFileLoader = new DICOMFileLoader(loadingHandler, 
-					mFileArray[mCurrentFileIndex]);
-			
-			mDICOMFileLoader.start();
+			if (fromUser && mIsScrubbing
+					&& mRequestedFileIndex != mCurrentFileIndex) {
+				
+				// Show the preview of the slice and load the
+				// slice once the thumb rests
+				mScrollDirection = scrollDirection;
+				showPreview();
+				
+				loadingHandler.removeCallbacks(mScrubRestRunnable);
+				loadingHandler.postDelayed(mScrubRestRunnable, SCRUB_REST_DELAY);
+				
+			} else {
+				
+				// Show the cached slice or load the DICOM image
+				loadImage(scrollDirection);
+				
+			}
 			
 			// Update the UI
 			mIndexTextView.setText(String.valueOf(mCurrentFileIndex + 1));
@@ -929,14 +1078,20 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 
 	// Needed to implement the SeekBar.OnSeekBarChangeListener
 	public void onStartTrackingTouch(SeekBar seekBar) {
-		// Do nothing.
+		mIsScrubbing = true;
 	}
 
 	// Needed to implement the SeekBar.OnSeekBarChangeListener
 	public void onStopTrackingTouch(SeekBar seekBar) {
 		
-		System.gc(); // TODO needed ?
-		// Do nothing.		
+		mIsScrubbing = false;
+		
+		// Load the slice on which the thumb is released
+		loadingHandler.removeCallbacks(mScrubRestRunnable);
+		
+		if (mImage != null && mRequestedFileIndex != mCurrentFileIndex)
+			loadImage(mScrollDirection);
+		
 	}
 	
 	
@@ -1008,24 +1163,10 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	 */
 	public synchronized void previousImage(View view) {
 		
-		// If it is busy, do nothing
-		if (mBusy)
+		// If the first slice is not shown yet, do nothing
+		if (mImage == null)
 			return;
 		
-		// It is busy now
-		mBusy = true;
-		
-		// Wait until the loading thread die
-		while (mDICOMFileLoader.isAlive()) {
-			try {
-				synchronized(this) {
-					wait(10);
-				}
-			} catch (InterruptedException e) {
-				// Do nothing
-			}
-		}
-		
 		// If the current file index is 0, there is
 		// no previous file in the files array
 		// We add the less or equal to zero because it is
@@ -1041,7 +1182,6 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 			if (mPreviousButton.getVisibility() == View.VISIBLE)
 				mPreviousButton.setVisibility(View.INVISIBLE);
 			
-			mBusy = false;
 			return;
 			
 		}
@@ -1049,11 +1189,8 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 		//  Decrease the file index
 		mCurrentFileIndex--;
 		
-		// Start the loading thread to load the DICOM image
-		mDICOMFileLoader = new DICOMFileLoader(loadingHandler, 
-				mFileArray[mCurrentFileIndex]);
-		
-		mDICOMFileLoader.start();
+		// Show the cached slice or load the DICOM image
+		loadImage(-1);
 		
 		// Update the UI
 		mIndexTextView.setText(String.valueOf(mCurrentFileIndex + 1));
@@ -1075,24 +1212,10 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 	 */
 	public synchronized void nextImage(View view) {
 		
-		// If it is busy, do nothing
-		if (mBusy)
+		// If the first slice is not shown yet, do nothing
+		if (mImage == null)
 			return;
 		
-		// It is busy now
-		mBusy = true;
-		
-		// Wait until the loading thread die
-		while (mDICOMFileLoader.isAlive()) {
-			try {
-				synchronized(this) {
-					wait(10);
-				}
-			} catch (InterruptedException e) {
-				// Do nothing
-			}
-		}
-		
 		// If the current file index is the last file index,
 		// there is no next file in the files array
 		// We add the greater or equal to (mFileArray.length - 1)
@@ -1108,7 +1231,6 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 			if (mNextButton.getVisibility() == View.VISIBLE)
 				mNextButton.setVisibility(View.INVISIBLE);
 			
-			mBusy = false;
 			return;
 			
 		}
@@ -1116,11 +1238,8 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 		//  Increase the file index
 		mCurrentFileIndex++;
 		
-		// Start the loading thread to load the DICOM image
-		mDICOMFileLoader = new DICOMFileLoader(loadingHandler, 
-				mFileArray[mCurrentFileIndex]);
-		
-		mDICOMFileLoader.start();
+		// Show the cached slice or load the DICOM image
+		loadImage(1);
 		
 		// Update the UI
 		mIndexTextView.setText(String.valueOf(mCurrentFileIndex + 1));
@@ -1410,6 +1529,102 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 		
 	}
 	
+	/**
+	 * Show the image of the current file. If the slice is
+	 * cached, it is shown at once, else it is requested from
+	 * the slice loader, which makes the previous request stale.
+	 * 
+	 * @param scrollDirection 1 if the user scrolls to the
+	 * next slices, -1 to the previous slices.
+	 */
+	private void loadImage(int scrollDirection) {
+		
+		mScrollDirection = scrollDirection;
+		mRequestedFileIndex = mCurrentFileIndex;
+		
+		stopProgressiveDraw();
+		
+		LISAImageGray16Bit image =
+			mSliceLoader.load(mFileArray[mCurrentFileIndex]);
+		
+		if (image != null)
+			setImage(image);
+		
+	}
+	
+	/**
+	 * Show the thumbnail of the current file in place of the
+	 * image if it is cached, else ask the slice loader for it.
+	 * It is then shown when the PREVIEW_UPDATE message is
+	 * received.
+	 */
+	private void showPreview() {
+		
+		stopProgressiveDraw();
+		
+		LISAImageGray16Bit thumbnail =
+			mSliceLoader.loadPreview(mFileArray[mCurrentFileIndex]);
+		
+		if (thumbnail != null)
+			mImageView.drawPreview(thumbnail);
+		
+	}
+	
+	/**
+	 * Show the last loaded slice instead of the slice that
+	 * is being decoded.
+	 */
+	private void stopProgressiveDraw() {
+		
+		if (mProgressiveImage == null)
+			return;
+		
+		mProgressiveImage = null;
+		
+		mImageView.setImage(mImage);
+		mImageView.draw();
+		
+	}
+	
+	/**
+	 * Prefetch the slices that follow the current slice in
+	 * the scroll direction, and the slice that precedes it.
+	 */
+	private void startPrefetch() {
+		
+		if (mFileArray == null || mSliceLoader == null)
+			return;
+		
+		List<File> files = new ArrayList<File>(PREFETCH_SLICE_COUNT + 1);
+		
+		for (int i = 1; i <= PREFETCH_SLICE_COUNT + 1; i++) {
+			
+			// The last prefetched slice is behind the current slice
+			int index = (i <= PREFETCH_SLICE_COUNT)
+				? mCurrentFileIndex + i * mScrollDirection
+				: mCurrentFileIndex - mScrollDirection;
+			
+			if (index >= 0 && index < mFileArray.length)
+				files.add(mFileArray[index]);
+			
+		}
+		
+		mSliceLoader.prefetch(files);
+		
+	}
+	
+	/**
+	 * @param file
+	 * @return True if the file is the current file.
+	 */
+	private boolean isCurrentFile(File file) {
+		
+		return mFileArray != null
+			&& mCurrentFileIndex >= 0 && mCurrentFileIndex < mFileArray.length
+			&& mFileArray[mCurrentFileIndex].getName().equals(file.getName());
+		
+	}
+	
 	/**
 	 * Set the currentImage
 	 * 
@@ -1423,12 +1638,27 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 		
 		try {
 		
+			// Keep the image in the slice cache. If the slice
+			// was prefetched meanwhile, the cached image is used.
+			if (mFileArray != null)
+				image = mSliceCache.putPinned(
+						mFileArray[mCurrentFileIndex].getName(), image);
+			
+			mProgressiveImage = null;
+			
 			// Set the image
-			mImage = null;
+			LISAImageGray16Bit previousImage = mImage;
+			
 			mImage = image;
 			mImageView.setImage(mImage);
 			mGrayscaleWindow.setImage(mImage);
 			
+			// Give back the pixel data of the previous image
+			// to the arena if the slice cache does not own it
+			if (previousImage != null && previousImage != image
+					&& !mSliceCache.containsImage(previousImage))
+				previousImage.release();
+			
 			setImageOrientation();
 			
 			// If it is not initialized, set the window width and center
@@ -1448,7 +1678,8 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 				mImageView.draw();
 			}
 			
-			mBusy = false;
+			// Decode the next slices in the background
+			startPrefetch();
 			
 		} catch (OutOfMemoryError ex) {
 			
@@ -1471,6 +1702,40 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 		
 	}
 	
+	/**
+	 * Start to display an image whose rows are being decoded.
+	 * 
+	 * @param image
+	 */
+	private void startProgressiveDraw(LISAImageGray16Bit image) {
+		
+		// The window of the first image is computed with its
+		// statistics once it is decoded. Use the window of the
+		// header or the whole gray level range until then.
+		if (!mIsInitialized) {
+			
+			if (image.getWindowWidth() > 0) {
+				
+				mDICOMViewerData.setWindowWidth(image.getWindowWidth());
+				mDICOMViewerData.setWindowCenter(image.getWindowCenter());
+				
+			} else {
+				
+				mDICOMViewerData.setWindowWidth(image.getGrayLevel());
+				mDICOMViewerData.setWindowCenter(image.getGrayLevel() / 2);
+				
+			}
+			
+		}
+		
+		mProgressiveImage = image;
+		mImageView.startProgressiveDraw(image);
+		
+		if (!mIsInitialized)
+			mImageView.fitIn();
+		
+	}
+	
 	/**
 	 * Set the image orientation TextViews.
 	 */
@@ -1575,6 +1840,7 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 		            	break;
 		            	
 		            case ThreadState.FINISHED:
+		            	mDICOMImageCacher = null;
 		            	try {
 		            		
 		            		dismissDialog(PROGRESS_DIALOG_CACHE);
@@ -1646,6 +1912,7 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 				new DICOMImageCacher(cacheHandler,
 						mFileArray[mCurrentFileIndex].getParent());
 			
+			mDICOMImageCacher = dicomImageCacher;
 			dicomImageCacher.start();
             
 			
@@ -1657,6 +1924,90 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 		
 	}
 	
+	/**
+	 * Show the list of the palette files of the series
+	 * directory. The chosen palette is loaded and set as
+	 * the custom CLUT.
+	 */
+	private void showCustomCLUTDialog() {
+		
+		final File[] paletteFiles =
+			Palette.listFiles(mFileArray[mCurrentFileIndex].getParentFile());
+		
+		if (paletteFiles.length == 0) {
+			
+			Toast.makeText(this, "No palette file (*" + Palette.FILE_EXTENSION
+					+ ") in the series directory.", Toast.LENGTH_SHORT).show();
+			
+			return;
+			
+		}
+		
+		String[] paletteNames = new String[paletteFiles.length];
+		
+		for (int i = 0; i < paletteFiles.length; i++)
+			paletteNames[i] = paletteFiles[i].getName();
+		
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Custom CLUT")
+		       .setItems(paletteNames, new DialogInterface.OnClickListener() {
+		           public void onClick(DialogInterface dialog, int which) {
+		        	   setCustomCLUT(paletteFiles[which]);
+		           }
+		       });
+		
+		AlertDialog alertDialog = builder.create();
+		alertDialog.show();
+		
+	}
+	
+	/**
+	 * Load a palette file and set it as the custom CLUT.
+	 * 
+	 * @param paletteFile
+	 */
+	private void setCustomCLUT(File paletteFile) {
+		
+		Palette palette;
+		
+		try {
+			
+			palette = Palette.load(paletteFile);
+			
+		} catch (IOException ex) {
+			
+			Toast.makeText(this, "[Error]: " + ex.getMessage(),
+					Toast.LENGTH_LONG).show();
+			
+			return;
+			
+		}
+		
+		mCLUTNormalButton.setBackgroundResource(
+				R.drawable.clut_normal);
+		mCLUTInverseButton.setBackgroundResource(
+				R.drawable.clut_inverse);
+		mCLUTRainbowButton.setBackgroundResource(
+				R.drawable.clut_rainbow);
+		
+		mDICOMViewerData.setCustomPalette(palette);
+		mDICOMViewerData.setCLUTMode(CLUTMode.CUSTOM);
+		
+		if (mMenu != null) {
+			
+			MenuItem clutMode = mMenu.findItem(R.id.show_customCLUT);
+			
+			if (clutMode != null)
+				clutMode.setChecked(true);
+			
+		}
+		
+		mGrayscaleWindow.updateCLUTMode();
+		
+		mImageView.draw();
+		
+	}
+	
 	/**
 	 * Show an alert dialog (AlertDialog) to inform
 	 * the user that the activity must finish.
@@ -1728,25 +2079,94 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
             switch (message.what) {
             
             case ThreadState.STARTED:
-            	showDialog(PROGRESS_DIALOG_LOAD);
+            	if (message.obj instanceof File
+            			&& isCurrentFile((File) message.obj))
+            		showDialog(PROGRESS_DIALOG_LOAD);
             	break;
             	
-            case ThreadState.FINISHED:
-            	try {
+            case ThreadState.PROGRESSION_UPDATE:
+            	if (!(message.obj instanceof DICOMSliceLoader.Slice))
+            		break;
+            	
+            	DICOMSliceLoader.Slice slice = (DICOMSliceLoader.Slice) message.obj;
+            	
+            	// The user went to another slice meanwhile
+            	if (!isCurrentFile(slice.getFile()))
+            		break;
+            	
+            	// The data of the image are allocated
+            	if (message.arg2 == 0) {
             		
-            		dismissDialog(PROGRESS_DIALOG_LOAD);
+            		try {
+            			
+            			dismissDialog(PROGRESS_DIALOG_LOAD);
+            			
+            		} catch (IllegalArgumentException ex) {	
+            			// Do nothing		
+            		}
+            		
+            		startProgressiveDraw(slice.getImage());
+            		
+            	// Rows of the image are decoded
+            	} else {
+            		
+            		mImageView.drawDecodedRows(slice.getImage(),
+            				message.arg1, message.arg2);
             		
-            	} catch (IllegalArgumentException ex) {	
-            		// Do nothing		
             	}
             	
+            	break;
+            	
+            case ThreadState.FINISHED:
+            	if (!(message.obj instanceof DICOMSliceLoader.Slice))
+            		break;
+            	
+            	slice = (DICOMSliceLoader.Slice) message.obj;
+            	
+            	// The activity is destroyed
+            	if (mFileArray == null) {
+            		
+            		slice.getImage().release();
+            		
             	// Set the loaded image
-            	if (message.obj instanceof LISAImageGray16Bit) {
-            		setImage((LISAImageGray16Bit) message.obj);
+            	} else if (isCurrentFile(slice.getFile())) {
+            		
+            		try {
+            			
+            			dismissDialog(PROGRESS_DIALOG_LOAD);
+            			
+            		} catch (IllegalArgumentException ex) {	
+            			// Do nothing		
+            		}
+            		
+            		setImage(slice.getImage());
+            		
+            	// The user went to another slice meanwhile, keep
+            	// the image for when the user comes back
+            	} else {
+            		
+            		mSliceCache.put(slice.getFile().getName(), slice.getImage());
+            		
             	}
             	
             	break;
             	
+            case ThreadState.PREVIEW_UPDATE:
+            	// Show the thumbnail if the user still scrubs
+            	// on the slice
+            	if (!mIsScrubbing || !(message.obj instanceof File)
+            			|| !isCurrentFile((File) message.obj)
+            			|| mRequestedFileIndex == mCurrentFileIndex)
+            		break;
+            	
+            	LISAImageGray16Bit thumbnail =
+            		mThumbnailCache.pin(((File) message.obj).getName());
+            	
+            	if (thumbnail != null)
+            		mImageView.drawPreview(thumbnail);
+            	
+            	break;
+            	
             case ThreadState.UNCATCHABLE_ERROR_OCCURRED:
             	try {
             		
@@ -1800,127 +2220,4 @@ public class DICOMViewer extends Activity implements SeekBar.OnSeekBarChangeList
 		
 	};
 	
-	
-	// ---------------------------------------------------------------
-	// - <static> CLASS
-	// ---------------------------------------------------------------
-	
-	private static final class DICOMFileLoader extends Thread {
-		
-		// The handler to send message to the parent thread
-		private final Handler mHandler;
-		
-		// The file to load
-		private final File mFile;
-		
-		public DICOMFileLoader(Handler handler, File file) {
-			
-			if (handler == null)
-				throw new NullPointerException("The handler is null while" +
-						" calling the loading thread.");
-			
-			mHandler = handler;
-			
-			if (file == null)
-				throw new NullPointerException("The file is null while" +
-						" calling the loading thread.");
-			
-			mFile = file;
-			
-			
-		}
-		
-		public void run() {
-			
-			// If the image data is null, do nothing.
-			if (!mFile.exists()) {
-				
-				Message message = mHandler.obtainMessage();
-				message.what = ThreadState.UNCATCHABLE_ERROR_OCCURRED;
-				message.obj = "The file doesn't exist.";
-				mHandler.sendMessage(message);
-				
-				return;
-			}
-			
-			// If image exists show image
-			try {
-				
-				LISAImageGray16BitReader reader =
-					new LISAImageGray16BitReader(mFile + ".lisa");
-				
-				LISAImageGray16Bit image = reader.parseImage();
-				reader.close();
-				
-				// Send the LISA 16-Bit grayscale image
-				Message message = mHandler.obtainMessage();
-				message.what = ThreadState.FINISHED;
-				message.obj = image;
-				mHandler.sendMessage(message);
-				
-				return;
-				
-			} catch (Exception ex) {
-				// Do nothing and create a LISA image
-			}
-			
-			// Create a LISA image and ask to show the
-			// progress dialog in spinner mode
-			mHandler.sendEmptyMessage(ThreadState.STARTED);
-			
-			try {
-				
-				DICOMImageReader dicomFileReader = new DICOMImageReader(mFile);
-				
-				DICOMImage dicomImage = dicomFileReader.parse();
-				dicomFileReader.close();
-				
-				// If the image is uncompressed, show it and cached it.
-				if (dicomImage.isUncompressed()) {
-					
-					LISAImageGray16BitWriter out =
-						new LISAImageGray16BitWriter(mFile + ".lisa");
-					
-					out.write(dicomImage.getImage());
-					out.flush();
-					out.close();
-					
-					Message message = mHandler.obtainMessage();
-					message.what = ThreadState.FINISHED;
-					message.obj = dicomImage.getImage();
-					mHandler.sendMessage(message);
-					
-					// Hint the garbage collector
-					System.gc();
-					
-				} else {
-					
-					Message message = mHandler.obtainMessage();
-					message.what = ThreadState.UNCATCHABLE_ERROR_OCCURRED;
-					message.obj = "The file is compressed. Compressed format are not"
-						+ " supported yet.";
-					mHandler.sendMessage(message);
-					
-				}
-				
-			} catch (OutOfMemoryError ex) {
-				
-				Message message = mHandler.obtainMessage();
-				message.what = ThreadState.OUT_OF_MEMORY;
-				message.obj = ex.getMessage();
-				mHandler.sendMessage(message);
-				
-			} catch (Exception ex) {
-				
-				Message message = mHandler.obtainMessage();
-				message.what = ThreadState.UNCATCHABLE_ERROR_OCCURRED;
-				message.obj = ex.getMessage();
-				mHandler.sendMessage(message);
-				
-			}
-			
-		}
-		
-	}
-	
 }
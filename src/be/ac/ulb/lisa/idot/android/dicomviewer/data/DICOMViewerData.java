@@ -36,6 +36,7 @@ package be.ac.ulb.lisa.idot.android.dicomviewer.data;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.CLUTMode;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.ScaleMode;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.ToolMode;
+import be.ac.ulb.lisa.idot.android.dicomviewer.render.Palette;
 
 /**
  * Class containing the data specific
@@ -61,6 +62,11 @@ public class DICOMViewerData {
 	 */
 	private short mCLUTMode = CLUTMode.NORMAL;
 	
+	/**
+	 * Palette of the custom CLUT.
+	 */
+	private Palette mCustomPalette = null;
+	
 	/**
 	 * The scale mode: fit in or real size.
 	 */
@@ -90,6 +96,29 @@ public class DICOMViewerData {
 		return mCLUTMode;
 	}
 
+	/**
+	 * @return the mCustomPalette
+	 */
+	public Palette getCustomPalette() {
+		return mCustomPalette;
+	}
+	
+	/**
+	 * Get the palette of the CLUT mode. If the CLUT mode is
+	 * custom and no custom palette is set, the palette of
+	 * the normal LUT is returned.
+	 * 
+	 * @return The palette of the CLUT mode.
+	 */
+	public Palette getPalette() {
+		
+		if (mCLUTMode == CLUTMode.CUSTOM && mCustomPalette != null)
+			return mCustomPalette;
+		
+		return Palette.getPalette(mCLUTMode);
+		
+	}
+
 	/**
 	 * @return the mScaleMode
 	 */
@@ -125,6 +154,13 @@ public class DICOMViewerData {
 		this.mCLUTMode = mCLUTMode;
 	}
 
+	/**
+	 * @param mCustomPalette the mCustomPalette to set
+	 */
+	public void setCustomPalette(Palette mCustomPalette) {
+		this.mCustomPalette = mCustomPalette;
+	}
+
 	/**
 	 * @param mScaleMode the mScaleMode to set
 	 */
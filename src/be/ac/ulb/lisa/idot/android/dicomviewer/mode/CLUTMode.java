@@ -57,4 +57,9 @@ public final class CLUTMode {
 	 */
 	public static final short RAINBOW = 2;
 	
+	/**
+	 * Custom CLUT loaded from a palette file.
+	 */
+	public static final short CUSTOM = 3;
+	
 }
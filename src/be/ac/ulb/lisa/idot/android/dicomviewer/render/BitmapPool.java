@@ -0,0 +1,184 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <BitmapPool.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.android.dicomviewer.render;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of mutable bitmaps used as render targets.
+ * 
+ * A released bitmap is kept for the next acquisition of a
+ * bitmap with the same width, height and configuration, so
+ * the bitmaps are not allocated for each drawn image. The
+ * size of the pooled bitmaps is bounded: the least recently
+ * released bitmaps are recycled first.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class BitmapPool {
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Maximum size in bytes of the pooled bitmaps.
+	 */
+	private final long mMaxSize;
+	
+	/**
+	 * Pooled bitmaps, the most recently released first.
+	 */
+	private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+	
+	/**
+	 * Size in bytes of the pooled bitmaps.
+	 */
+	private long mSize = 0;
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param maxSize Maximum size in bytes of the pooled bitmaps.
+	 */
+	public BitmapPool(long maxSize) {
+		mMaxSize = maxSize;
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Get a mutable bitmap. Its content is undefined if it comes
+	 * from the pool.
+	 * 
+	 * @param width
+	 * @param height
+	 * @param config
+	 * @return A pooled bitmap or a new bitmap.
+	 */
+	public synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+		
+		Iterator<Bitmap> iterator = mBitmaps.iterator();
+		
+		while (iterator.hasNext()) {
+			
+			Bitmap bitmap = iterator.next();
+			
+			if (bitmap.getWidth() == width && bitmap.getHeight() == height
+					&& bitmap.getConfig() == config) {
+				
+				iterator.remove();
+				mSize -= getSize(bitmap);
+				
+				return bitmap;
+				
+			}
+			
+		}
+		
+		return Bitmap.createBitmap(width, height, config);
+		
+	}
+	
+	/**
+	 * Give back a bitmap that is no longer displayed.
+	 * 
+	 * @param bitmap The bitmap or null.
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+			return;
+		
+		long size = getSize(bitmap);
+		
+		if (size > mMaxSize) {
+			
+			bitmap.recycle();
+			return;
+			
+		}
+		
+		mBitmaps.addFirst(bitmap);
+		mSize += size;
+		
+		// Recycle the least recently released bitmaps
+		while (mSize > mMaxSize) {
+			
+			Bitmap oldest = mBitmaps.removeLast();
+			mSize -= getSize(oldest);
+			oldest.recycle();
+			
+		}
+		
+	}
+	
+	/**
+	 * Recycle the pooled bitmaps.
+	 */
+	public synchronized void clear() {
+		
+		for (Bitmap bitmap : mBitmaps)
+			bitmap.recycle();
+		
+		mBitmaps.clear();
+		mSize = 0;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param bitmap
+	 * @return Size in bytes of the bitmap pixels.
+	 */
+	private static long getSize(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+	
+}
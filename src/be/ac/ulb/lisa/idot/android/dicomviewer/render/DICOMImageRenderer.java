@@ -0,0 +1,418 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <DICOMImageRenderer.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.android.dicomviewer.render;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
+
+/**
+ * Renderer of LISA 16-Bit grayscale images in ARGB pixels.
+ * 
+ * The grayscale window and the palette of the CLUT are
+ * compiled in a lookup table that maps each gray level to an
+ * ARGB pixel. The table is computed once per window, palette
+ * or image range change, so a pixel costs a single indexed
+ * load whatever the CLUT.
+ * 
+ * The rows are rendered by bands in parallel, one band per
+ * processor, in an ARGB buffer that is reused from a call to
+ * the next. A renderer must be used by one thread at a time.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class DICOMImageRenderer {
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Number of pixels read at once from the image.
+	 */
+	private static final int CHUNK_PIXEL_COUNT = 8192;
+	
+	/**
+	 * Length of the lookup table that covers all the 16-bit
+	 * gray levels.
+	 */
+	private static final int MAX_LUT_LENGTH = 65536;
+	
+	/**
+	 * Minimum number of pixels of a band rendered by a worker.
+	 */
+	private static final int MIN_BAND_PIXEL_COUNT = 65536;
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Lookup table from the gray levels to the ARGB pixels.
+	 */
+	private int[] mLUT = null;
+	
+	/**
+	 * Window width of the lookup table.
+	 */
+	private int mWindowWidth = 0;
+	
+	/**
+	 * Window center of the lookup table.
+	 */
+	private int mWindowCenter = 0;
+	
+	/**
+	 * Palette of the lookup table.
+	 */
+	private Palette mPalette = null;
+	
+	/**
+	 * Number of bands rendered in parallel, one per processor.
+	 */
+	private final int mBandCount =
+		Math.max(1, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Gray levels read from the image, one array per band.
+	 */
+	private final short[][] mPixels = new short[mBandCount][CHUNK_PIXEL_COUNT];
+	
+	/**
+	 * Workers that render the bands but the last one, which
+	 * is rendered by the calling thread. It is created when
+	 * it is needed.
+	 */
+	private ExecutorService mWorkers = null;
+	
+	/**
+	 * Reused ARGB buffer of renderRows.
+	 */
+	private int[] mOutputPixels = null;
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Set the grayscale window and the palette. The lookup
+	 * table is computed if they or the range of the image
+	 * changed since the last call.
+	 * 
+	 * @param image The image to render.
+	 * @param windowWidth
+	 * @param windowCenter
+	 * @param palette
+	 */
+	public void setWindow(LISAImageGray16Bit image, int windowWidth,
+			int windowCenter, Palette palette) {
+		
+		int lutLength = getLUTLength(image);
+		
+		if (mLUT != null && mLUT.length == lutLength
+				&& mWindowWidth == windowWidth && mWindowCenter == windowCenter
+				&& mPalette == palette)
+			return;
+		
+		if (mLUT == null || mLUT.length != lutLength)
+			mLUT = new int[lutLength];
+		
+		mWindowWidth = windowWidth;
+		mWindowCenter = windowCenter;
+		mPalette = palette;
+		
+		computeLUT();
+		
+	}
+	
+	/**
+	 * Render pixels of the image with the lookup table in the
+	 * calling thread.
+	 * 
+	 * @param image
+	 * @param offset Index of the first pixel of the image.
+	 * @param length Number of pixels.
+	 * @param outputPixels The ARGB pixels.
+	 * @param outputOffset Index of the first ARGB pixel.
+	 */
+	public void render(LISAImageGray16Bit image, int offset, int length,
+			int[] outputPixels, int outputOffset) {
+		render(image, offset, length, outputPixels, outputOffset, mPixels[0]);
+	}
+	
+	/**
+	 * Render rows of the image with the lookup table. The rows
+	 * are split in bands that are rendered in parallel.
+	 * 
+	 * @param image
+	 * @param firstRow Index of the first row.
+	 * @param rowCount Number of rows.
+	 * @return The ARGB buffer that contains the rows from its
+	 * beginning. It is reused by the next call.
+	 */
+	public int[] renderRows(final LISAImageGray16Bit image, int firstRow, int rowCount) {
+		
+		final int width = image.getWidth();
+		int length = rowCount * width;
+		
+		if (mOutputPixels == null || mOutputPixels.length < length)
+			mOutputPixels = new int[length];
+		
+		final int[] outputPixels = mOutputPixels;
+		
+		int bandCount = Math.max(1, Math.min(Math.min(mBandCount, rowCount),
+				length / MIN_BAND_PIXEL_COUNT));
+		
+		// Small images are rendered by the calling thread
+		if (bandCount == 1) {
+			
+			render(image, firstRow * width, length, outputPixels, 0, mPixels[0]);
+			
+			return outputPixels;
+			
+		}
+		
+		if (mWorkers == null)
+			mWorkers = createWorkers(mBandCount - 1);
+		
+		Future<?>[] futures = new Future<?>[bandCount - 1];
+		
+		int bandRow = 0;
+		
+		for (int band = 0; band < bandCount; band++) {
+			
+			final int row = bandRow;
+			final int count = (rowCount * (band + 1)) / bandCount - row;
+			final int offset = (firstRow + row) * width;
+			final short[] pixels = mPixels[band];
+			
+			bandRow += count;
+			
+			// The last band is rendered by the calling thread
+			if (band == bandCount - 1) {
+				
+				render(image, offset, count * width, outputPixels, row * width, pixels);
+				
+			} else {
+				
+				futures[band] = mWorkers.submit(new Runnable() {
+					
+					public void run() {
+						render(image, offset, count * width, outputPixels,
+								row * width, pixels);
+					}
+					
+				});
+				
+			}
+			
+		}
+		
+		// Wait for the workers. The buffer is reused, so the
+		// wait goes on if the thread is interrupted.
+		boolean isInterrupted = false;
+		
+		for (int band = 0; band < futures.length; band++) {
+			
+			try {
+				
+				futures[band].get();
+				
+			} catch (InterruptedException ex) {
+				
+				isInterrupted = true;
+				band--;
+				
+			} catch (ExecutionException ex) {
+				
+				if (ex.getCause() instanceof RuntimeException)
+					throw (RuntimeException) ex.getCause();
+				
+				throw new RuntimeException(ex.getCause());
+				
+			}
+			
+		}
+		
+		if (isInterrupted)
+			Thread.currentThread().interrupt();
+		
+		return outputPixels;
+		
+	}
+	
+	/**
+	 * Stop the workers and free the ARGB buffer. The renderer
+	 * can still be used, the workers are created again when
+	 * they are needed.
+	 */
+	public void release() {
+		
+		if (mWorkers != null)
+			mWorkers.shutdown();
+		
+		mWorkers = null;
+		mOutputPixels = null;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Render pixels of the image with the lookup table.
+	 * 
+	 * @param image
+	 * @param offset Index of the first pixel of the image.
+	 * @param length Number of pixels.
+	 * @param outputPixels The ARGB pixels.
+	 * @param outputOffset Index of the first ARGB pixel.
+	 * @param pixels Array in which the gray levels are read.
+	 */
+	private void render(LISAImageGray16Bit image, int offset, int length,
+			int[] outputPixels, int outputOffset, short[] pixels) {
+		
+		int[] lut = mLUT;
+		int mask = lut.length - 1;
+		
+		// Map the pixels by chunk
+		for (int i = 0; i < length; i += pixels.length) {
+			
+			int count = Math.min(pixels.length, length - i);
+			image.getPixels(offset + i, pixels, 0, count);
+			
+			int output = outputOffset + i;
+			
+			for (int j = 0; j < count; j++)
+				outputPixels[output + j] = lut[pixels[j] & mask];
+			
+		}
+		
+	}
+	
+	/**
+	 * Compute the lookup table. The window is split in as
+	 * many intervals as the palette has colors, the values
+	 * under and over the window take the first and the last
+	 * color.
+	 */
+	private void computeLUT() {
+		
+		int windowWidth = Math.max(mWindowWidth, 1);
+		
+		// Compute the window offset
+		int windowOffset = ((2 * mWindowCenter - windowWidth)) / 2;
+		
+		int paletteLength = mPalette.getLength();
+		int lastColor = paletteLength - 1;
+		
+		for (int i = 0; i < mLUT.length; i++) {
+			
+			int index = paletteLength * (i - windowOffset) / windowWidth;
+			
+			index = (index > lastColor) ? lastColor :
+				((index < 0) ? 0 : index);
+			
+			mLUT[i] = mPalette.getColor(index);
+			
+		}
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Create the workers. They are daemon threads, such that
+	 * a renderer that is not released does not keep the
+	 * application alive.
+	 * 
+	 * @param workerCount
+	 * @return The workers.
+	 */
+	private static ExecutorService createWorkers(int workerCount) {
+		
+		return Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+			
+			public Thread newThread(Runnable runnable) {
+				
+				Thread thread = new Thread(runnable, "DICOMImageRenderer");
+				thread.setDaemon(true);
+				
+				return thread;
+				
+			}
+			
+		});
+		
+	}
+	
+	/**
+	 * Get the length of the lookup table of an image. It is
+	 * the smallest power of 2 that covers the gray levels
+	 * and the maximum value of the image, so the pixels are
+	 * mapped with a mask. If the maximum value is not known
+	 * yet, the table covers all the 16-bit values.
+	 * 
+	 * @param image
+	 * @return The length of the lookup table.
+	 */
+	private static int getLUTLength(LISAImageGray16Bit image) {
+		
+		if (image.getDataMax() <= 0)
+			return MAX_LUT_LENGTH;
+		
+		int range = Math.max(image.getGrayLevel(), image.getDataMax() + 1);
+		int length = 1;
+		
+		while (length < range && length < MAX_LUT_LENGTH)
+			length <<= 1;
+		
+		return length;
+		
+	}
+	
+}
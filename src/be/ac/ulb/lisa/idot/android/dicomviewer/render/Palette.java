@@ -0,0 +1,402 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <Palette.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.android.dicomviewer.render;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import android.graphics.Color;
+
+import be.ac.ulb.lisa.idot.android.dicomviewer.mode.CLUTMode;
+
+/**
+ * Palette of ARGB colors that a CLUT maps on the grayscale
+ * window. The first color is the color of the bottom of the
+ * window and the last color the color of its top.
+ * 
+ * The built-in palettes of the CLUT modes are computed once.
+ * Custom palettes are loaded from text files that contain one
+ * color per line, as three red, green and blue components in
+ * [0, 255]. Empty lines and the lines that begin with '#' are
+ * ignored.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public final class Palette {
+	
+	// ---------------------------------------------------------------
+	// + <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Extension of the custom palette files.
+	 */
+	public static final String FILE_EXTENSION = ".clut";
+	
+	/**
+	 * Number of colors of the grayscale palettes.
+	 */
+	public static final int GRAYSCALE_LENGTH = 256;
+	
+	/**
+	 * Number of colors of the rainbow palette. The hue of the
+	 * rainbow changes faster than a gray level, so it uses
+	 * more colors.
+	 */
+	public static final int RAINBOW_LENGTH = 4096;
+	
+	/**
+	 * Maximum number of colors of a palette.
+	 */
+	public static final int MAX_LENGTH = 4096;
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Built-in palettes indexed by CLUT mode. They are computed
+	 * when they are needed.
+	 */
+	private static final Palette[] BUILT_IN_PALETTES = new Palette[3];
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Name of the palette.
+	 */
+	private final String mName;
+	
+	/**
+	 * ARGB colors of the palette.
+	 */
+	private final int[] mColors;
+	
+	
+	// ---------------------------------------------------------------
+	// - CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	private Palette(String name, int[] colors) {
+		mName = name;
+		mColors = colors;
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @return The name of the palette.
+	 */
+	public String getName() {
+		return mName;
+	}
+	
+	/**
+	 * @return The number of colors.
+	 */
+	public int getLength() {
+		return mColors.length;
+	}
+	
+	/**
+	 * @param index
+	 * @return The ARGB color at index.
+	 */
+	public int getColor(int index) {
+		return mColors[index];
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Get the built-in palette of a CLUT mode.
+	 * 
+	 * @param clutMode
+	 * @return The palette. If the CLUT mode has no built-in
+	 * palette, the normal grayscale palette is returned.
+	 */
+	public static synchronized Palette getPalette(short clutMode) {
+		
+		if (clutMode < 0 || clutMode >= BUILT_IN_PALETTES.length)
+			clutMode = CLUTMode.NORMAL;
+		
+		if (BUILT_IN_PALETTES[clutMode] == null) {
+			
+			switch (clutMode) {
+			
+			default:
+			case CLUTMode.NORMAL:
+				BUILT_IN_PALETTES[clutMode] =
+					new Palette("Grayscale", computeGrayscaleColors(false));
+				break;
+				
+			case CLUTMode.INVERSE:
+				BUILT_IN_PALETTES[clutMode] =
+					new Palette("Inverse grayscale", computeGrayscaleColors(true));
+				break;
+				
+			case CLUTMode.RAINBOW:
+				BUILT_IN_PALETTES[clutMode] =
+					new Palette("Rainbow", computeRainbowColors());
+				break;
+			
+			};
+			
+		}
+		
+		return BUILT_IN_PALETTES[clutMode];
+		
+	}
+	
+	/**
+	 * Load a custom palette from a file. The name of the palette
+	 * is the name of the file without its extension.
+	 * 
+	 * @param file
+	 * @return The palette.
+	 * @throws IOException If the file cannot be read or is not
+	 * a palette file.
+	 */
+	public static Palette load(File file) throws IOException {
+		
+		String name = file.getName();
+		
+		if (name.toLowerCase().endsWith(FILE_EXTENSION))
+			name = name.substring(0, name.length() - FILE_EXTENSION.length());
+		
+		InputStream inputStream = new FileInputStream(file);
+		
+		try {
+			
+			return load(name, inputStream);
+			
+		} finally {
+			
+			inputStream.close();
+			
+		}
+		
+	}
+	
+	/**
+	 * Load a custom palette from a stream. The stream is not
+	 * closed.
+	 * 
+	 * @param name The name of the palette.
+	 * @param inputStream
+	 * @return The palette.
+	 * @throws IOException If the stream cannot be read or does
+	 * not contain a palette.
+	 */
+	public static Palette load(String name, InputStream inputStream)
+		throws IOException {
+		
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(inputStream, "US-ASCII"));
+		
+		List<Integer> colors = new ArrayList<Integer>();
+		
+		String line;
+		int lineNumber = 0;
+		
+		while ((line = reader.readLine()) != null) {
+			
+			lineNumber++;
+			line = line.trim();
+			
+			if (line.length() == 0 || line.charAt(0) == '#')
+				continue;
+			
+			StringTokenizer tokenizer = new StringTokenizer(line, " \t,;");
+			
+			if (tokenizer.countTokens() != 3)
+				throw new IOException("Palette " + name + ", line "
+						+ lineNumber + ": 3 color components expected.");
+			
+			int color = 0xFF;
+			
+			for (int i = 0; i < 3; i++) {
+				
+				int component;
+				
+				try {
+					
+					component = Integer.parseInt(tokenizer.nextToken());
+					
+				} catch (NumberFormatException ex) {
+					
+					component = -1;
+					
+				}
+				
+				if (component < 0 || component > 255)
+					throw new IOException("Palette " + name + ", line "
+							+ lineNumber + ": color components must be in [0, 255].");
+				
+				color = (color << 8) | component;
+				
+			}
+			
+			if (colors.size() == MAX_LENGTH)
+				throw new IOException("Palette " + name + ": more than "
+						+ MAX_LENGTH + " colors.");
+			
+			colors.add(color);
+			
+		}
+		
+		if (colors.size() < 2)
+			throw new IOException("Palette " + name + ": at least 2 colors expected.");
+		
+		int[] colorArray = new int[colors.size()];
+		
+		for (int i = 0; i < colorArray.length; i++)
+			colorArray[i] = colors.get(i);
+		
+		return new Palette(name, colorArray);
+		
+	}
+	
+	/**
+	 * List the custom palette files of a directory.
+	 * 
+	 * @param directory
+	 * @return The palette files sorted by name. The array is
+	 * empty if the directory contains no palette file.
+	 */
+	public static File[] listFiles(File directory) {
+		
+		File[] files = directory.listFiles(new FileFilter() {
+			
+			public boolean accept(File file) {
+				return file.isFile()
+					&& file.getName().toLowerCase().endsWith(FILE_EXTENSION);
+			}
+			
+		});
+		
+		if (files == null)
+			return new File[0];
+		
+		Arrays.sort(files);
+		
+		return files;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Compute the grayscale colors.
+	 * 
+	 * @param isInverse
+	 * @return The colors.
+	 */
+	private static int[] computeGrayscaleColors(boolean isInverse) {
+		
+		int[] colors = new int[GRAYSCALE_LENGTH];
+		
+		for (int i = 0; i < GRAYSCALE_LENGTH; i++) {
+			
+			int grayLevel = isInverse ? 255 - i : i;
+			
+			colors[i] = (0xFF << 24) | // alpha
+				(grayLevel << 16) | // red
+				(grayLevel << 8) | // green
+				grayLevel; // blue
+			
+		}
+		
+		return colors;
+		
+	}
+	
+	/**
+	 * Compute the rainbow colors. The hue goes from magenta to
+	 * red and the value grows on the first quarter.
+	 * 
+	 * @return The colors.
+	 */
+	private static int[] computeRainbowColors() {
+		
+		int[] colors = new int[RAINBOW_LENGTH];
+		
+		float[] pixelHSV = new float[3];
+		
+		pixelHSV[0] = 0f;
+		pixelHSV[1] = 240f;
+		pixelHSV[2] = 1f;
+		
+		for (int i = 0; i < RAINBOW_LENGTH; i++) {
+			
+			float mult = i / (float) (RAINBOW_LENGTH - 1);
+			
+			pixelHSV[0] = 300f - 360f * mult;
+			pixelHSV[0] = (pixelHSV[0] < -60f) ? 360-60f : pixelHSV[0];
+			
+			pixelHSV[2] = 4f * mult;
+			
+			colors[i] = Color.HSVToColor(0xFF, pixelHSV);
+			
+		}
+		
+		return colors;
+		
+	}
+	
+}
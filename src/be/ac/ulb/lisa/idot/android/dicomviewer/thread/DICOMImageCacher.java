@@ -35,6 +35,13 @@ package be.ac.ulb.lisa.idot.android.dicomviewer.thread;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.os.Handler;
 import android.os.Message;
@@ -42,18 +49,46 @@ import android.os.Message;
 import be.ac.ulb.lisa.idot.dicom.data.DICOMImage;
 import be.ac.ulb.lisa.idot.dicom.file.DICOMFileFilter;
 import be.ac.ulb.lisa.idot.dicom.file.DICOMImageReader;
-import be.ac.ulb.lisa.idot.image.file.LISAImageGray16BitWriter;
+import be.ac.ulb.lisa.idot.image.file.LISASeriesPackJournal;
+import be.ac.ulb.lisa.idot.image.file.LISASeriesPackWriter;
+import be.ac.ulb.lisa.idot.image.file.LISASourceFingerprint;
 
 /**
  * DICOM image cacher that cached DICOM image in LISA
  * 16-Bit grayscale image.
  * 
+ * The images of the directory are appended to its
+ * series pack. The files are cached by a pool of workers,
+ * one per processor. The number of images in memory at the
+ * same time is bounded by a memory budget.
+ * 
+ * The caching can be cancelled. The processed files are
+ * recorded in the journal of the series pack such that
+ * the next caching of the directory resumes the work.
+ * 
  * @author Pierre Malarme
  * @version 1.0
  *
  */
 public final class DICOMImageCacher extends Thread {
 	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Part of the maximum heap size that the images being
+	 * cached can use.
+	 */
+	private static final int MEMORY_BUDGET_DIVISOR = 4;
+	
+	/**
+	 * Number of processed files between two saves
+	 * of the journal.
+	 */
+	private static final int JOURNAL_SAVE_INTERVAL = 16;
+	
+	
 	// ---------------------------------------------------------------
 	// - VARIABLES
 	// ---------------------------------------------------------------
@@ -68,6 +103,36 @@ public final class DICOMImageCacher extends Thread {
 	 */
 	private final File mTopDirectory;
 	
+	/**
+	 * Memory budget in kilobytes shared by the workers.
+	 */
+	private Semaphore mMemoryBudget;
+	
+	/**
+	 * Size of the memory budget in kilobytes.
+	 */
+	private int mMemoryBudgetSize;
+	
+	/**
+	 * Number of files that are processed.
+	 */
+	private final AtomicInteger mProgression = new AtomicInteger(0);
+	
+	/**
+	 * True if an out of memory error occurred.
+	 */
+	private volatile boolean mOutOfMemory = false;
+	
+	/**
+	 * True if the caching is cancelled.
+	 */
+	private volatile boolean mCancelled = false;
+	
+	/**
+	 * Journal of the series pack.
+	 */
+	private LISASeriesPackJournal mJournal;
+	
 	
 	// ---------------------------------------------------------------
 	// + CONSTRUCTORS
@@ -114,6 +179,21 @@ public final class DICOMImageCacher extends Thread {
 	// + FUNCTIONS
 	// ---------------------------------------------------------------
 	
+	/**
+	 * Cancel the caching. The images that are being cached
+	 * are completed and the FINISHED message is sent.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+	
+	/**
+	 * @return True if the caching is cancelled.
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+	
 	public void run() {
 		
 		// Get the Files' list for the mTopDirectory
@@ -134,96 +214,260 @@ public final class DICOMImageCacher extends Thread {
 		message.arg1 = children.length;
 		mHandler.sendMessage(message);
 		
+		// Open the series pack of the directory
+		final LISASeriesPackWriter packWriter;
+		
+		try {
+			
+			packWriter = LISASeriesPackWriter.open(mTopDirectory);
+			
+		} catch (IOException ex) {
+			
+			mHandler.sendEmptyMessage(ThreadState.UNCATCHABLE_ERROR_OCCURRED);
+			return;
+			
+		}
+		
+		// Load the journal of the previous caching
+		mJournal = new LISASeriesPackJournal(mTopDirectory);
+		mJournal.load();
+		
+		// Set the memory budget
+		mMemoryBudgetSize = (int) Math.min(Integer.MAX_VALUE,
+				Runtime.getRuntime().maxMemory() / MEMORY_BUDGET_DIVISOR / 1024);
+		mMemoryBudget = new Semaphore(mMemoryBudgetSize);
+		
+		// Start the workers
+		int workerCount = Math.max(1, Math.min(children.length,
+				Runtime.getRuntime().availableProcessors()));
+		
+		ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+		
 		try {
 			
 			for (int i = 0; i < children.length; i++) {
 				
-				// Load the children
-				if (loadImage(children[i])) {
+				final File child = children[i];
+				
+				workers.execute(new Runnable() {
 					
-					// Send a progression update message
-					message = mHandler.obtainMessage();
-					message.what = ThreadState.PROGRESSION_UPDATE;
-					message.arg1 = i + 1;
-					mHandler.sendMessage(message);
+					public void run() {
+						cacheImage(child, packWriter);
+					}
 					
-				} else {
+				});
+				
+			}
+			
+			// Wait for the workers
+			workers.shutdown();
+			
+			boolean isTerminated = false;
+			
+			while (!isTerminated) {
+				
+				try {
 					
-					// Send a catchable error occurred
-					message = mHandler.obtainMessage();
-					message.what = ThreadState.CATCHABLE_ERROR_OCCURRED;
-					message.arg1 = i + 1;
-					message.obj = children[i].getName();
-					mHandler.sendMessage(message);
+					isTerminated = workers.awaitTermination(1, TimeUnit.SECONDS);
 					
+				} catch (InterruptedException ex) {
+					// Wait again because the pack must be closed
+					// after the last image
 				}
 				
-				// Hint the garbage collector
-				System.gc();	
-				
 			}
 			
-		} catch (OutOfMemoryError ex) {
+		} finally {
 			
-			// If the image can be loaded because an out of
-			// memory error occurred, display it
-			System.gc();
+			// Write the index of the series pack
+			try {
+				
+				packWriter.close();
+				
+			} catch (IOException ex) {
+				// The entries are scanned if the index is missing
+			}
 			
-			mHandler.sendEmptyMessage(ThreadState.OUT_OF_MEMORY);
+			saveJournal();
 			
 		}
 		
+		if (mOutOfMemory)
+			mHandler.sendEmptyMessage(ThreadState.OUT_OF_MEMORY);
+		
 		// Send that the thread is finished
 		mHandler.sendEmptyMessage(ThreadState.FINISHED);
 		
-		// Hint the garbage collector a last time
-		System.gc();
-		
 	}
 	
 	
 	// ---------------------------------------------------------------
-	// - <static> FUNCTIONS
+	// - FUNCTIONS
 	// ---------------------------------------------------------------
 	
+	/**
+	 * Cache an image and send the progression. This function
+	 * is called by the workers.
+	 * 
+	 * @param currentFile
+	 * @param packWriter The writer of the series pack.
+	 */
+	private void cacheImage(File currentFile, LISASeriesPackWriter packWriter) {
+		
+		// After an out of memory error or a cancellation,
+		// skip the remaining files
+		if (mOutOfMemory || mCancelled)
+			return;
+		
+		try {
+			
+			boolean isCached = loadImage(currentFile, packWriter);
+			
+			int progression = mProgression.incrementAndGet();
+			
+			// Mark the appended images as valid and save the
+			// journal from time to time
+			if (progression % JOURNAL_SAVE_INTERVAL == 0) {
+				
+				try {
+					
+					packWriter.sync();
+					
+				} catch (IOException ex) {
+					// The images are cached again by the next caching
+				}
+				
+				saveJournal();
+				
+			}
+			
+			Message message = mHandler.obtainMessage();
+			message.arg1 = progression;
+			
+			if (isCached) {
+				
+				// Send a progression update message
+				message.what = ThreadState.PROGRESSION_UPDATE;
+				
+			} else {
+				
+				// Send a catchable error occurred
+				message.what = ThreadState.CATCHABLE_ERROR_OCCURRED;
+				message.obj = currentFile.getName();
+				
+			}
+			
+			mHandler.sendMessage(message);
+			
+		} catch (OutOfMemoryError ex) {
+			
+			mOutOfMemory = true;
+			
+		}
+		
+	}
+	
+	/**
+	 * Save the journal. If it cannot be saved, the files
+	 * are processed again by the next caching.
+	 */
+	private void saveJournal() {
+		
+		try {
+			
+			mJournal.save();
+			
+		} catch (IOException ex) {
+			// Do nothing
+		}
+		
+	}
+	
 	/**
 	 * Load an image.
 	 * 
 	 * @param currentFile
+	 * @param packWriter The writer of the series pack.
 	 * @return True if the image is cached, false otherwise.
 	 */
-	private static boolean loadImage(File currentFile) {
+	private boolean loadImage(File currentFile, LISASeriesPackWriter packWriter) {
 		
 		// If the file doesn't exist return false
 		if (!currentFile.exists())
 			return false;
 		
-		// Set the current LISA 16-Bit grayscale image
-		File currentLISAFile = new File(currentFile + ".lisa");
+		// Get the fingerprint of the file
+		LISASourceFingerprint fingerprint;
+		
+		try {
+			
+			fingerprint = LISASourceFingerprint.get(currentFile);
+			
+		} catch (IOException ex) {
+			
+			return false;
+			
+		}
+		
+		// If the file was skipped and did not change since,
+		// skip it again
+		char status = mJournal.getStatus(currentFile, fingerprint);
 		
-		// If current LISA 16-Bit grayscale image exists,
-		// don't create it
-		if (currentLISAFile.exists())
+		if (status == LISASeriesPackJournal.SKIPPED)
 			return true;
 		
+		// If the series pack contains an up to date image,
+		// don't cache it again
+		if (fingerprint.equals(packWriter.getFingerprint(currentFile.getName()))) {
+			
+			if (status != LISASeriesPackJournal.CACHED)
+				mJournal.setDone(currentFile, fingerprint, LISASeriesPackJournal.CACHED);
+			
+			return true;
+			
+		}
+		
+		// Reserve the memory of the image. The pixel data
+		// are smaller than the file.
+		int memoryCost = (int) Math.min(mMemoryBudgetSize,
+				currentFile.length() / 1024 + 1);
+		
+		mMemoryBudget.acquireUninterruptibly(memoryCost);
+		
 		// Else write it
 			
 		try {
 			
-			DICOMImageReader dicomFileReader = new DICOMImageReader(currentFile);
+			DICOMImageReader dicomFileReader = new DICOMImageReader(currentFile, true);
+			
+			// Index the data elements of the file while it is
+			// parsed
+			dicomFileReader.setDataSetIndexed(true);
 			
 			DICOMImage dicomImage = dicomFileReader.parse();
+			ByteBuffer dataSetIndex = dicomFileReader.getDataSetIndex();
 			
 			dicomFileReader.close();
 			
 			// Compressed file are not supported => do not cached it.
 			if (dicomImage.isUncompressed()) {
 				
-				// Write the image
-				LISAImageGray16BitWriter out = new LISAImageGray16BitWriter(currentFile + ".lisa");
-				out.write(dicomImage.getImage());
-				out.flush();
-				out.close();
+				// Append the image and the index to the series pack
+				packWriter.append(currentFile.getName(), fingerprint,
+						dicomImage.getImage(), dataSetIndex);
+				
+				// The version 1 LISA file of the image, that
+				// cannot be checked against the file, is replaced
+				// by the series pack
+				new File(currentFile + ".lisa").delete();
+				
+				mJournal.setDone(currentFile, fingerprint,
+						LISASeriesPackJournal.CACHED);
+				
+			} else {
+				
+				mJournal.setDone(currentFile, fingerprint,
+						LISASeriesPackJournal.SKIPPED);
 				
 			}
 			
@@ -236,6 +480,10 @@ public final class DICOMImageCacher extends Thread {
 			
 			return false;
 			
+		} finally {
+			
+			mMemoryBudget.release(memoryCost);
+			
 		}
 		
 	}
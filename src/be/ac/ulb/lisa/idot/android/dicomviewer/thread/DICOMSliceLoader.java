@@ -0,0 +1,849 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <DICOMSliceLoader.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.android.dicomviewer.thread;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Message;
+
+import be.ac.ulb.lisa.idot.dicom.DICOMException;
+import be.ac.ulb.lisa.idot.dicom.data.DICOMImage;
+import be.ac.ulb.lisa.idot.dicom.file.DICOMImageReader;
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16BitCache;
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16BitRowListener;
+import be.ac.ulb.lisa.idot.image.data.LISAPixelArena;
+import be.ac.ulb.lisa.idot.image.file.LISASeriesPack;
+import be.ac.ulb.lisa.idot.image.file.LISASeriesPackWriter;
+import be.ac.ulb.lisa.idot.image.file.LISASourceFingerprint;
+
+/**
+ * Loader of the slices of a series.
+ * 
+ * The slices are loaded by a small pool of threads from a
+ * priority queue: the slice that the user asked for goes
+ * before the preview, which goes before the prefetched slices.
+ * Asking for a slice makes the previous request stale. A
+ * stale request that is still queued is dropped, and the
+ * result of a stale request that is running is kept in the
+ * slice cache without being sent. Asking for a preview drops
+ * the queued previews, so only the last one is loaded.
+ * 
+ * A thumbnail of each loaded slice is kept in the thumbnail
+ * cache. The previews are these thumbnails.
+ * 
+ * The slice that the user asked for is sent to the handler
+ * with the following messages:
+ * <ul>
+ * <li>STARTED, with the file as object, when the DICOM file
+ * must be decoded;</li>
+ * <li>PROGRESSION_UPDATE, with the slice as object, when the
+ * rows of a large image are decoded. The row count (arg2) is
+ * 0 when the image is started;</li>
+ * <li>FINISHED, with the slice as object, when it is loaded.
+ * The receiver owns the image;</li>
+ * <li>OUT_OF_MEMORY or UNCATCHABLE_ERROR_OCCURRED, with an
+ * error message as object.</li>
+ * </ul>
+ * 
+ * The thumbnail of the last preview asked for is announced
+ * by a PREVIEW_UPDATE message with the file as object.
+ * 
+ * The prefetched slices are put in the slice cache. The keys
+ * of the caches are the file names.
+ * 
+ * The decoded images are appended to the series pack through
+ * one writer that stays open while slices are loaded, and is
+ * closed when the loader is idle. The index of the pack is
+ * then written once for all the appended images.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public final class DICOMSliceLoader {
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Number of loading threads. A second thread lets the
+	 * requested slice start while a slice is prefetched.
+	 */
+	private static final int THREAD_COUNT = 2;
+	
+	/**
+	 * Minimum size in bytes of the files whose image is
+	 * sent while it is decoded.
+	 */
+	private static final long PROGRESSIVE_FILE_LENGTH = 4 * 1024 * 1024;
+	
+	/**
+	 * Maximum width and height of the thumbnails.
+	 */
+	private static final int THUMBNAIL_SIZE = 128;
+	
+	/**
+	 * Priority of the slice that the user asked for.
+	 */
+	private static final int REQUEST = 0;
+	
+	/**
+	 * Priority of the preview.
+	 */
+	private static final int PREVIEW = 1;
+	
+	/**
+	 * Priority of the prefetched slices.
+	 */
+	private static final int PREFETCH = 2;
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * The handler to send message to.
+	 */
+	private final Handler mHandler;
+	
+	/**
+	 * The arena from which the pixel data are allocated.
+	 */
+	private final LISAPixelArena mPixelArena;
+	
+	/**
+	 * The series pack of the directory.
+	 */
+	private final LISASeriesPack mSeriesPack;
+	
+	/**
+	 * The decoded slices.
+	 */
+	private final LISAImageGray16BitCache<String> mSliceCache;
+	
+	/**
+	 * The thumbnails of the loaded slices.
+	 */
+	private final LISAImageGray16BitCache<String> mThumbnailCache;
+	
+	/**
+	 * The loading threads and their queue.
+	 */
+	private final ThreadPoolExecutor mExecutor;
+	
+	/**
+	 * Order of the requests of the same priority.
+	 */
+	private final AtomicLong mSequence = new AtomicLong(0);
+	
+	/**
+	 * Generation of the slice that the user asked for. It
+	 * changes on each request, so the older requests are
+	 * stale.
+	 */
+	private int mGeneration = 0;
+	
+	/**
+	 * Name of the file of the last preview asked for, or
+	 * null if a slice was asked for since.
+	 */
+	private String mPreviewName = null;
+	
+	/**
+	 * Running tasks by file name.
+	 */
+	private final Map<String, LoadTask> mRunningTasks =
+		new HashMap<String, LoadTask>();
+	
+	/**
+	 * The writer of the series pack or null if it is closed.
+	 */
+	private LISASeriesPackWriter mPackWriter = null;
+	
+	/**
+	 * Lock of the writer of the series pack. The images are
+	 * written without locking the loader.
+	 */
+	private final Object mPackWriterLock = new Object();
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	public DICOMSliceLoader(Handler handler, LISAPixelArena pixelArena,
+			LISASeriesPack seriesPack, LISAImageGray16BitCache<String> sliceCache,
+			LISAImageGray16BitCache<String> thumbnailCache) {
+		
+		if (handler == null)
+			throw new NullPointerException("The handler is null.");
+		
+		if (seriesPack == null)
+			throw new NullPointerException("The series pack is null.");
+		
+		if (sliceCache == null || thumbnailCache == null)
+			throw new NullPointerException("A cache is null.");
+		
+		mHandler = handler;
+		mPixelArena = pixelArena;
+		mSeriesPack = seriesPack;
+		mSliceCache = sliceCache;
+		mThumbnailCache = thumbnailCache;
+		
+		mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+				0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+			
+			public Thread newThread(Runnable runnable) {
+				
+				Thread thread = new Thread(runnable, "DICOMSliceLoader");
+				thread.setDaemon(true);
+				
+				return thread;
+				
+			}
+			
+		});
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Ask for the slice of a file. The previous request becomes
+	 * stale. If the slice is cached, it is pinned and returned
+	 * at once. Else it is loaded before the prefetched slices
+	 * and sent to the handler. If the slice is being prefetched,
+	 * the prefetch becomes the request.
+	 * 
+	 * @param file
+	 * @return The pinned cached image or null if the slice is
+	 * loaded.
+	 */
+	public synchronized LISAImageGray16Bit load(File file) {
+		
+		mGeneration++;
+		mPreviewName = null;
+		
+		removeQueuedTasks(REQUEST);
+		removeQueuedTasks(PREVIEW);
+		
+		LISAImageGray16Bit image = mSliceCache.pin(file.getName());
+		
+		if (image != null)
+			return image;
+		
+		LoadTask runningTask = mRunningTasks.get(file.getName());
+		
+		if (runningTask != null)
+			runningTask.request(mGeneration);
+		else
+			mExecutor.execute(new LoadTask(file, mGeneration, REQUEST));
+		
+		return null;
+		
+	}
+	
+	/**
+	 * Ask for the preview of a slice. The queued previews are
+	 * dropped. If the thumbnail of the slice is cached, it is
+	 * pinned in the thumbnail cache and returned at once.
+	 * Else the slice is loaded after the requested slice and
+	 * a PREVIEW_UPDATE message is sent once its thumbnail is
+	 * cached.
+	 * 
+	 * @param file
+	 * @return The pinned thumbnail or null if the slice is
+	 * loaded.
+	 */
+	public synchronized LISAImageGray16Bit loadPreview(File file) {
+		
+		mPreviewName = file.getName();
+		
+		removeQueuedTasks(PREVIEW);
+		
+		LISAImageGray16Bit thumbnail = mThumbnailCache.pin(file.getName());
+		
+		if (thumbnail != null)
+			return thumbnail;
+		
+		// A running task sends the message when it completes
+		if (!mRunningTasks.containsKey(file.getName()))
+			mExecutor.execute(new LoadTask(file, mGeneration, PREVIEW));
+		
+		return null;
+		
+	}
+	
+	/**
+	 * Prefetch slices in the slice cache after the slice that
+	 * the user asked for. The slices queued by the previous
+	 * prefetch are dropped.
+	 * 
+	 * @param files The files in prefetch order.
+	 */
+	public synchronized void prefetch(List<File> files) {
+		
+		removeQueuedTasks(PREFETCH);
+		
+		for (File file : files) {
+			
+			if (!mSliceCache.containsKey(file.getName())
+					&& !mRunningTasks.containsKey(file.getName()))
+				mExecutor.execute(new LoadTask(file, mGeneration, PREFETCH));
+			
+		}
+		
+	}
+	
+	/**
+	 * Drop the queued prefetches. The running ones complete.
+	 */
+	public synchronized void cancelPrefetch() {
+		removeQueuedTasks(PREFETCH);
+	}
+	
+	/**
+	 * Drop all the requests and stop the threads once the
+	 * running tasks complete. The loader cannot be used after
+	 * this call.
+	 */
+	public synchronized void shutdown() {
+		
+		mGeneration++;
+		
+		mExecutor.getQueue().clear();
+		mExecutor.shutdown();
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Remove the queued tasks of a priority.
+	 * 
+	 * @param priority REQUEST, PREVIEW or PREFETCH.
+	 */
+	private void removeQueuedTasks(int priority) {
+		
+		for (Runnable runnable : mExecutor.getQueue()) {
+			
+			if (((LoadTask) runnable).getPriority() == priority)
+				mExecutor.remove(runnable);
+			
+		}
+		
+	}
+	
+	/**
+	 * Append the image of a file to the series pack. The
+	 * writer is opened if it is closed. If the pack is being
+	 * written by another writer or cannot be written, the
+	 * image is not cached.
+	 * 
+	 * @param file
+	 * @param image
+	 * @param dataSetIndex Encoded data set index of the file
+	 * or null.
+	 */
+	private void cacheImage(File file, LISAImageGray16Bit image,
+			ByteBuffer dataSetIndex) {
+		
+		synchronized (mPackWriterLock) {
+			
+			try {
+				
+				if (mPackWriter == null)
+					mPackWriter = LISASeriesPackWriter.tryOpen(file.getParentFile());
+				
+				if (mPackWriter == null)
+					return;
+				
+				mPackWriter.append(file.getName(),
+						LISASourceFingerprint.get(file), image, dataSetIndex);
+				
+			} catch (IOException ex) {
+				
+				// The image is shown even if it is not cached
+				closePackWriter();
+				
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Close the writer of the series pack if no slice is
+	 * loaded or queued.
+	 */
+	private void closePackWriterIfIdle() {
+		
+		synchronized (this) {
+			
+			if (!mRunningTasks.isEmpty() || !mExecutor.getQueue().isEmpty())
+				return;
+			
+		}
+		
+		// An image appended meanwhile is in the index, a
+		// writer opened meanwhile is closed by its task
+		synchronized (mPackWriterLock) {
+			closePackWriter();
+		}
+		
+	}
+	
+	/**
+	 * Close the writer of the series pack, which writes its
+	 * index. The lock of the writer must be held.
+	 */
+	private void closePackWriter() {
+		
+		if (mPackWriter == null)
+			return;
+		
+		try {
+			
+			mPackWriter.close();
+			
+		} catch (IOException ex) {
+			// The entries are scanned if the index is missing
+		}
+		
+		mPackWriter = null;
+		
+	}
+	
+	/**
+	 * Send a message to the handler.
+	 * 
+	 * @param what
+	 * @param object
+	 * @param arg1
+	 * @param arg2
+	 */
+	private void send(int what, Object object, int arg1, int arg2) {
+		
+		Message message = mHandler.obtainMessage();
+		message.what = what;
+		message.obj = object;
+		message.arg1 = arg1;
+		message.arg2 = arg2;
+		mHandler.sendMessage(message);
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Read the up to date image of a file from the series
+	 * pack.
+	 * 
+	 * @param file
+	 * @param seriesPack
+	 * @return The image or null if the file is not cached.
+	 */
+	private static LISAImageGray16Bit readCachedImage(File file,
+			LISASeriesPack seriesPack) {
+		
+		try {
+			
+			// Look for an up to date image in the series pack
+			seriesPack.refresh();
+			return seriesPack.readImage(file);
+			
+		} catch (Exception ex) {
+			
+			// Decode the DICOM file
+			return null;
+			
+		}
+		
+	}
+	
+	// ---------------------------------------------------------------
+	// + <static> CLASS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Slice loaded from a file.
+	 */
+	public static final class Slice {
+		
+		private final File mFile;
+		
+		private final LISAImageGray16Bit mImage;
+		
+		public Slice(File file, LISAImageGray16Bit image) {
+			mFile = file;
+			mImage = image;
+		}
+		
+		/**
+		 * @return The file of the slice.
+		 */
+		public File getFile() {
+			return mFile;
+		}
+		
+		/**
+		 * @return The image of the slice.
+		 */
+		public LISAImageGray16Bit getImage() {
+			return mImage;
+		}
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - CLASS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Task that loads the slice of a file.
+	 */
+	private final class LoadTask implements Runnable, Comparable<LoadTask> {
+		
+		// The file to load
+		private final File mFile;
+		
+		// The order of the task among the tasks of its priority
+		private final long mOrder = mSequence.getAndIncrement();
+		
+		// The generation of the request
+		private volatile int mRequestGeneration;
+		
+		// The priority of the task
+		private volatile int mPriority;
+		
+		// The listener that sends the decoded rows
+		private final LISAImageGray16BitRowListener mRowListener =
+			new LISAImageGray16BitRowListener() {
+			
+			public void onImageStarted(LISAImageGray16Bit image) {
+				sendRows(image, 0, 0);
+			}
+			
+			public void onRowsDecoded(LISAImageGray16Bit image,
+					int firstRow, int rowCount) {
+				sendRows(image, firstRow, rowCount);
+			}
+			
+		};
+		
+		public LoadTask(File file, int generation, int priority) {
+			mFile = file;
+			mRequestGeneration = generation;
+			mPriority = priority;
+		}
+		
+		/**
+		 * @return The priority of the task.
+		 */
+		public int getPriority() {
+			return mPriority;
+		}
+		
+		/**
+		 * Make the task the request of a generation. It must be
+		 * called with the lock of the loader.
+		 * 
+		 * @param generation
+		 */
+		public void request(int generation) {
+			mRequestGeneration = generation;
+			mPriority = REQUEST;
+		}
+		
+		public int compareTo(LoadTask task) {
+			
+			// The requests go before the previews, which go
+			// before the prefetches
+			if (mPriority != task.mPriority)
+				return (mPriority < task.mPriority) ? -1 : 1;
+			
+			return (mOrder < task.mOrder) ? -1 : ((mOrder == task.mOrder) ? 0 : 1);
+			
+		}
+		
+		public void run() {
+			
+			try {
+				
+				load();
+				
+			} finally {
+				
+				closePackWriterIfIdle();
+				
+			}
+			
+		}
+		
+		/**
+		 * Load the slice unless it is not needed anymore, and
+		 * send it or put it in the slice cache.
+		 */
+		private void load() {
+			
+			String name = mFile.getName();
+			
+			synchronized (DICOMSliceLoader.this) {
+				
+				// A stale request is dropped
+				if (mPriority == REQUEST && !isRequested())
+					return;
+				
+				LoadTask runningTask = mRunningTasks.get(name);
+				
+				if (runningTask != null) {
+					
+					// Let the running task load the requested slice
+					if (mPriority == REQUEST)
+						runningTask.request(mRequestGeneration);
+					
+					return;
+					
+				}
+				
+				if (mPriority == PREFETCH && mSliceCache.containsKey(name))
+					return;
+				
+				// The thumbnail was cached since the preview was
+				// asked for
+				if (mPriority == PREVIEW && mThumbnailCache.containsKey(name)) {
+					
+					if (name.equals(mPreviewName))
+						send(ThreadState.PREVIEW_UPDATE, mFile, 0, 0);
+					
+					return;
+					
+				}
+				
+				mRunningTasks.put(name, this);
+				
+			}
+			
+			Thread.currentThread().setPriority((mPriority == PREFETCH)
+					? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY);
+			
+			LISAImageGray16Bit image = null;
+			LISAImageGray16Bit thumbnail = null;
+			
+			try {
+				
+				image = loadImage();
+				
+				if (image != null)
+					thumbnail = image.createThumbnail(THUMBNAIL_SIZE);
+				
+			} catch (OutOfMemoryError ex) {
+				
+				sendError(ThreadState.OUT_OF_MEMORY, ex.getMessage());
+				
+			} catch (Exception ex) {
+				
+				sendError(ThreadState.UNCATCHABLE_ERROR_OCCURRED, ex.getMessage());
+				
+			}
+			
+			synchronized (DICOMSliceLoader.this) {
+				
+				mRunningTasks.remove(name);
+				
+				if (image == null)
+					return;
+				
+				if (thumbnail != null) {
+					
+					mThumbnailCache.put(name, thumbnail);
+					
+					if (name.equals(mPreviewName))
+						send(ThreadState.PREVIEW_UPDATE, mFile, 0, 0);
+					
+				}
+				
+				// The receiver owns the requested slice, the
+				// cache owns the other slices
+				if (isRequested())
+					send(ThreadState.FINISHED, new Slice(mFile, image), 0, 0);
+				else
+					mSliceCache.put(name, image);
+				
+			}
+			
+		}
+		
+		/**
+		 * @return True if the task loads the slice that the
+		 * user asked for last.
+		 */
+		private boolean isRequested() {
+			
+			synchronized (DICOMSliceLoader.this) {
+				return mPriority == REQUEST && mRequestGeneration == mGeneration;
+			}
+			
+		}
+		
+		/**
+		 * Read the cached image of the file or decode the DICOM
+		 * file and cache its image.
+		 * 
+		 * @return The image or null if the file is compressed.
+		 * @throws IOException
+		 * @throws DICOMException
+		 */
+		private LISAImageGray16Bit loadImage() throws IOException, DICOMException {
+			
+			if (!mFile.exists())
+				throw new IOException("The file doesn't exist.");
+			
+			LISAImageGray16Bit image =
+				readCachedImage(mFile, mSeriesPack);
+			
+			if (image != null)
+				return image;
+			
+			// Ask to show the progress dialog in spinner mode
+			if (isRequested())
+				send(ThreadState.STARTED, mFile, 0, 0);
+			
+			DICOMImageReader dicomFileReader = new DICOMImageReader(mFile, true);
+			
+			try {
+				
+				dicomFileReader.setPixelArena(mPixelArena);
+				dicomFileReader.setDataSetIndexed(true);
+				
+				// Display the top of a large image while the rest
+				// is decoded
+				if (mFile.length() >= PROGRESSIVE_FILE_LENGTH)
+					dicomFileReader.setRowListener(mRowListener);
+				
+				DICOMImage dicomImage = dicomFileReader.parse();
+				
+				if (!dicomImage.isUncompressed()) {
+					
+					if (dicomImage.getImage() != null)
+						dicomImage.getImage().release();
+					
+					sendError(ThreadState.UNCATCHABLE_ERROR_OCCURRED,
+							"The file is compressed. Compressed format are not"
+							+ " supported yet.");
+					
+					return null;
+					
+				}
+				
+				cacheImage(mFile, dicomImage.getImage(),
+						dicomFileReader.getDataSetIndex());
+				
+				return dicomImage.getImage();
+				
+			} finally {
+				
+				dicomFileReader.close();
+				
+			}
+			
+		}
+		
+		/**
+		 * Send decoded rows of the image if it is requested.
+		 * The row count is 0 when the image is started.
+		 * 
+		 * @param image
+		 * @param firstRow
+		 * @param rowCount
+		 */
+		private void sendRows(LISAImageGray16Bit image, int firstRow, int rowCount) {
+			
+			synchronized (DICOMSliceLoader.this) {
+				
+				if (isRequested())
+					send(ThreadState.PROGRESSION_UPDATE, new Slice(mFile, image),
+							firstRow, rowCount);
+				
+			}
+			
+		}
+		
+		/**
+		 * Send an error if the slice is requested. The errors
+		 * of the prefetches are ignored, the slice is loaded
+		 * again when it is requested.
+		 * 
+		 * @param what
+		 * @param errorMessage
+		 */
+		private void sendError(int what, String errorMessage) {
+			
+			synchronized (DICOMSliceLoader.this) {
+				
+				if (isRequested())
+					send(what, errorMessage, 0, 0);
+				
+			}
+			
+		}
+		
+	}
+	
+}
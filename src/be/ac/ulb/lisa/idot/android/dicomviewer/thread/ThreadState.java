@@ -78,5 +78,10 @@ public class ThreadState {
 	 * managed or ignored.
 	 */
 	public static final short CATCHABLE_ERROR_OCCURRED = 5;
+	
+	/**
+	 * A preview of the result of the thread is available.
+	 */
+	public static final short PREVIEW_UPDATE = 6;
 
 }
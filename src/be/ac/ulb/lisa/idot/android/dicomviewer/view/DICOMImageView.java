@@ -46,8 +46,9 @@ import android.widget.ImageView;
 
 import be.ac.ulb.lisa.idot.android.dicomviewer.DICOMViewer;
 import be.ac.ulb.lisa.idot.android.dicomviewer.data.DICOMViewerData;
-import be.ac.ulb.lisa.idot.android.dicomviewer.mode.CLUTMode;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.ScaleMode;
+import be.ac.ulb.lisa.idot.android.dicomviewer.render.BitmapPool;
+import be.ac.ulb.lisa.idot.android.dicomviewer.render.DICOMImageRenderer;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.ToolMode;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.TouchMode;
 import be.ac.ulb.lisa.idot.commons.Geometry;
@@ -67,6 +68,24 @@ import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
 public class DICOMImageView extends ImageView implements OnTouchListener {
 	
 	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Maximum number of pixels converted in a strip before
+	 * they are copied in the bitmap. A strip has at least
+	 * one row.
+	 */
+	private static final int STRIP_PIXEL_COUNT = 1048576;
+	
+	/**
+	 * Maximum size in bytes of the bitmaps kept for the
+	 * next images.
+	 */
+	private static final long BITMAP_POOL_SIZE = 8 * 1024 * 1024;
+	
+	
 	// ---------------------------------------------------------------
 	// - VARIABLES
 	// ---------------------------------------------------------------
@@ -138,9 +157,43 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 	private DICOMViewerData mDICOMViewerData = null;
 	
 	// IS IMAGE TO BE ROTATED
-	
+	/**
+	 * Set if the image is rotated by 90 degrees. The rotation
+	 * is applied by the transformation matrix.
+	 */
 	private boolean mIsRotate = false;
 	
+	// RENDERING
+	/**
+	 * The displayed bitmap. It is the render target of the
+	 * image and it is filled in place while the size of the
+	 * images does not change.
+	 */
+	private Bitmap mBitmap = null;
+	
+	/**
+	 * The bitmap of the preview that is displayed instead of
+	 * the image while the user scrubs through the series, or
+	 * null.
+	 */
+	private Bitmap mPreviewBitmap = null;
+	
+	/**
+	 * The transformation matrix of the preview. It stretches
+	 * the preview over the image.
+	 */
+	private final Matrix mPreviewMatrix = new Matrix();
+	
+	/**
+	 * The bitmaps of the previous image sizes.
+	 */
+	private final BitmapPool mBitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+	
+	/**
+	 * The renderer that converts the image in ARGB pixels.
+	 */
+	private final DICOMImageRenderer mRenderer = new DICOMImageRenderer();
+	
 	// CONTEXT
 	/**
 	 * Context.
@@ -234,6 +287,23 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 		
 	}
 	
+	// This function is override to stop the workers of the
+	// renderer when the view is no longer displayed
+	/* (non-Javadoc)
+	 * @see android.view.View#onDetachedFromWindow()
+	 */
+	@Override
+	protected void onDetachedFromWindow() {
+		
+		mRenderer.release();
+		
+		mPreviewBitmap = null;
+		mBitmapPool.clear();
+		
+		super.onDetachedFromWindow();
+		
+	}
+	
 	
 	// ---------------------------------------------------------------
 	// + <implement> FUNCTIONS
@@ -325,8 +395,8 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 					mTouchOldScaleFactor = mScaleFactor;
 					
 					// Compute the midPoint
-					if ((mImage.getWidth() * mScaleFactor) <= getMeasuredWidth()
-							|| (mImage.getHeight() * mScaleFactor) <= getMeasuredHeight()) {
+					if ((getDisplayedWidth() * mScaleFactor) <= getMeasuredWidth()
+							|| (getDisplayedHeight() * mScaleFactor) <= getMeasuredHeight()) {
 						
 						mTouchMidPoint = new PointF(getMeasuredWidth() / 2f,
 								getMeasuredHeight() / 2f);
@@ -487,13 +557,13 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 					
 				} else {
 					
-					imageWidth = mImage.getWidth();
-					imageHeight = mImage.getHeight();
+					imageWidth = getDisplayedWidth();
+					imageHeight = getDisplayedHeight();
 					
 				}
 				
-				float scaledImageWidth = (float) mImage.getWidth() * mScaleFactor;
-				float scaledImageHeight = (float) mImage.getHeight() * mScaleFactor;
+				float scaledImageWidth = (float) getDisplayedWidth() * mScaleFactor;
+				float scaledImageHeight = (float) getDisplayedHeight() * mScaleFactor;
 				
 				// If the image fit int the window => fit in the window
 				if (scaledImageWidth <= imageWidth
@@ -521,6 +591,20 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 					// Apply the image matrix transformation on these points
 					mMatrix.mapPoints(dstRectPoints, srcRectPoints);
 					
+					// The rotation swaps the corners: sort the coordinates
+					// such that the first point is the upper left corner
+					if (dstRectPoints[0] > dstRectPoints[2]) {
+						float x = dstRectPoints[0];
+						dstRectPoints[0] = dstRectPoints[2];
+						dstRectPoints[2] = x;
+					}
+					
+					if (dstRectPoints[1] > dstRectPoints[3]) {
+						float y = dstRectPoints[1];
+						dstRectPoints[1] = dstRectPoints[3];
+						dstRectPoints[3] = y;
+					}
+					
 					// Init transalation variables
 					float dx = 0f;
 					float dy = 0f;
@@ -629,57 +713,98 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 	 */
 	public void draw() {
 		
-		// Declaration output pixels vector
-		int[] outputPixels = new int[mImage.getDataLength()];
+		endPreview();
 		
-		// Get the gray scale window width
-		int windowWidth = mDICOMViewerData.getWindowWidth();
+		// Fill the render target by strip
+		drawRows(mImage, getRenderTarget(), 0, mImage.getHeight());
 		
-		// Compute the window offset x the number of gray levels (256)
-		int windowOffset = ((2 * mDICOMViewerData.getWindowCenter() - windowWidth)) / 2;
+		invalidate();
 		
-		switch(mDICOMViewerData.getCLUTMode()) {
+	}
+	
+	/**
+	 * Start to display an image whose rows are being decoded.
+	 * The image is shown in black and its rows are drawn by
+	 * drawDecodedRows as soon as they are decoded. The image
+	 * is drawn with draw once it is decoded.
+	 * 
+	 * @param image Image whose data are allocated.
+	 */
+	public void startProgressiveDraw(LISAImageGray16Bit image) {
 		
-		case CLUTMode.NORMAL:
-			computeGrayscaleRGBImage(windowWidth, windowOffset, outputPixels);
-			break;
-			
-		case CLUTMode.INVERSE:
-			computeInverseGrayscaleRGBImage(windowWidth, windowOffset, outputPixels);
-			break;
+		mImage = image;
+		
+		endPreview();
+		
+		getRenderTarget().eraseColor(Color.BLACK);
+		
+		invalidate();
+		
+	}
+	
+	/**
+	 * Draw rows of the image displayed progressively.
+	 * 
+	 * @param image The image whose rows are decoded.
+	 * @param firstRow Index of the first decoded row.
+	 * @param rowCount Number of decoded rows.
+	 */
+	public void drawDecodedRows(LISAImageGray16Bit image, int firstRow, int rowCount) {
+		
+		// Another image is displayed
+		if (mBitmap == null || image != mImage)
+			return;
+		
+		drawRows(mImage, mBitmap, firstRow, rowCount);
+		
+		invalidate();
+		
+	}
+	
+	/**
+	 * Display a downsampled image of another slice in place
+	 * of the image, with the window and the CLUT of the image.
+	 * The preview is stretched over the image and is shown
+	 * until the image is drawn again.
+	 * 
+	 * @param preview
+	 */
+	public void drawPreview(LISAImageGray16Bit preview) {
+		
+		if (mImage == null)
+			return;
+		
+		int width = preview.getWidth();
+		int height = preview.getHeight();
+		
+		if (mPreviewBitmap == null || mPreviewBitmap.getWidth() != width
+				|| mPreviewBitmap.getHeight() != height) {
 			
-		case CLUTMode.RAINBOW:
-			computeRainbowRGBImage(windowWidth, windowOffset, outputPixels);
-			break;
+			mBitmapPool.release(mPreviewBitmap);
+			mPreviewBitmap = mBitmapPool.acquire(width, height,
+					Bitmap.Config.ARGB_8888);
 			
-		};
-		
-		// Create the bitmap
-		Bitmap imageBitmap = Bitmap.createBitmap(outputPixels, mImage.getWidth(),
-				mImage.getHeight(), Bitmap.Config.ARGB_8888);
-		
-		// Check if image is to be rotated 90 degrees
-		if (mIsRotate) {
-			Matrix m = new Matrix();
-			m.postRotate(90);
-			imageBitmap = Bitmap.createBitmap(imageBitmap,
-					0,	0, mImage.getWidth(), mImage.getHeight(), 
-					m, true);
 		}
 		
+		drawRows(preview, mPreviewBitmap, 0, height);
+		
+		mPreviewMatrix.set(mMatrix);
+		mPreviewMatrix.preScale((float) mImage.getWidth() / width,
+				(float) mImage.getHeight() / height);
+		
+		setImageBitmap(mPreviewBitmap);
+		setImageMatrix(mPreviewMatrix);
 		
-		// Set the image
-		setImageBitmap(imageBitmap);
+		invalidate();
 		
 	}
 	
 	/**
-	 * Should this image be rotated?
-	 * @param rotate
+	 * Rotate the image by 90 degrees or cancel the rotation.
 	 */
 	public void toggleRotate() {
 		mIsRotate = !mIsRotate;
-		draw();
+		resetSize();
 	}
 	
 	/**
@@ -707,9 +832,9 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 	 */
 	public void fitIn() {
 		
-		// Get the image width and height
-		int imageWidth = mImage.getWidth();
-		int imageHeight = mImage.getHeight();
+		// Get the displayed image width and height
+		int imageWidth = getDisplayedWidth();
+		int imageHeight = getDisplayedHeight();
 		
 		// Variable declaration
 		float dx = 0f;
@@ -744,6 +869,7 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 
 		// Set the transformation
 		mMatrix.setScale(mScaleFactor, mScaleFactor, 0f, 0f);
+		postRotate();
 		mMatrix.postTranslate(dx, dy);
 
 		// Set the Image Matrix
@@ -756,9 +882,9 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 	 */
 	public void realSize() {
 		
-		// Get the image width and height
-		int imageWidth = mImage.getWidth();
-		int imageHeight = mImage.getHeight();
+		// Get the displayed image width and height
+		int imageWidth = getDisplayedWidth();
+		int imageHeight = getDisplayedHeight();
 		
 		// Compute the translation
 		float dx = ((float) getMeasuredWidth() - imageWidth) / 2f;
@@ -771,6 +897,7 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 
 		// Set the transformation
 		mMatrix.setScale(mScaleFactor, mScaleFactor, 0f, 0f);
+		postRotate();
 		mMatrix.postTranslate(dx, dy);
 
 		// Set the Image Matrix
@@ -786,8 +913,8 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 	public void center() {
 		
 		// Scaled image sizes.
-		float scaledImageWidth = (float) mImage.getWidth() * mScaleFactor;
-		float scaledImageHeight = (float) mImage.getHeight() * mScaleFactor;
+		float scaledImageWidth = (float) getDisplayedWidth() * mScaleFactor;
+		float scaledImageHeight = (float) getDisplayedHeight() * mScaleFactor;
 		
 		if (scaledImageWidth <= getMeasuredWidth()
 				&& scaledImageHeight <= getMeasuredHeight()) {
@@ -799,6 +926,7 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 			mMatrix.set(getImageMatrix());
 			
 			mMatrix.setScale(mScaleFactor, mScaleFactor, 0f, 0f);
+			postRotate();
 			mMatrix.postTranslate(dx, dy);
 			
 			
@@ -833,7 +961,7 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 	 * @return Image scaled width.
 	 */
 	public float getScaledImageWidth() {
-		return mImage.getWidth() * mScaleFactor;
+		return getDisplayedWidth() * mScaleFactor;
 	}
 	
 	/**
@@ -842,7 +970,7 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 	 * @return Image scaled height.
 	 */
 	public float getScaledImageHeight() {
-		return mImage.getHeight() * mScaleFactor;
+		return getDisplayedHeight() * mScaleFactor;
 	}
 	
 	/**
@@ -905,102 +1033,108 @@ public class DICOMImageView extends ImageView implements OnTouchListener {
 	}
 	
 	/**
-	 * Compute the RGB image using a grayscale LUT.
-	 * 
-	 * @param windowWidth
-	 * @param windowOffset
-	 * @param outputPixels
+	 * @return Width of the image once it is rotated.
 	 */
-	private void computeGrayscaleRGBImage(int windowWidth, int windowOffset,
-			int[] outputPixels) {
-		
-		// The gray level of the current pixel
-		int pixelGrayLevel = 0;
+	private int getDisplayedWidth() {
+		return mIsRotate ? mImage.getHeight() : mImage.getWidth();
+	}
+	
+	/**
+	 * @return Height of the image once it is rotated.
+	 */
+	private int getDisplayedHeight() {
+		return mIsRotate ? mImage.getWidth() : mImage.getHeight();
+	}
+	
+	/**
+	 * Rotate the image by 90 degrees around its upper left
+	 * corner in the transformation matrix if it is rotated,
+	 * and translate it back in the positive quadrant. It must
+	 * be called after the scale is set.
+	 */
+	private void postRotate() {
 		
-		int[] mImageData = mImage.getData();
+		if (!mIsRotate)
+			return;
 		
-		// Compute the outputPixels vector (matrix)
-		for (int i = 0; i < mImageData.length; i++) {		
-				pixelGrayLevel = (256 * (mImageData[i] - windowOffset)
-					/ windowWidth);
-				
-				pixelGrayLevel = (pixelGrayLevel > 255) ? 255 :
-					((pixelGrayLevel < 0) ? 0 : pixelGrayLevel);
-				
-				outputPixels[i] = (0xFF << 24) | // alpha
-					(pixelGrayLevel << 16) | // red
-					(pixelGrayLevel << 8) | // green
-					pixelGrayLevel; // blue
-		}
+		mMatrix.postRotate(90f);
+		mMatrix.postTranslate(mImage.getHeight() * mScaleFactor, 0f);
 		
 	}
 	
 	/**
-	 * Compute the RGB image using an inverse grayscale LUT.
-	 * 
-	 * @param windowWidth
-	 * @param windowOffset
-	 * @param outputPixels
+	 * Display the image instead of the preview and give back
+	 * the bitmap of the preview to the pool.
 	 */
-	private void computeInverseGrayscaleRGBImage(int windowWidth, int windowOffset,
-			int[] outputPixels) {
+	private void endPreview() {
 		
-		// The gray level of the current pixel
-		int pixelGrayLevel = 0;
+		if (mPreviewBitmap == null)
+			return;
 		
-		int[] mImageData = mImage.getData();
+		setImageBitmap(mBitmap);
+		setImageMatrix(mMatrix);
 		
-		// Compute the outputPixels vector (matrix)
-		for (int i = 0; i < mImageData.length; i++) {		
-				pixelGrayLevel = 255 - (256 * (mImageData[i] - windowOffset)
-					/ windowWidth);
-				
-				pixelGrayLevel = (pixelGrayLevel > 255) ? 255 :
-					((pixelGrayLevel < 0) ? 0 : pixelGrayLevel);
-				
-				outputPixels[i] = (0xFF << 24) | // alpha
-					(pixelGrayLevel << 16) | // red
-					(pixelGrayLevel << 8) | // green
-					pixelGrayLevel; // blue
-		}
+		mBitmapPool.release(mPreviewBitmap);
+		mPreviewBitmap = null;
 		
 	}
 	
 	/**
-	 * Compute the RGB image using a rainbow CLUT.
+	 * Get the bitmap in which the image is drawn. The displayed
+	 * bitmap is reused if it has the size of the image, else a
+	 * bitmap is taken from the pool and displayed, and the
+	 * previous one is given back to the pool.
 	 * 
-	 * @param windowWidth
-	 * @param windowOffset
-	 * @param outputPixels
+	 * @return The render target that has the size of the image.
 	 */
-	private void computeRainbowRGBImage(int windowWidth, int windowMin, int[] outputPixels) {	
+	private Bitmap getRenderTarget() {
 		
-		float[] pixelHSV = new float[3];
+		if (mBitmap != null && !mBitmap.isRecycled()
+				&& mBitmap.getWidth() == mImage.getWidth()
+				&& mBitmap.getHeight() == mImage.getHeight())
+			return mBitmap;
 		
-		pixelHSV[0] = 0f;
-		pixelHSV[1] = 240f;
-		pixelHSV[2] = 1f;
+		Bitmap previousBitmap = mBitmap;
 		
-		float mult = 0;
+		mBitmap = mBitmapPool.acquire(mImage.getWidth(), mImage.getHeight(),
+				Bitmap.Config.ARGB_8888);
 		
-		int[] mImageData = mImage.getData();
+		setImageBitmap(mBitmap);
 		
-		// Compute the outputPixels vector (matrix)
-		for (int i = 0; i < mImageData.length; i++) {
-			
-			mult = (mImageData[i] - windowMin) / (float) windowWidth;
-			
-			mult = (mult > 1f) ? 1f :
-				((mult < 0f) ? 0f : mult);
+		mBitmapPool.release(previousBitmap);
+		
+		return mBitmap;
+		
+	}
+	
+	/**
+	 * Convert rows of the image with the window and the CLUT
+	 * of the DICOMViewer data and copy them in a bitmap. The
+	 * rows are converted by strip in the reused buffer of the
+	 * renderer, which splits each strip between its workers.
+	 * 
+	 * @param image
+	 * @param bitmap The bitmap that has the size of the image.
+	 * @param firstRow Index of the first row.
+	 * @param rowCount Number of rows.
+	 */
+	private void drawRows(LISAImageGray16Bit image, Bitmap bitmap,
+			int firstRow, int rowCount) {
+		
+		int width = image.getWidth();
+		int stripRowCount = Math.max(1, Math.min(rowCount, STRIP_PIXEL_COUNT / width));
+		
+		// Compute the lookup table if the window or the CLUT changed
+		mRenderer.setWindow(image, mDICOMViewerData.getWindowWidth(),
+				mDICOMViewerData.getWindowCenter(), mDICOMViewerData.getPalette());
+		
+		for (int row = firstRow; row < firstRow + rowCount; row += stripRowCount) {
 			
-			pixelHSV[0] = 300f - 360f * mult;
-			pixelHSV[0] = (pixelHSV[0] > 300f) ? 300f :
-				(pixelHSV[0] < -60f) ? 360-60f : pixelHSV[0];
-				
+			int count = Math.min(stripRowCount, firstRow + rowCount - row);
 			
-			pixelHSV[2] = 4f * mult;
+			int[] outputPixels = mRenderer.renderRows(image, row, count);
 			
-			outputPixels[i] = Color.HSVToColor(0xFF, pixelHSV);
+			bitmap.setPixels(outputPixels, 0, width, 0, row, width, count);
 			
 		}
 		
@@ -36,6 +36,7 @@ package be.ac.ulb.lisa.idot.android.dicomviewer.view;
 import be.ac.ulb.lisa.idot.android.dicomviewer.R;
 import be.ac.ulb.lisa.idot.android.dicomviewer.data.DICOMViewerData;
 import be.ac.ulb.lisa.idot.android.dicomviewer.mode.CLUTMode;
+import be.ac.ulb.lisa.idot.android.dicomviewer.render.Palette;
 import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
 
 import android.content.Context;
@@ -70,6 +71,12 @@ public class GrayscaleWindowView extends ImageView {
 	 */
 	private int mWindowDrawable = R.drawable.gradient_bar;
 	
+	/**
+	 * The window bitmap of the custom CLUT, or null if
+	 * the window drawable is used.
+	 */
+	private Bitmap mPaletteBitmap = null;
+	
 	
 	// ---------------------------------------------------------------
 	// + CONSTRUCTORS
@@ -211,7 +218,7 @@ public class GrayscaleWindowView extends ImageView {
 		paint.setStrokeWidth(1);
 		
 		// Get the grayscale bitmap
-		Bitmap grayscaleBitmap =
+		Bitmap grayscaleBitmap = (mPaletteBitmap != null) ? mPaletteBitmap :
 			BitmapFactory.decodeResource(this.getResources(), mWindowDrawable);
 		
 		// Compute the destination rect for the bitmap
@@ -320,6 +327,8 @@ public class GrayscaleWindowView extends ImageView {
 		if (mDICOMViewerData == null)
 			return;
 		
+		mPaletteBitmap = null;
+		
 		switch(mDICOMViewerData.getCLUTMode()) {
 		
 		default:
@@ -334,6 +343,21 @@ public class GrayscaleWindowView extends ImageView {
 		case CLUTMode.RAINBOW:
 			mWindowDrawable = R.drawable.gradient_color_bar;
 			break;
+			
+		case CLUTMode.CUSTOM:
+			mWindowDrawable = R.drawable.gradient_bar;
+			
+			// The bar goes from the last color on the top
+			// to the first color on the bottom
+			Palette palette = mDICOMViewerData.getPalette();
+			int[] colors = new int[palette.getLength()];
+			
+			for (int i = 0; i < colors.length; i++)
+				colors[i] = palette.getColor(colors.length - 1 - i);
+			
+			mPaletteBitmap = Bitmap.createBitmap(colors, 1, colors.length,
+					Bitmap.Config.ARGB_8888);
+			break;
 		
 		};
 		
@@ -33,13 +33,17 @@
 
 package be.ac.ulb.lisa.idot.dicom;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InputStream;
 
 
 /**
  * DICOM tag.
  * 
+ * The DICOM tags of the standard data dictionary are
+ * shared: createDICOMTag returns the same DICOMTag object
+ * for a tag each time it is possible.
+ * 
  * @author Pierre Malarme
  * @version 1.0
  *
@@ -47,106 +51,26 @@ import java.util.Map;
 public class DICOMTag {
 	
 	// ---------------------------------------------------------------
-	// + <static> VARIABLE
+	// - <static> VARIABLE
 	// ---------------------------------------------------------------
 	
 	/**
-	 * Map of defined tag.
+	 * Maximum number of DICOM tags that are kept for the
+	 * unknown and private tags, and for the known tags read
+	 * with another value representation.
 	 */
-	public static final Map<Integer, DICOMTag> c = new HashMap<Integer, DICOMTag>() {
-		
-		/**
-		 * Eclipse generated Serial version. 
-		 */
-		private static final long serialVersionUID = -8652499398694995133L;
-		// To generate each time this hashmap is modified.
-
-	{
-		
-	    put(0x00020000, new DICOMTag(0x00020000,
-	    		"File Meta Information Group Length",
-	    		DICOMValueRepresentation.c.get("UL")));
-	    
-	    put(0x00020001, new DICOMTag(0x00020001,
-	    		"File Meta Information Group Length",
-	    		DICOMValueRepresentation.c.get("OB")));
-	    
-	    put(0x00020002, new DICOMTag(0x00020002,
-	    		"Media Storage SOP Class UID",
-	    		DICOMValueRepresentation.c.get("UI")));
-	    
-	    put(0x00020003, new DICOMTag(0x00020003,
-	    		"Media Storage SOP Instance UID",
-	    		DICOMValueRepresentation.c.get("UI")));
-	    
-	    put(0x00020010, new DICOMTag(0x00020010,
-	    		"TransferSyntax UID",
-	    		DICOMValueRepresentation.c.get("UI")));
-	    
-	    put(0x00020012, new DICOMTag(0x00020012,
-	    		"Implementation Class UID",
-	    		DICOMValueRepresentation.c.get("UI")));
-	    
-	    put(0x00020013, new DICOMTag(0x00020013,
-	    		"Implementation Version Name",
-	    		DICOMValueRepresentation.c.get("SH")));
-	    
-	    put(0x00020016, new DICOMTag(0x00020016,
-	    		"Source Application Entity",
-	    		DICOMValueRepresentation.c.get("AE")));
-	    
-	    put(0x00020100, new DICOMTag(0x00020100,
-	    		"Private Information creator UID",
-	    		DICOMValueRepresentation.c.get("UI")));
-	    
-	    put(0x00020102, new DICOMTag(0x00020102,
-	    		"Private Information creator UID",
-	    		DICOMValueRepresentation.c.get("OB")));
-	    
-	    put(0x00280002, new DICOMTag(0x00280002,
-	    		"Samples per pixel",
-	    		DICOMValueRepresentation.c.get("US")));
-	    
-	    put(0x00280010, new DICOMTag(0x00280010,
-	    		"Rows",
-	    		DICOMValueRepresentation.c.get("US")));
-	    
-	    put(0x00280011, new DICOMTag(0x00280011,
-	    		"Columns",
-	    		DICOMValueRepresentation.c.get("US")));
-	    
-	    put(0x00280100, new DICOMTag(0x00280100,
-	    		"Bits allocated",
-	    		DICOMValueRepresentation.c.get("US")));
-	    
-	    put(0x00280101, new DICOMTag(0x00280101,
-	    		"Bits stored",
-	    		DICOMValueRepresentation.c.get("US")));
-	    
-	    put(0x00280102, new DICOMTag(0x00280102,
-	    		"High Bit",
-	    		DICOMValueRepresentation.c.get("US")));
-	    
-	    put(0x00280103, new DICOMTag(0x00280103,
-	    		"Pixel Representation",
-	    		DICOMValueRepresentation.c.get("US")));
-	    
-	    put(0x7fe00010, new DICOMTag(0x7fe00010,
-	    		"Pixel Data",
-	    		DICOMValueRepresentation.c.get("UN")));
-	    
-	    put(0xfffee000, new DICOMTag(0xfffee000,
-	    		"Item",
-	    		DICOMValueRepresentation.c.get("UN")));
-	    
-	    put(0xfffee00d, new DICOMTag(0xfffee00d,
-	    		"Item Delimitation Tag",
-	    		DICOMValueRepresentation.c.get("UN")));
-	    
-	    put(0xfffee0dd, new DICOMTag(0xfffee0dd,
-	    		"Sequence Delimitation Tag",
-	    		DICOMValueRepresentation.c.get("UN")));
-	}};
+	private static final int MAX_VARIANT_COUNT = 4096;
+	
+	/**
+	 * Dictionary of defined tag.
+	 */
+	private static final DICOMTagDictionary DICTIONARY = createDictionary();
+	
+	/**
+	 * Dictionary of the DICOM tags that are not in DICTIONARY
+	 * or that differ from it by their value representation.
+	 */
+	private static final DICOMTagDictionary VARIANTS = new DICOMTagDictionary(256);
 	
 	
 	// ---------------------------------------------------------------
@@ -168,6 +92,11 @@ public class DICOMTag {
 	 */
 	private final DICOMValueRepresentation mVR;
 	
+	/**
+	 * Tag keyword.
+	 */
+	private final String mKeyword;
+	
 	
 	// ---------------------------------------------------------------
 	// + <static> FUNCTIONS
@@ -181,24 +110,13 @@ public class DICOMTag {
 	 */
 	public static final DICOMTag createDICOMTag(int tag) {
 		
+		DICOMTag dicomTag = DICTIONARY.get(tag);
+		
 		// If the tag is known by Droid Dicom Viewer
-		if (c.containsKey(tag)) {
-			
-			return c.get(tag);
-			
-		} else {
-			
-			int tagGroup = (tag >> 16) & 0xff;
-			
-			// If the tagGroup is an odd Number, the tag is
-			// Private
-			String name = (tagGroup % 2 == 0) ? "Unknown" : "Private";
-			
-			DICOMValueRepresentation VR = DICOMValueRepresentation.c.get("UN");
-			
-			return new DICOMTag(tag, name, VR);
-			
-		}
+		if (dicomTag != null)
+			return dicomTag;
+		
+		return getVariant(tag, DICOMValueRepresentation.UNKNOWN);
 		
 	}
 	
@@ -212,28 +130,186 @@ public class DICOMTag {
 	 */
 	public static final DICOMTag createDICOMTag(int tag, DICOMValueRepresentation VR) {
 		
-		String name;
+		DICOMTag dicomTag = DICTIONARY.get(tag);
 		
-		// If the tag is known by Droid Dicom Viewer
-		if (c.containsKey(tag)) {
+		// If the VR is the same as a tag in memory, return this tag
+		if (dicomTag != null && dicomTag.mVR == VR)
+			return dicomTag;
+		
+		return getVariant(tag, VR);
+		
+	}
+	
+	/**
+	 * @return The dictionary of defined tag. It must not
+	 * be modified.
+	 */
+	public static final DICOMTagDictionary getDictionary() {
+		return DICTIONARY;
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Get the DICOM tag of a tag that is not in the dictionary
+	 * or that has another value representation. The DICOM tag
+	 * is created only the first time.
+	 * 
+	 * @param tag Tag integer value.
+	 * @param VR Value representation.
+	 * @return
+	 */
+	private static DICOMTag getVariant(int tag, DICOMValueRepresentation VR) {
+		
+		synchronized (VARIANTS) {
+			
+			DICOMTag dicomTag = VARIANTS.get(tag);
+			
+			if (dicomTag != null && dicomTag.mVR == VR)
+				return dicomTag;
+			
+			String name;
+			String keyword;
 			
-			// If the VR is the same as a tag in memory, return this tag
-			if (VR.getVR().equals(c.get(tag).getValueRepresentation().getVR()))
-				return c.get(tag);
+			DICOMTag knownTag = DICTIONARY.get(tag);
 			
-			name = c.get(tag).getName();
+			// If the tag is known by Droid Dicom Viewer
+			if (knownTag != null) {
+				
+				name = knownTag.mName;
+				keyword = knownTag.mKeyword;
+				
+			} else {
+				
+				int tagGroup = (tag >> 16) & 0xff;
+				
+				// If the tagGroup is an odd Number, the tag is
+				// Private
+				name = (tagGroup % 2 == 0) ? "Unknown" : "Private";
+				keyword = null;
+				
+			}
 			
-		} else {
+			dicomTag = new DICOMTag(tag, name, VR, keyword);
 			
-			int tagGroup = (tag >> 16) & 0xff;
+			if (VARIANTS.size() >= MAX_VARIANT_COUNT)
+				VARIANTS.clear();
+			
+			VARIANTS.put(dicomTag);
+			
+			return dicomTag;
+			
+		}
+		
+	}
+	
+	/**
+	 * Create the dictionary of defined tag from the standard
+	 * DICOM data dictionary. If the data dictionary cannot be
+	 * read, the dictionary contains the tags needed to read an
+	 * image.
+	 * 
+	 * @return The dictionary of defined tag.
+	 */
+	private static DICOMTagDictionary createDictionary() {
+		
+		DICOMTagDictionary dictionary = new DICOMTagDictionary(4096);
+		
+		InputStream inputStream =
+			DICOMTag.class.getResourceAsStream(DICOMTagDictionary.RESOURCE_NAME);
+		
+		if (inputStream != null) {
 			
-			// If the tagGroup is an odd Number, the tag is
-			// Private
-			name = (tagGroup % 2 == 0) ? "Unknown" : "Private";
+			try {
+				
+				dictionary.load(inputStream);
+				
+				return dictionary;
+				
+			} catch (IOException ex) {
+				
+				dictionary.clear();
+				
+			} finally {
+				
+				try {
+					inputStream.close();
+				} catch (IOException ex) {
+					// Ignore
+				}
+				
+			}
 			
 		}
 		
-		return new DICOMTag(tag, name, VR);
+		dictionary.put(new DICOMTag(0x00020000,
+				"File Meta Information Group Length",
+				DICOMValueRepresentation.c.get("UL")));
+		dictionary.put(new DICOMTag(0x00020001,
+				"File Meta Information Version",
+				DICOMValueRepresentation.c.get("OB")));
+		dictionary.put(new DICOMTag(0x00020002,
+				"Media Storage SOP Class UID",
+				DICOMValueRepresentation.c.get("UI")));
+		dictionary.put(new DICOMTag(0x00020003,
+				"Media Storage SOP Instance UID",
+				DICOMValueRepresentation.c.get("UI")));
+		dictionary.put(new DICOMTag(0x00020010,
+				"TransferSyntax UID",
+				DICOMValueRepresentation.c.get("UI")));
+		dictionary.put(new DICOMTag(0x00020012,
+				"Implementation Class UID",
+				DICOMValueRepresentation.c.get("UI")));
+		dictionary.put(new DICOMTag(0x00020013,
+				"Implementation Version Name",
+				DICOMValueRepresentation.c.get("SH")));
+		dictionary.put(new DICOMTag(0x00020016,
+				"Source Application Entity",
+				DICOMValueRepresentation.c.get("AE")));
+		dictionary.put(new DICOMTag(0x00020100,
+				"Private Information creator UID",
+				DICOMValueRepresentation.c.get("UI")));
+		dictionary.put(new DICOMTag(0x00020102,
+				"Private Information",
+				DICOMValueRepresentation.c.get("OB")));
+		dictionary.put(new DICOMTag(0x00280002,
+				"Samples per pixel",
+				DICOMValueRepresentation.c.get("US")));
+		dictionary.put(new DICOMTag(0x00280010,
+				"Rows",
+				DICOMValueRepresentation.c.get("US")));
+		dictionary.put(new DICOMTag(0x00280011,
+				"Columns",
+				DICOMValueRepresentation.c.get("US")));
+		dictionary.put(new DICOMTag(0x00280100,
+				"Bits allocated",
+				DICOMValueRepresentation.c.get("US")));
+		dictionary.put(new DICOMTag(0x00280101,
+				"Bits stored",
+				DICOMValueRepresentation.c.get("US")));
+		dictionary.put(new DICOMTag(0x00280102,
+				"High Bit",
+				DICOMValueRepresentation.c.get("US")));
+		dictionary.put(new DICOMTag(0x00280103,
+				"Pixel Representation",
+				DICOMValueRepresentation.c.get("US")));
+		dictionary.put(new DICOMTag(0x7fe00010,
+				"Pixel Data",
+				DICOMValueRepresentation.c.get("UN")));
+		dictionary.put(new DICOMTag(0xfffee000,
+				"Item",
+				DICOMValueRepresentation.c.get("UN")));
+		dictionary.put(new DICOMTag(0xfffee00d,
+				"Item Delimitation Tag",
+				DICOMValueRepresentation.c.get("UN")));
+		dictionary.put(new DICOMTag(0xfffee0dd,
+				"Sequence Delimitation Tag",
+				DICOMValueRepresentation.c.get("UN")));
+		
+		return dictionary;
 		
 	}
 	
@@ -243,9 +319,14 @@ public class DICOMTag {
 	// ---------------------------------------------------------------
 	
 	public DICOMTag(int tag, String name, DICOMValueRepresentation VR) {
+		this(tag, name, VR, null);
+	}
+	
+	public DICOMTag(int tag, String name, DICOMValueRepresentation VR, String keyword) {
 		mTag = tag;
 		mName = name;
 		mVR = VR;
+		mKeyword = keyword;
 	}
 	
 	
@@ -298,6 +379,14 @@ public class DICOMTag {
 		return mName;
 	}
 
+	/**
+	 * @return Tag keyword or null if the tag is not in the
+	 * standard data dictionary.
+	 */
+	public String getKeyword() {
+		return mKeyword;
+	}
+
 	/**
 	 * @return Value representation.
 	 */
@@ -0,0 +1,281 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <DICOMTagDictionary.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.dicom;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * DICOM tag dictionary.
+ * 
+ * The dictionary maps a tag integer value to a DICOMTag
+ * in an open addressing hash table. A lookup costs one
+ * probe in most of the cases and does not allocate any
+ * object.
+ * 
+ * The dictionary is not synchronized.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class DICOMTagDictionary {
+	
+	// ---------------------------------------------------------------
+	// + <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Name of the resource that contains the standard
+	 * DICOM data dictionary.
+	 */
+	public static final String RESOURCE_NAME = "DICOMTagDictionary.txt";
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Tag integer values.
+	 */
+	private int[] mTags;
+	
+	/**
+	 * DICOM tags. A null entry is an empty slot.
+	 */
+	private DICOMTag[] mEntries;
+	
+	/**
+	 * Number of tags in the dictionary.
+	 */
+	private int mSize = 0;
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param expectedSize The expected number of tags.
+	 */
+	public DICOMTagDictionary(int expectedSize) {
+		
+		int capacity = 16;
+		
+		// The table is kept at most half full
+		while (capacity < 2 * expectedSize)
+			capacity <<= 1;
+		
+		mTags = new int[capacity];
+		mEntries = new DICOMTag[capacity];
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Get a DICOM tag.
+	 * 
+	 * @param tag Tag integer value.
+	 * @return The DICOM tag or null if the dictionary does
+	 * not contain the tag.
+	 */
+	public DICOMTag get(int tag) {
+		
+		int[] tags = mTags;
+		DICOMTag[] entries = mEntries;
+		int mask = tags.length - 1;
+		
+		for (int i = hash(tag) & mask; entries[i] != null; i = (i + 1) & mask)
+			if (tags[i] == tag)
+				return entries[i];
+		
+		return null;
+		
+	}
+	
+	/**
+	 * Put a DICOM tag in the dictionary. It replaces the
+	 * DICOM tag that has the same tag integer value.
+	 * 
+	 * @param dicomTag The DICOM tag to put.
+	 */
+	public void put(DICOMTag dicomTag) {
+		
+		if (2 * (mSize + 1) > mTags.length)
+			resize(mTags.length << 1);
+		
+		int tag = dicomTag.getTag();
+		int mask = mTags.length - 1;
+		int i = hash(tag) & mask;
+		
+		while (mEntries[i] != null) {
+			
+			if (mTags[i] == tag) {
+				mEntries[i] = dicomTag;
+				return;
+			}
+			
+			i = (i + 1) & mask;
+			
+		}
+		
+		mTags[i] = tag;
+		mEntries[i] = dicomTag;
+		mSize++;
+		
+	}
+	
+	/**
+	 * @return Number of tags in the dictionary.
+	 */
+	public int size() {
+		return mSize;
+	}
+	
+	/**
+	 * Remove all the tags of the dictionary.
+	 */
+	public void clear() {
+		
+		for (int i = 0; i < mEntries.length; i++)
+			mEntries[i] = null;
+		
+		mSize = 0;
+		
+	}
+	
+	/**
+	 * Load the data elements of a data dictionary. Each line
+	 * contains the tag in hexadecimal, the value representation,
+	 * the keyword and the name of a data element separated by
+	 * a tab. The empty lines and the lines that begin with '#'
+	 * are ignored.
+	 * 
+	 * @param inputStream Stream of the data dictionary.
+	 * @throws IOException
+	 */
+	public void load(InputStream inputStream) throws IOException {
+		
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(inputStream, "UTF-8"), 8192);
+		
+		String line;
+		
+		while ((line = reader.readLine()) != null) {
+			
+			if (line.length() == 0 || line.charAt(0) == '#')
+				continue;
+			
+			int VRStart = line.indexOf('\t') + 1;
+			int keywordStart = line.indexOf('\t', VRStart) + 1;
+			int nameStart = line.indexOf('\t', keywordStart) + 1;
+			
+			if (VRStart != 9 || keywordStart != VRStart + 3 || nameStart == 0)
+				throw new IOException("Invalid data dictionary line: " + line);
+			
+			int tag;
+			
+			try {
+				
+				tag = (int) Long.parseLong(line.substring(0, 8), 16);
+				
+			} catch (NumberFormatException ex) {
+				
+				throw new IOException("Invalid data dictionary tag: " + line);
+				
+			}
+			
+			DICOMValueRepresentation VR = DICOMValueRepresentation.get(
+					DICOMValueRepresentation.getCode(line.charAt(VRStart),
+							line.charAt(VRStart + 1)));
+			
+			put(new DICOMTag(tag, line.substring(nameStart), VR,
+					line.substring(keywordStart, nameStart - 1)));
+			
+		}
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Resize the table.
+	 * 
+	 * @param capacity The new capacity, a power of 2.
+	 */
+	private void resize(int capacity) {
+		
+		DICOMTag[] entries = mEntries;
+		
+		mTags = new int[capacity];
+		mEntries = new DICOMTag[capacity];
+		mSize = 0;
+		
+		for (int i = 0; i < entries.length; i++)
+			if (entries[i] != null)
+				put(entries[i]);
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Spread the bits of the tag: the group and the element
+	 * of the tags of a module are close to each other.
+	 * 
+	 * @param tag Tag integer value.
+	 * @return Hash of the tag.
+	 */
+	private static int hash(int tag) {
+		
+		int hash = tag * 0x9e3779b9;
+		
+		return hash ^ (hash >>> 16);
+		
+	}
+	
+}
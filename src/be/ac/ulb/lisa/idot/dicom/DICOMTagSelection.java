@@ -0,0 +1,158 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <DICOMTagSelection.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.dicom;
+
+import java.util.Arrays;
+
+/**
+ * Selection of DICOM tags.
+ * 
+ * The tags are kept sorted in the ascending order of the
+ * data elements of a data set (the tags are compared as
+ * unsigned integers) and are looked up by binary search.
+ * Because the data elements of a data set are ordered by
+ * increasing tag (PS 3.5-2009 7.1), a parser can stop as
+ * soon as it reads a tag that comes after the last tag
+ * of the selection.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class DICOMTagSelection {
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Sorted keys of the tags. A key is the tag with its sign
+	 * bit flipped such that the keys compare as the unsigned
+	 * tags.
+	 */
+	private final int[] mKeys;
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param tags Tag integer values of the selection.
+	 */
+	public DICOMTagSelection(int... tags) {
+		
+		int[] keys = new int[tags.length];
+		
+		for (int i = 0; i < tags.length; i++)
+			keys[i] = getKey(tags[i]);
+		
+		Arrays.sort(keys);
+		
+		// Remove the duplicates
+		int size = 0;
+		
+		for (int i = 0; i < keys.length; i++)
+			if (size == 0 || keys[size - 1] != keys[i])
+				keys[size++] = keys[i];
+		
+		if (size < keys.length) {
+			
+			int[] unique = new int[size];
+			System.arraycopy(keys, 0, unique, 0, size);
+			keys = unique;
+			
+		}
+		
+		mKeys = keys;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Check if the selection contains a tag.
+	 * 
+	 * @param tag Tag integer value.
+	 * @return
+	 */
+	public boolean contains(int tag) {
+		return Arrays.binarySearch(mKeys, getKey(tag)) >= 0;
+	}
+	
+	/**
+	 * Check if a tag comes after the last tag of the
+	 * selection in the data set order.
+	 * 
+	 * @param tag Tag integer value.
+	 * @return
+	 */
+	public boolean isAfterLast(int tag) {
+		return mKeys.length == 0 || getKey(tag) > mKeys[mKeys.length - 1];
+	}
+	
+	/**
+	 * @return Number of tags in the selection.
+	 */
+	public int size() {
+		return mKeys.length;
+	}
+	
+	/**
+	 * @param index Index of the tag in the selection.
+	 * @return Tag integer value.
+	 */
+	public int getTag(int index) {
+		return getKey(mKeys[index]);
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Flip the sign bit of a tag or of a key.
+	 * 
+	 * @param tag
+	 * @return
+	 */
+	private static int getKey(int tag) {
+		return tag ^ 0x80000000;
+	}
+	
+}
@@ -33,6 +33,8 @@
 
 package be.ac.ulb.lisa.idot.dicom;
 
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -106,6 +108,62 @@ public class DICOMValueRepresentation {
 	 */
 	@SuppressWarnings("rawtypes")
 	public static final Class SHORT = Short.class;
+	
+	// The codes of the value representations. A code is the
+	// value of the two characters of the value representation
+	// read as a big endian 16-bit integer.
+	
+	public static final int AE = 0x4145;
+	public static final int AS = 0x4153;
+	public static final int AT = 0x4154;
+	public static final int CS = 0x4353;
+	public static final int DA = 0x4441;
+	public static final int DS = 0x4453;
+	public static final int DT = 0x4454;
+	public static final int FL = 0x464c;
+	public static final int FD = 0x4644;
+	public static final int IS = 0x4953;
+	public static final int LO = 0x4c4f;
+	public static final int LT = 0x4c54;
+	public static final int OB = 0x4f42;
+	public static final int OF = 0x4f46;
+	public static final int OW = 0x4f57;
+	public static final int PN = 0x504e;
+	public static final int SH = 0x5348;
+	public static final int SL = 0x534c;
+	public static final int SQ = 0x5351;
+	public static final int SS = 0x5353;
+	public static final int ST = 0x5354;
+	public static final int TM = 0x544d;
+	public static final int UI = 0x5549;
+	public static final int UL = 0x554c;
+	public static final int UN = 0x554e;
+	public static final int US = 0x5553;
+	public static final int UT = 0x5554;
+	
+	// The flags of the value representations.
+	
+	/**
+	 * The value length is coded on 2 bytes in an
+	 * explicit VR data element.
+	 */
+	public static final int FLAG_VALUE_LENGTH_ON_2_BYTES = 0x1;
+	
+	/**
+	 * The value is a sequence of items.
+	 */
+	public static final int FLAG_SEQUENCE = 0x2;
+	
+	/**
+	 * The value is a text coded with the specific
+	 * character set.
+	 */
+	public static final int FLAG_SPECIFIC_CHARSET = 0x4;
+	
+	/**
+	 * The value is a byte or word string.
+	 */
+	public static final int FLAG_OTHER = 0x8;
 
 	
 	/**
@@ -121,7 +179,7 @@ public class DICOMValueRepresentation {
 	{
 		put("AE", new DICOMValueRepresentation("AE", "Application Entity", STRING, 16, false));
 		put("AS", new DICOMValueRepresentation("AS", "Age String", STRING, 4, true));
-		put("AT", new DICOMValueRepresentation("AS", "Attribute Tag", INT, 4, true));
+		put("AT", new DICOMValueRepresentation("AT", "Attribute Tag", INT, 4, true));
 		put("CS", new DICOMValueRepresentation("CS", "Code String", STRING, 16, true));
 		put("DA", new DICOMValueRepresentation("DA", "Date", STRING, 18, false));
 		// TODO DICOM 3.5-2009 page 25 : In the context of a Query with range matching
@@ -163,6 +221,22 @@ public class DICOMValueRepresentation {
 	    
 	}};
 	
+	/**
+	 * Unknown value representation.
+	 */
+	public static final DICOMValueRepresentation UNKNOWN = c.get("UN");
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLE
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Table of the value representations indexed by the index
+	 * of their code.
+	 */
+	private static final DICOMValueRepresentation[] TABLE = createTable();
+	
 	
 	// ---------------------------------------------------------------
 	// - VARIABLE
@@ -196,6 +270,16 @@ public class DICOMValueRepresentation {
 	 */
 	private final boolean mIsFixedByteCount;
 	
+	/**
+	 * Value representation code.
+	 */
+	private final int mCode;
+	
+	/**
+	 * Value representation flags.
+	 */
+	private final int mFlags;
+	
 	
 	// ---------------------------------------------------------------
 	// - CONSTRUCTORS
@@ -234,6 +318,199 @@ public class DICOMValueRepresentation {
 		mReturnType = returnType;
 		mMaxByteCount = maxByteCount;
 		mIsFixedByteCount = isFixedByteCount;
+		mCode = getCode(VR.charAt(0), VR.charAt(1));
+		mFlags = getFlags(mCode);
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Get the code of a value representation from its
+	 * two characters.
+	 * 
+	 * @param first First character.
+	 * @param second Second character.
+	 * @return The value representation code.
+	 */
+	public static int getCode(int first, int second) {
+		return (first & 0xff) << 8 | (second & 0xff);
+	}
+	
+	/**
+	 * Get the value representation of a code.
+	 * 
+	 * @param code Value representation code.
+	 * @return The value representation or UN if the code
+	 * is unknown.
+	 */
+	public static DICOMValueRepresentation get(int code) {
+		
+		int index = getIndex(code);
+		
+		if (index < 0 || TABLE[index] == null)
+			return UNKNOWN;
+		
+		return TABLE[index];
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Get the index of a code in the table. The two
+	 * characters must be upper case letters.
+	 * 
+	 * @param code
+	 * @return The index or -1 if the code is invalid.
+	 */
+	private static int getIndex(int code) {
+		
+		int first = (code >> 8) - 'A';
+		int second = (code & 0xff) - 'A';
+		
+		if (first < 0 || first >= 26 || second < 0 || second >= 26)
+			return -1;
+		
+		return first * 26 + second;
+		
+	}
+	
+	/**
+	 * Decode a tag coded on 32 bit: the group and then the
+	 * element.
+	 * 
+	 * @param value
+	 * @return Tag integer value.
+	 */
+	private static int getTag(ByteBuffer value) {
+		
+		int group = value.getShort() & 0xffff;
+		
+		return group << 16 | (value.getShort() & 0xffff);
+		
+	}
+	
+	/**
+	 * Decode a text value. The text values that are coded with
+	 * the specific character set lose their trailing null
+	 * character, the other values are read as ASCII up to their
+	 * first null character.
+	 * 
+	 * @param value
+	 * @param charset Specific character set or null if the value
+	 * is not coded with the specific character set.
+	 * @return
+	 */
+	private static String decodeString(ByteBuffer value, String charset) {
+		
+		int length = value.remaining();
+		
+		byte[] bytes;
+		int offset;
+		
+		if (value.hasArray()) {
+			
+			bytes = value.array();
+			offset = value.arrayOffset() + value.position();
+			
+		} else {
+			
+			bytes = new byte[length];
+			offset = 0;
+			value.duplicate().get(bytes);
+			
+		}
+		
+		value.position(value.limit());
+		
+		try {
+			
+			if (charset != null) {
+				
+				// To avoid the null char : ASCII(0)
+				if (length > 0 && bytes[offset + length - 1] == 0x00)
+					length--;
+				
+				try {
+					
+					return new String(bytes, offset, length, charset);
+					
+				} catch (UnsupportedEncodingException ex) {
+					
+					return new String(bytes, offset, length, "ASCII");
+					
+				}
+				
+			}
+			
+			// To avoid the null char : ASCII(0)
+			for (int i = 0; i < length; i++)
+				if (bytes[offset + i] == 0x00)
+					return new String(bytes, offset, i, "ASCII");
+			
+			return new String(bytes, offset, length, "ASCII");
+			
+		} catch (UnsupportedEncodingException ex) {
+			
+			// ASCII is always supported
+			throw new IllegalStateException(ex);
+			
+		}
+		
+	}
+	
+	/**
+	 * @return The table of the value representations.
+	 */
+	private static DICOMValueRepresentation[] createTable() {
+		
+		DICOMValueRepresentation[] table = new DICOMValueRepresentation[26 * 26];
+		
+		for (DICOMValueRepresentation VR : c.values())
+			table[getIndex(VR.mCode)] = VR;
+		
+		return table;
+		
+	}
+	
+	/**
+	 * Get the flags of a value representation.
+	 * 
+	 * @param code Value representation code.
+	 * @return The flags.
+	 */
+	private static int getFlags(int code) {
+		
+		switch (code) {
+		
+		case AE: case AS: case AT: case CS: case DA: case DS:
+		case DT: case FD: case FL: case IS: case SL: case SS:
+		case TM: case UI: case UL: case US:
+			return FLAG_VALUE_LENGTH_ON_2_BYTES;
+			
+		case LO: case LT: case PN: case SH: case ST:
+			return FLAG_VALUE_LENGTH_ON_2_BYTES | FLAG_SPECIFIC_CHARSET;
+			
+		case UT:
+			return FLAG_SPECIFIC_CHARSET;
+			
+		case SQ:
+			return FLAG_SEQUENCE;
+			
+		case OB: case OF: case OW:
+			return FLAG_OTHER;
+			
+		default:
+			return 0;
+		
+		}
 		
 	}
 	
@@ -264,6 +541,166 @@ public class DICOMValueRepresentation {
 	public String getVR() {
 		return mVR;
 	}
+	
+	/**
+	 * @return Value representation code.
+	 */
+	public int getCode() {
+		return mCode;
+	}
+	
+	/**
+	 * @return Value representation flags.
+	 */
+	public int getFlags() {
+		return mFlags;
+	}
+	
+	/**
+	 * @return True if the value length is coded on 2 bytes
+	 * in an explicit VR data element.
+	 */
+	public boolean hasValueLengthOn2Bytes() {
+		return (mFlags & FLAG_VALUE_LENGTH_ON_2_BYTES) != 0;
+	}
+	
+	/**
+	 * @return True if the value is a sequence of items.
+	 */
+	public boolean isSequence() {
+		return (mFlags & FLAG_SEQUENCE) != 0;
+	}
+	
+	/**
+	 * Decode a value of this value representation. The numerical
+	 * values are decoded with the byte order of the buffer. A
+	 * numerical value is returned as an object if the value has
+	 * one item and as an array otherwise. The byte and word
+	 * strings are returned as the decimal values of their bytes
+	 * separated by '\'. The other values are returned as a String.
+	 * 
+	 * @param value Buffer that contains the value from its position
+	 * to its limit. The buffer is consumed.
+	 * @param charset Specific character set of the text values.
+	 * @return The value or null if it is a sequence.
+	 */
+	public Object decodeValue(ByteBuffer value, String charset) {
+		
+		int length = value.remaining();
+		
+		switch (mCode) {
+		
+		case UL:
+			
+			if (length == 4)
+				return value.getInt() & 0xffffffffL;
+			
+			long[] unsignedLongs = new long[length / 4];
+			
+			for (int i = 0; i < unsignedLongs.length; i++)
+				unsignedLongs[i] = value.getInt() & 0xffffffffL;
+			
+			return unsignedLongs;
+			
+		case AT:
+			
+			if (length == 4)
+				return getTag(value);
+			
+			int[] tags = new int[length / 4];
+			
+			for (int i = 0; i < tags.length; i++)
+				tags[i] = getTag(value);
+			
+			return tags;
+			
+		case OB: case OF: case OW:
+			
+			StringBuilder builder = new StringBuilder(length * 4);
+			
+			for (int i = 0; i < length; i++) {
+				
+				if (i > 0)
+					builder.append('\\');
+				
+				builder.append(value.get() & 0xff);
+				
+			}
+			
+			return builder.toString();
+			
+		case FL:
+			
+			if (length == 4)
+				return value.getFloat();
+			
+			float[] floats = new float[length / 4];
+			
+			for (int i = 0; i < floats.length; i++)
+				floats[i] = value.getFloat();
+			
+			return floats;
+			
+		case FD:
+			
+			if (length == 8)
+				return value.getDouble();
+			
+			double[] doubles = new double[length / 8];
+			
+			for (int i = 0; i < doubles.length; i++)
+				doubles[i] = value.getDouble();
+			
+			return doubles;
+			
+		case SL:
+			
+			if (length == 4)
+				return value.getInt();
+			
+			int[] signedLongs = new int[length / 4];
+			
+			for (int i = 0; i < signedLongs.length; i++)
+				signedLongs[i] = value.getInt();
+			
+			return signedLongs;
+			
+		case SS:
+			
+			if (length == 2)
+				return value.getShort();
+			
+			short[] signedShorts = new short[length / 2];
+			
+			for (int i = 0; i < signedShorts.length; i++)
+				signedShorts[i] = value.getShort();
+			
+			return signedShorts;
+			
+		case US:
+			
+			if (length == 2)
+				return value.getShort() & 0xffff;
+			
+			int[] unsignedShorts = new int[length / 2];
+			
+			for (int i = 0; i < unsignedShorts.length; i++)
+				unsignedShorts[i] = value.getShort() & 0xffff;
+			
+			return unsignedShorts;
+			
+		case SQ:
+			
+			return null;
+			
+		default:
+			
+			return decodeString(value,
+					(mFlags & FLAG_SPECIFIC_CHARSET) != 0 ? charset : null);
+			
+		}
+		
+	}
 
 	/**
 	 * @return Value representation description.
@@ -0,0 +1,657 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <DICOMDataSet.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.dicom.data;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import be.ac.ulb.lisa.idot.dicom.DICOMElement;
+import be.ac.ulb.lisa.idot.dicom.DICOMTag;
+import be.ac.ulb.lisa.idot.dicom.DICOMValueRepresentation;
+
+/**
+ * Lazy DICOM data set.
+ * 
+ * The data set records the tag, the value representation,
+ * the value offset and the value length of each data element
+ * of a DICOM file, in the order of the file. The values are
+ * decoded from the memory-mapped file only when they are
+ * accessed.
+ * 
+ * The data elements of the items of a sequence are recorded
+ * after the sequence with the index of the sequence as parent
+ * and the index of their item.
+ * 
+ * The records can be encoded in an index that is stored with
+ * the cached image of the file (see LISASeriesPack). The data
+ * set is then decoded from the index without parsing the file
+ * again.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class DICOMDataSet {
+	
+	// ---------------------------------------------------------------
+	// + <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Parent of the data elements of the top level data set.
+	 */
+	public static final int NO_PARENT = -1;
+	
+	/**
+	 * Length of the values that have an undefined length.
+	 */
+	public static final int UNDEFINED_LENGTH = -1;
+	
+	/**
+	 * Size of the header of an encoded index: byte order (int32)
+	 * and number of data elements (int32).
+	 */
+	public static final int INDEX_HEADER_SIZE = 8;
+	
+	/**
+	 * Size of an encoded data element: tag, value representation
+	 * code, offset, length, parent and item (int32 each).
+	 */
+	public static final int INDEX_ELEMENT_SIZE = 24;
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Memory-mapped file.
+	 */
+	private final ByteBuffer mBuffer;
+	
+	/**
+	 * Byte order of the data elements that do not belong to the
+	 * meta information.
+	 */
+	private ByteOrder mByteOrder = ByteOrder.LITTLE_ENDIAN;
+	
+	/**
+	 * Specific character set or null if it is not decoded yet.
+	 */
+	private String mSpecificCharset = null;
+	
+	/**
+	 * Number of data elements.
+	 */
+	private int mSize = 0;
+	
+	/**
+	 * Tag integer values.
+	 */
+	private int[] mTags;
+	
+	/**
+	 * Value representations.
+	 */
+	private DICOMValueRepresentation[] mVRs;
+	
+	/**
+	 * Offsets of the values in the file.
+	 */
+	private int[] mOffsets;
+	
+	/**
+	 * Lengths of the values.
+	 */
+	private int[] mLengths;
+	
+	/**
+	 * Indexes of the parent sequences.
+	 */
+	private int[] mParents;
+	
+	/**
+	 * Indexes of the items in the parent sequences.
+	 */
+	private int[] mItems;
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param buffer Memory-mapped file. The offsets of the values
+	 * are absolute indexes in this buffer.
+	 */
+	public DICOMDataSet(ByteBuffer buffer) {
+		
+		mBuffer = buffer;
+		
+		mTags = new int[64];
+		mVRs = new DICOMValueRepresentation[64];
+		mOffsets = new int[64];
+		mLengths = new int[64];
+		mParents = new int[64];
+		mItems = new int[64];
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Add a data element.
+	 * 
+	 * @param tag Tag integer value.
+	 * @param VR Value representation.
+	 * @param offset Offset of the value in the file.
+	 * @param length Length of the value or UNDEFINED_LENGTH.
+	 * @param parent Index of the parent sequence or NO_PARENT.
+	 * @param item Index of the item in the parent sequence.
+	 * @return Index of the data element.
+	 */
+	public int add(int tag, DICOMValueRepresentation VR, int offset, int length,
+			int parent, int item) {
+		
+		if (mSize == mTags.length)
+			grow();
+		
+		mTags[mSize] = tag;
+		mVRs[mSize] = VR;
+		mOffsets[mSize] = offset;
+		mLengths[mSize] = length;
+		mParents[mSize] = parent;
+		mItems[mSize] = item;
+		
+		return mSize++;
+		
+	}
+	
+	/**
+	 * @return Number of data elements.
+	 */
+	public int size() {
+		return mSize;
+	}
+	
+	/**
+	 * @param index Index of the data element.
+	 * @return Number of sequences that contain the data element.
+	 */
+	public int getDepth(int index) {
+		
+		int depth = 0;
+		
+		while (mParents[index] != NO_PARENT) {
+			
+			index = mParents[index];
+			depth++;
+			
+		}
+		
+		return depth;
+		
+	}
+	
+	/**
+	 * @param index Index of the data element.
+	 * @return Tag integer value.
+	 */
+	public int getTag(int index) {
+		return mTags[index];
+	}
+	
+	/**
+	 * @param index Index of the data element.
+	 * @return DICOM tag.
+	 */
+	public DICOMTag getDICOMTag(int index) {
+		return DICOMTag.createDICOMTag(mTags[index], mVRs[index]);
+	}
+	
+	/**
+	 * @param index Index of the data element.
+	 * @return Value representation.
+	 */
+	public DICOMValueRepresentation getValueRepresentation(int index) {
+		return mVRs[index];
+	}
+	
+	/**
+	 * @param index Index of the data element.
+	 * @return Offset of the value in the file.
+	 */
+	public int getOffset(int index) {
+		return mOffsets[index];
+	}
+	
+	/**
+	 * @param index Index of the data element.
+	 * @return Length of the value or UNDEFINED_LENGTH.
+	 */
+	public int getLength(int index) {
+		return mLengths[index];
+	}
+	
+	/**
+	 * @param index Index of the data element.
+	 * @return Index of the parent sequence or NO_PARENT.
+	 */
+	public int getParent(int index) {
+		return mParents[index];
+	}
+	
+	/**
+	 * @param index Index of the data element.
+	 * @return Index of the item in the parent sequence.
+	 */
+	public int getItem(int index) {
+		return mItems[index];
+	}
+	
+	/**
+	 * Get the index of a data element of the top level
+	 * data set.
+	 * 
+	 * @param tag Tag integer value.
+	 * @return Index of the data element or -1 if there is
+	 * no such data element.
+	 */
+	public int indexOf(int tag) {
+		return indexOf(NO_PARENT, 0, tag);
+	}
+	
+	/**
+	 * Get the index of a data element of an item.
+	 * 
+	 * @param parent Index of the sequence or NO_PARENT.
+	 * @param item Index of the item in the sequence.
+	 * @param tag Tag integer value.
+	 * @return Index of the data element or -1 if there is
+	 * no such data element.
+	 */
+	public int indexOf(int parent, int item, int tag) {
+		
+		// The data elements of a sequence follow it
+		for (int i = parent + 1; i < mSize; i++)
+			if (mTags[i] == tag && mParents[i] == parent && mItems[i] == item)
+				return i;
+		
+		return -1;
+		
+	}
+	
+	/**
+	 * Get the value of a data element as a buffer ordered with
+	 * the byte order of the data element. The buffer is a view
+	 * of the memory-mapped file.
+	 * 
+	 * @param index Index of the data element.
+	 * @return The value or null if the length of the value is
+	 * undefined.
+	 */
+	public ByteBuffer getValueBuffer(int index) {
+		
+		if (mLengths[index] == UNDEFINED_LENGTH)
+			return null;
+		
+		ByteBuffer value = mBuffer.duplicate();
+		value.limit(mOffsets[index] + mLengths[index]);
+		value.position(mOffsets[index]);
+		
+		// The meta information is always little endian
+		value.order(((mTags[index] >>> 16) == 0x0002) ? ByteOrder.LITTLE_ENDIAN
+				: mByteOrder);
+		
+		return value;
+		
+	}
+	
+	/**
+	 * Decode the value of a data element.
+	 * 
+	 * @param index Index of the data element.
+	 * @return The value (cf. DICOMValueRepresentation.decodeValue)
+	 * or null if the data element is a sequence or its length is
+	 * undefined.
+	 */
+	public Object getValue(int index) {
+		
+		ByteBuffer value = getValueBuffer(index);
+		
+		if (value == null)
+			return null;
+		
+		return mVRs[index].decodeValue(value, getSpecificCharset());
+		
+	}
+	
+	/**
+	 * Get the value of a data element as a String to display it.
+	 * Only the beginning of a long value is decoded, such that
+	 * large values are listed as fast as short ones. The multiple
+	 * values are separated by a backslash.
+	 * 
+	 * @param index Index of the data element.
+	 * @param maxLength Maximum length of the String without the
+	 * ellipsis that marks a truncated value.
+	 * @return The value as a String, empty for a sequence or a
+	 * value with an undefined length.
+	 */
+	public String getValueString(int index, int maxLength) {
+		
+		DICOMValueRepresentation VR = mVRs[index];
+		ByteBuffer value = getValueBuffer(index);
+		
+		if (value == null || VR.isSequence())
+			return "";
+		
+		// Decode only the beginning of the value, the limit is
+		// aligned on the size of the largest binary values
+		boolean isTruncated = value.remaining() > maxLength;
+		
+		if (isTruncated)
+			value.limit(value.position() + (maxLength & ~7));
+		
+		Object decodedValue = VR.decodeValue(value, getSpecificCharset());
+		
+		StringBuilder builder = new StringBuilder();
+		
+		if (decodedValue != null && decodedValue.getClass().isArray()) {
+			
+			int length = Array.getLength(decodedValue);
+			
+			for (int i = 0; i < length && builder.length() <= maxLength; i++) {
+				
+				if (i > 0)
+					builder.append('\\');
+				
+				appendValue(builder, VR, Array.get(decodedValue, i));
+				
+			}
+			
+		} else if (decodedValue != null) {
+			
+			appendValue(builder, VR, decodedValue);
+			
+		}
+		
+		if (builder.length() > maxLength) {
+			
+			builder.setLength(maxLength);
+			isTruncated = true;
+			
+		}
+		
+		if (isTruncated)
+			builder.append("...");
+		
+		return builder.toString();
+		
+	}
+	
+	/**
+	 * Get a data element with its decoded value.
+	 * 
+	 * @param index Index of the data element.
+	 * @return DICOM element.
+	 */
+	public DICOMElement getElement(int index) {
+		
+		long length = (mLengths[index] == UNDEFINED_LENGTH) ? 0xffffffffL
+				: mLengths[index];
+		
+		return new DICOMElement(getDICOMTag(index), length, getValue(index));
+		
+	}
+	
+	/**
+	 * @return Specific character set of the data set.
+	 */
+	public String getSpecificCharset() {
+		
+		if (mSpecificCharset == null) {
+			
+			int index = indexOf(0x00080005);
+			
+			// The specific character set is a code string
+			// and is not coded with itself
+			Object value = (index < 0) ? null : mVRs[index].decodeValue(
+					getValueBuffer(index), "ASCII");
+			
+			mSpecificCharset = (value instanceof String) ? (String) value : "ASCII";
+			
+		}
+		
+		return mSpecificCharset;
+		
+	}
+	
+	/**
+	 * @return Byte order of the data elements that do not belong
+	 * to the meta information.
+	 */
+	public ByteOrder getByteOrder() {
+		return mByteOrder;
+	}
+	
+	/**
+	 * @param byteOrder Byte order of the data elements that do not
+	 * belong to the meta information.
+	 */
+	public void setByteOrder(ByteOrder byteOrder) {
+		mByteOrder = byteOrder;
+	}
+	
+	/**
+	 * @return Size of the encoded index of the data set.
+	 */
+	public int getEncodedSize() {
+		return INDEX_HEADER_SIZE + INDEX_ELEMENT_SIZE * mSize;
+	}
+	
+	/**
+	 * Encode the index of the data set, i.e. the records of its
+	 * data elements without their values.
+	 * 
+	 * @param index Destination buffer. Its byte order is used.
+	 */
+	public void encode(ByteBuffer index) {
+		
+		index.putInt(mByteOrder == ByteOrder.BIG_ENDIAN ? 1 : 0);
+		index.putInt(mSize);
+		
+		for (int i = 0; i < mSize; i++) {
+			
+			index.putInt(mTags[i]);
+			index.putInt(mVRs[i].getCode());
+			index.putInt(mOffsets[i]);
+			index.putInt(mLengths[i]);
+			index.putInt(mParents[i]);
+			index.putInt(mItems[i]);
+			
+		}
+		
+	}
+	
+	/**
+	 * @return The encoded index of the data set in a little endian
+	 * buffer ready to be read.
+	 */
+	public ByteBuffer encode() {
+		
+		ByteBuffer index = ByteBuffer.allocate(getEncodedSize());
+		index.order(ByteOrder.LITTLE_ENDIAN);
+		
+		encode(index);
+		index.flip();
+		
+		return index;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Double the capacity of the arrays.
+	 */
+	private void grow() {
+		
+		int capacity = mTags.length * 2;
+		
+		mTags = copyOf(mTags, capacity);
+		mOffsets = copyOf(mOffsets, capacity);
+		mLengths = copyOf(mLengths, capacity);
+		mParents = copyOf(mParents, capacity);
+		mItems = copyOf(mItems, capacity);
+		
+		DICOMValueRepresentation[] VRs = new DICOMValueRepresentation[capacity];
+		System.arraycopy(mVRs, 0, VRs, 0, mSize);
+		mVRs = VRs;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Decode a data set from its index.
+	 * 
+	 * @param index Encoded index from its position. Its byte order
+	 * must be the byte order used to encode it.
+	 * @param buffer Memory-mapped file of the data set.
+	 * @return The data set.
+	 * @throws IOException If the index is not valid for the file.
+	 */
+	public static DICOMDataSet decode(ByteBuffer index, ByteBuffer buffer)
+			throws IOException {
+		
+		DICOMDataSet dataSet = new DICOMDataSet(buffer);
+		
+		try {
+			
+			dataSet.setByteOrder(index.getInt() == 1 ? ByteOrder.BIG_ENDIAN
+					: ByteOrder.LITTLE_ENDIAN);
+			
+			int size = index.getInt();
+			
+			if (size < 0 || size > index.remaining() / INDEX_ELEMENT_SIZE)
+				throw new IOException("Invalid data set index size.");
+			
+			for (int i = 0; i < size; i++) {
+				
+				int tag = index.getInt();
+				DICOMValueRepresentation VR = DICOMValueRepresentation.get(index.getInt());
+				int offset = index.getInt();
+				int length = index.getInt();
+				int parent = index.getInt();
+				int item = index.getInt();
+				
+				if (offset < 0 || offset > buffer.limit()
+						|| length < UNDEFINED_LENGTH
+						|| length > buffer.limit() - offset
+						|| parent < NO_PARENT || parent >= i || item < 0)
+					throw new IOException("Invalid data set index element.");
+				
+				dataSet.add(tag, VR, offset, length, parent, item);
+				
+			}
+			
+		} catch (BufferUnderflowException ex) {
+			
+			throw new IOException("Truncated data set index.");
+			
+		}
+		
+		return dataSet;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Append a single value to a String builder. The attribute
+	 * tags are written as (gggg,eeee).
+	 * 
+	 * @param builder
+	 * @param VR Value representation of the value.
+	 * @param value
+	 */
+	private static void appendValue(StringBuilder builder,
+			DICOMValueRepresentation VR, Object value) {
+		
+		if (VR.getCode() == DICOMValueRepresentation.AT) {
+			
+			int tag = (Integer) value;
+			
+			builder.append(String.format("(%04x,%04x)",
+					(tag >>> 16) & 0xffff, tag & 0xffff));
+			
+		} else {
+			
+			builder.append(value);
+			
+		}
+		
+	}
+	
+	/**
+	 * @param array
+	 * @param length
+	 * @return A copy of the array with the given length.
+	 */
+	private static int[] copyOf(int[] array, int length) {
+		
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		
+		return copy;
+		
+	}
+	
+}
@@ -129,7 +129,7 @@ public class DICOMImage extends DICOMFile {
 		if (mImage == null)
 			return false;
 		
-		return mImage.getData() != null;
+		return mImage.getDataLength() > 0;
 	}
 	
 }
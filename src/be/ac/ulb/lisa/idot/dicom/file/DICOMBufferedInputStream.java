@@ -56,6 +56,7 @@
 package be.ac.ulb.lisa.idot.dicom.file;
 
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -63,6 +64,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 /**
  * DICOM BufferedInputStream needed to read a DICOM file.
@@ -70,6 +74,16 @@ import java.io.UnsupportedEncodingException;
  * It implements protected read methods for the
  * DICOMImageReader.
  * 
+ * The stream can also be backed by a memory-mapped view of the
+ * file. In that case, the read methods access the mapped buffer
+ * by absolute offset and the primitive values are decoded with
+ * the byte order of the buffer without any allocation.
+ * 
+ * Otherwise, the primitive values and the short strings are
+ * decoded directly from the buffer of the BufferedInputStream.
+ * Only the values that straddle the end of the buffer are
+ * copied, in a scratch window that is reused.
+ * 
  * @author Pierre Malarme
  * @version 1.O
  *
@@ -83,6 +97,12 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	public static final short LITTLE_ENDIAN = 0;
 	public static final short BIG_ENDIAN = 1;
 	
+	/**
+	 * Maximum length of the scratch window that is kept
+	 * between two reads.
+	 */
+	private static final int SCRATCH_MAX_LENGTH = 1024;
+	
 	
 	// ---------------------------------------------------------------
 	// # VARIABLES
@@ -90,6 +110,29 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	
 	protected short mByteOrder = LITTLE_ENDIAN;
 	
+	/**
+	 * Memory-mapped view of the file or null if the
+	 * stream is not memory-mapped.
+	 */
+	protected ByteBuffer mMappedBuffer = null;
+	
+	/**
+	 * Marked position in the memory-mapped buffer.
+	 */
+	private int mMappedMark = 0;
+	
+	/**
+	 * Scratch window in which the bytes of a value are copied
+	 * when the value is not contiguous in the buffer.
+	 */
+	private byte[] mScratch = new byte[16];
+	
+	/**
+	 * Array that contains the bytes returned by the last
+	 * readWindow call: the buffer or the scratch window.
+	 */
+	private byte[] mWindow = null;
+	
 	
 	// ---------------------------------------------------------------
 	// + CONSTRUCTORS
@@ -115,6 +158,144 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 		super(inputStream, bufferSize);
 	}
 	
+	/**
+	 * Create a DICOMBufferedInputStream that is backed by a memory-mapped
+	 * view of the file if memoryMapped is true.
+	 * 
+	 * @param file The file to read.
+	 * @param memoryMapped Set if the file must be memory-mapped (true) or
+	 * read through the buffer of the BufferedInputStream (false).
+	 * @throws IOException If the file cannot be opened or mapped.
+	 */
+	public DICOMBufferedInputStream(File file, boolean memoryMapped) throws IOException {
+		super(new FileInputStream(file), memoryMapped ? 1 : 8192);
+		
+		if (memoryMapped) {
+			
+			FileChannel channel = ((FileInputStream) in).getChannel();
+			
+			// A ByteBuffer is indexed by an integer
+			if (channel.size() > Integer.MAX_VALUE) {
+				close();
+				throw new IOException("The file is too large to be memory-mapped.");
+			}
+			
+			mMappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mMappedBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+		}
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <override> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/* (non-Javadoc)
+	 * @see java.io.BufferedInputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		
+		if (mMappedBuffer == null)
+			return super.read();
+		
+		return mMappedBuffer.hasRemaining() ? mMappedBuffer.get() & 0xff : -1;
+		
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.BufferedInputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		
+		if (mMappedBuffer == null)
+			return super.read(b, off, len);
+		
+		if (len == 0)
+			return 0;
+		
+		int remaining = mMappedBuffer.remaining();
+		
+		if (remaining == 0)
+			return -1;
+		
+		len = (len > remaining) ? remaining : len;
+		mMappedBuffer.get(b, off, len);
+		
+		return len;
+		
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.BufferedInputStream#skip(long)
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		
+		if (mMappedBuffer == null)
+			return super.skip(n);
+		
+		if (n <= 0)
+			return 0;
+		
+		int remaining = mMappedBuffer.remaining();
+		
+		n = (n > remaining) ? remaining : n;
+		mMappedBuffer.position(mMappedBuffer.position() + (int) n);
+		
+		return n;
+		
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.BufferedInputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+		
+		if (mMappedBuffer == null)
+			return super.available();
+		
+		return mMappedBuffer.remaining();
+		
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.BufferedInputStream#mark(int)
+	 */
+	@Override
+	public void mark(int readlimit) {
+		
+		if (mMappedBuffer == null)
+			super.mark(readlimit);
+		else
+			mMappedMark = mMappedBuffer.position();
+		
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.BufferedInputStream#reset()
+	 */
+	@Override
+	public void reset() throws IOException {
+		
+		if (mMappedBuffer == null)
+			super.reset();
+		else
+			mMappedBuffer.position(mMappedMark);
+		
+	}
+	
+	/**
+	 * @return True if the stream is backed by a memory-mapped
+	 * view of the file, false otherwise.
+	 */
+	public boolean isMemoryMapped() {
+		return mMappedBuffer != null;
+	}
+	
 
 	// ---------------------------------------------------------------
 	// # FUNCTIONS
@@ -139,15 +320,21 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	 */
 	protected final int readUnsignedInt16() throws IOException {
 		
-		byte[] unsignedInt16 = new byte[2];
+		if (mMappedBuffer != null) {
+			
+			if (mMappedBuffer.remaining() < 2)
+				throw new IOException("Cannot read an unsigned int 16-Bit.");
+			
+			return mMappedBuffer.getShort() & 0xffff;
+			
+		}
+		
+		int offset = readWindow(2);
 		
-		if (read(unsignedInt16) != 2)
+		if (offset < 0)
 			throw new IOException("Cannot read an unsigned int 16-Bit.");
 		
-		if (mByteOrder == LITTLE_ENDIAN)
-			return (unsignedInt16[1] & 0xff) << 8 | (unsignedInt16[0] & 0xff);
-		else
-			return (unsignedInt16[0] & 0xff) << 8 | (unsignedInt16[1] & 0xff);
+		return getInt16(mWindow, offset) & 0xffff;
 		
 	}
 	
@@ -159,17 +346,21 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	 */
 	protected final long readUnsignedLong() throws IOException {
 		
-		byte[] unsignedLong = new byte[4];
+		if (mMappedBuffer != null) {
+			
+			if (mMappedBuffer.remaining() < 4)
+				throw new IOException("Cannot read an unsigned long 32-Bit.");
+			
+			return mMappedBuffer.getInt() & 0xffffffffL;
+			
+		}
+		
+		int offset = readWindow(4);
 		
-		if (read(unsignedLong) != 4)
+		if (offset < 0)
 			throw new IOException("Cannot read an unsigned long 32-Bit.");
 		
-		if (mByteOrder == LITTLE_ENDIAN)
-			return ((long) unsignedLong[3] & 0xff) << 24 | ((long) unsignedLong[2] & 0xFF) << 16
-				| ((long) unsignedLong[1] & 0xFF) << 8 | ((long) unsignedLong[0] & 0xff);
-		else
-			return ((long) unsignedLong[0] & 0xff) << 24 | ((long) unsignedLong[1] & 0xFF) << 16
-				| ((long) unsignedLong[2] & 0xFF) << 8 | ((long) unsignedLong[3] & 0xff);
+		return getInt32(mWindow, offset) & 0xffffffffL;
 		
 	}
 	
@@ -181,21 +372,27 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	 */
 	protected final long readUnsignedLong64() throws IOException {
 		
-		byte[] unsignedLong64 = new byte[8];
+		if (mMappedBuffer != null) {
+			
+			if (mMappedBuffer.remaining() < 8)
+				throw new IOException("Cannot read an unsigned long 64-Bit.");
+			
+			return mMappedBuffer.getLong();
+			
+		}
+		
+		int offset = readWindow(8);
 		
-		if (read(unsignedLong64) != 8)
+		if (offset < 0)
 			throw new IOException("Cannot read an unsigned long 64-Bit.");
 		
+		long first = getInt32(mWindow, offset) & 0xffffffffL;
+		long second = getInt32(mWindow, offset + 4) & 0xffffffffL;
+		
 		if (mByteOrder == LITTLE_ENDIAN)
-			return (((long) unsignedLong64[7] & 0xff) << 56) | (((long) unsignedLong64[6] & 0xff) << 48)
-				| (((long) unsignedLong64[5] & 0xff) << 40) | (((long) unsignedLong64[4] & 0xff) << 32)
-				| (((long) unsignedLong64[3] & 0xff) << 24) | (((long) unsignedLong64[2] & 0xff) << 16)
-				| (((long) unsignedLong64[1] & 0xff) << 8) | ((long) unsignedLong64[0] & 0xff);
+			return second << 32 | first;
 		else
-			return (((long) unsignedLong64[0] & 0xff) << 56) | (((long) unsignedLong64[1] & 0xff) << 48)
-			| (((long) unsignedLong64[2] & 0xff) << 40) | (((long) unsignedLong64[3] & 0xff) << 32)
-			| (((long) unsignedLong64[4] & 0xff) << 24) | (((long) unsignedLong64[5] & 0xff) << 16)
-			| (((long) unsignedLong64[6] & 0xff) << 8) | ((long) unsignedLong64[7] & 0xff);
+			return first << 32 | second;
 		
 	}
 	
@@ -207,17 +404,21 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	 */
 	protected final int readSignedLong() throws IOException {
 		
-		byte[] signedLong = new byte[4];
+		if (mMappedBuffer != null) {
+			
+			if (mMappedBuffer.remaining() < 4)
+				throw new IOException("Cannot read a signed long 32-Bit.");
+			
+			return mMappedBuffer.getInt();
+			
+		}
+		
+		int offset = readWindow(4);
 		
-		if (read(signedLong) != 4)
+		if (offset < 0)
 			throw new IOException("Cannot read a signed long 32-Bit.");
 		
-		if (mByteOrder == LITTLE_ENDIAN)
-			return ((signedLong[3] & 0xFF) << 24) | ((signedLong[2] & 0xff) << 16)
-				| ((signedLong[1] & 0xff) << 8) | (signedLong[0] & 0xff);
-		else
-			return ((signedLong[0] & 0xFF) << 24) | ((signedLong[1] & 0xff) << 16)
-			| ((signedLong[2] & 0xff) << 8) | (signedLong[3] & 0xff);
+		return getInt32(mWindow, offset);
 		
 	}
 	
@@ -229,18 +430,21 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	 */
 	protected final short readSignedShort() throws IOException {
 		
-		byte[] signedShort = new byte[2];
+		if (mMappedBuffer != null) {
+			
+			if (mMappedBuffer.remaining() < 2)
+				throw new IOException("Cannot read a signed short 16-bit");
+			
+			return mMappedBuffer.getShort();
+			
+		}
 		
-		if (read(signedShort) != 2)
-			throw new IOException("Cannot read a signed short 16-bit");
+		int offset = readWindow(2);
 		
-		short s1 = (short) (signedShort[0] & 0xff);
-		short s2 = (short) (signedShort[1] & 0xff);
+		if (offset < 0)
+			throw new IOException("Cannot read a signed short 16-bit");
 		
-		if (mByteOrder == LITTLE_ENDIAN)
-			return (short) (s2 << 8 | s1);
-		else
-			return (short) (s1 << 8 | s2);
+		return (short) getInt16(mWindow, offset);
 		
 	}
 	
@@ -280,12 +484,114 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	 */
 	protected final int readTag() throws IOException {
 		
-		int group = readUnsignedInt16();
-		int element = readUnsignedInt16();
+		int group;
+		int element;
+		
+		if (mMappedBuffer != null) {
+			
+			group = readUnsignedInt16();
+			element = readUnsignedInt16();
+			
+		} else {
+			
+			int offset = readWindow(4);
+			
+			if (offset < 0)
+				throw new IOException("Cannot read a tag.");
+			
+			group = getInt16(mWindow, offset);
+			element = getInt16(mWindow, offset + 2);
+			
+		}
 		
 		return ((group & 0xffff) << 16 | (element & 0xffff));
 	}
 	
+	/**
+	 * Read a value representation coded on 2 characters.
+	 * 
+	 * @return The value representation code: the two characters
+	 * read as a big endian 16-bit integer.
+	 * @throws IOException
+	 */
+	protected final int readVRCode() throws IOException {
+		
+		if (mMappedBuffer != null) {
+			
+			if (mMappedBuffer.remaining() < 2)
+				throw new IOException("Cannot read a value representation.");
+			
+			int first = mMappedBuffer.get() & 0xff;
+			
+			return first << 8 | (mMappedBuffer.get() & 0xff);
+			
+		}
+		
+		int offset = readWindow(2);
+		
+		if (offset < 0)
+			throw new IOException("Cannot read a value representation.");
+		
+		return (mWindow[offset] & 0xff) << 8 | (mWindow[offset + 1] & 0xff);
+		
+	}
+	
+	/**
+	 * Read length bytes as a ByteBuffer ordered with the byte order
+	 * of the stream.
+	 * 
+	 * If the stream is memory-mapped, the ByteBuffer is a view of
+	 * the mapped file and no byte is copied. Otherwise, the bytes
+	 * are read in a single array.
+	 * 
+	 * @param length The number of bytes to read.
+	 * @return ByteBuffer that contains the length bytes.
+	 * @throws IOException
+	 * @throws EOFException If the end of the file is reached before
+	 * length bytes are read.
+	 */
+	protected final ByteBuffer readBuffer(int length) throws IOException, EOFException {
+		
+		ByteBuffer buffer;
+		
+		if (mMappedBuffer != null) {
+			
+			if (mMappedBuffer.remaining() < length)
+				throw new EOFException("Cannot read " + length + " bytes.");
+			
+			buffer = mMappedBuffer.slice();
+			buffer.limit(length);
+			
+			mMappedBuffer.position(mMappedBuffer.position() + length);
+			
+		} else {
+			
+			byte[] bytes = new byte[length];
+			
+			int offset = 0;
+			
+			while (offset < length) {
+				
+				int count = read(bytes, offset, length - offset);
+				
+				if (count == -1)
+					throw new EOFException("Cannot read " + length + " bytes.");
+				
+				offset += count;
+				
+			}
+			
+			buffer = ByteBuffer.wrap(bytes);
+			
+		}
+		
+		buffer.order(mByteOrder == BIG_ENDIAN ? ByteOrder.BIG_ENDIAN
+				: ByteOrder.LITTLE_ENDIAN);
+		
+		return buffer;
+		
+	}
+	
 	/**
 	 * Read byte[length] as ASCII.
 	 * 
@@ -294,17 +600,19 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	 * @throws IOException
 	 */
 	protected final String readASCII(int length) throws IOException {
-		byte[] ASCIIbyte = new byte[length];
-		read(ASCIIbyte);
+		int offset = readWindow(length);
 		
-		// To avoid the null char : ASCII(0)
-		String toReturnString = new String(ASCIIbyte, "ASCII");
+		if (offset < 0)
+			throw new IOException("readASCII: Size mismatch");
 		
+		byte[] ASCIIbyte = mWindow;
+		
+		// To avoid the null char : ASCII(0)
 		for (int i = 0; i < length; i++)
-			if (ASCIIbyte[i] == 0x00)
-					return toReturnString.substring(0, i);
+			if (ASCIIbyte[offset + i] == 0x00)
+				return new String(ASCIIbyte, offset, i, "ASCII");
 		
-		return toReturnString;
+		return new String(ASCIIbyte, offset, length, "ASCII");
 	}
 	
 	/**
@@ -314,30 +622,26 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	 * @throws IOException
 	 */
 	protected final String readString(int length, String charset) throws IOException {
-		byte[] stringIbyte = new byte[length];
+		int offset = readWindow(length);
 		
-		if (read(stringIbyte) != length)
+		if (offset < 0)
 			throw new IOException("readString: Size mismatch");
 		
+		byte[] stringIbyte = mWindow;
+		
 		// To avoid the null char : ASCII(0)
-		String toReturnString;
+		if (length > 0 && stringIbyte[offset + length - 1] == 0x00)
+			length--;
 		
 		try {
 			
-			toReturnString = new String(stringIbyte, charset);
+			return new String(stringIbyte, offset, length, charset);
 			
 		} catch (UnsupportedEncodingException ex) {
 			
-			toReturnString = new String(stringIbyte, "ASCII");
+			return new String(stringIbyte, offset, length, "ASCII");
 			
 		}
-		
-		for (int i = 0; i < length; i++)
-			if (stringIbyte[i] == 0x00)
-				if (i == (length - 1))
-					return toReturnString.substring(0,length - 1);
-			
-		return toReturnString;
 	}
 
 	/**
@@ -352,6 +656,109 @@ public class DICOMBufferedInputStream extends BufferedInputStream {
 	 */
 	protected void setByteOrder(short byteOrder) {
 		this.mByteOrder = byteOrder;
+		
+		if (mMappedBuffer != null)
+			mMappedBuffer.order(byteOrder == BIG_ENDIAN ? ByteOrder.BIG_ENDIAN
+					: ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Read length bytes and make them available in mWindow.
+	 * 
+	 * If the length bytes are in the buffer of the
+	 * BufferedInputStream, mWindow is the buffer and no byte
+	 * is copied. Otherwise, the bytes are read in the scratch
+	 * window.
+	 * 
+	 * @param length The number of bytes to read.
+	 * @return The offset of the first byte in mWindow or -1 if
+	 * the end of the stream is reached before length bytes
+	 * are read.
+	 * @throws IOException
+	 */
+	private int readWindow(int length) throws IOException {
+		
+		byte[] buffer = buf;
+		
+		// The bytes are in the buffer
+		if (mMappedBuffer == null && buffer != null && count - pos >= length) {
+			
+			int offset = pos;
+			pos += length;
+			
+			mWindow = buffer;
+			
+			return offset;
+			
+		}
+		
+		byte[] scratch = mScratch;
+		
+		if (length > scratch.length) {
+			
+			scratch = new byte[length];
+			
+			if (length <= SCRATCH_MAX_LENGTH)
+				mScratch = scratch;
+			
+		}
+		
+		int offset = 0;
+		
+		while (offset < length) {
+			
+			int n = read(scratch, offset, length - offset);
+			
+			if (n == -1)
+				return -1;
+			
+			offset += n;
+			
+		}
+		
+		mWindow = scratch;
+		
+		return 0;
+		
+	}
+	
+	/**
+	 * Decode a 16-bit value with the byte order of the stream.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @return The 16-bit value in the low bits of an int.
+	 */
+	private int getInt16(byte[] bytes, int offset) {
+		
+		if (mByteOrder == LITTLE_ENDIAN)
+			return (bytes[offset + 1] & 0xff) << 8 | (bytes[offset] & 0xff);
+		else
+			return (bytes[offset] & 0xff) << 8 | (bytes[offset + 1] & 0xff);
+		
+	}
+	
+	/**
+	 * Decode a 32-bit value with the byte order of the stream.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @return The 32-bit value.
+	 */
+	private int getInt32(byte[] bytes, int offset) {
+		
+		if (mByteOrder == LITTLE_ENDIAN)
+			return (bytes[offset + 3] & 0xff) << 24 | (bytes[offset + 2] & 0xff) << 16
+				| (bytes[offset + 1] & 0xff) << 8 | (bytes[offset] & 0xff);
+		else
+			return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+				| (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+		
 	}
 
 }
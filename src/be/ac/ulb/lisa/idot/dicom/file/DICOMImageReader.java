@@ -59,14 +59,21 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 import be.ac.ulb.lisa.idot.dicom.DICOMElement;
 import be.ac.ulb.lisa.idot.dicom.DICOMException;
+import be.ac.ulb.lisa.idot.dicom.DICOMTagSelection;
 import be.ac.ulb.lisa.idot.dicom.DICOMValueRepresentation;
 import be.ac.ulb.lisa.idot.dicom.data.DICOMBody;
+import be.ac.ulb.lisa.idot.dicom.data.DICOMDataSet;
 import be.ac.ulb.lisa.idot.dicom.data.DICOMImage;
 import be.ac.ulb.lisa.idot.dicom.data.DICOMMetaInformation;
 import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16BitRowListener;
+import be.ac.ulb.lisa.idot.image.data.LISAPixelArena;
 
 /**
  * DICOM image file reader that read only grayscale image
@@ -82,6 +89,57 @@ import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
  */
 public class DICOMImageReader extends DICOMReader {
 	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Number of pixels converted per bulk get from the
+	 * PixelData buffer.
+	 */
+	private static final int BULK_PIXEL_COUNT = 8192;
+	
+	/**
+	 * Minimum number of pixels decoded between two calls of
+	 * the row listener. A band has at least one row.
+	 */
+	private static final int BAND_PIXEL_COUNT = 262144;
+	
+	/**
+	 * Required elements of the body.
+	 */
+	private static final DICOMTagSelection IMAGE_ELEMENTS =
+		new DICOMTagSelection(0x00080005, 0x00080008, 0x00200037,
+				0x00280002, 0x00280010, 0x00280011, 0x00280100,
+				0x00280101, 0x00280102, 0x00280103, 0x00281050,
+				0x00281051, 0x7fe00010);
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Arena from which the image data are allocated. If it
+	 * is null, the image data are stored in the Java heap.
+	 */
+	private LISAPixelArena mPixelArena = null;
+	
+	/**
+	 * Listener of the decoded rows or null.
+	 */
+	private LISAImageGray16BitRowListener mRowListener = null;
+	
+	/**
+	 * Set if parse records the data set index of the file.
+	 */
+	private boolean mIsDataSetIndexed = false;
+	
+	/**
+	 * Encoded data set index recorded by parse or null.
+	 */
+	private ByteBuffer mEncodedDataSetIndex = null;
+	
 	
 	// ---------------------------------------------------------------
 	// + CONSTRUCTORS
@@ -95,6 +153,56 @@ public class DICOMImageReader extends DICOMReader {
 		super(fileName);
 	}
 	
+	public DICOMImageReader(File file, boolean memoryMapped) throws IOException {
+		super(file, memoryMapped);
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Set the arena from which the image data are allocated.
+	 * The image data are stored in the Java heap if it is null.
+	 * 
+	 * @param pixelArena
+	 */
+	public void setPixelArena(LISAPixelArena pixelArena) {
+		mPixelArena = pixelArena;
+	}
+	
+	/**
+	 * Set the listener that is called by the parsing thread
+	 * each time a band of rows of the image is decoded.
+	 * 
+	 * @param rowListener The listener or null.
+	 */
+	public void setRowListener(LISAImageGray16BitRowListener rowListener) {
+		mRowListener = rowListener;
+	}
+	
+	/**
+	 * Set if parse records the index of the data elements of
+	 * the file, including the data elements of the sequence
+	 * items, while it walks the file. The sequences are then
+	 * walked and the parsing does not stop after the PixelData.
+	 * 
+	 * @param isDataSetIndexed
+	 */
+	public void setDataSetIndexed(boolean isDataSetIndexed) {
+		mIsDataSetIndexed = isDataSetIndexed;
+	}
+	
+	/**
+	 * @return The encoded data set index recorded by parse, to
+	 * store it with the cached image of the file, or null if it
+	 * is not recorded.
+	 */
+	public ByteBuffer getDataSetIndex() {
+		return mEncodedDataSetIndex;
+	}
+	
 	
 	// ---------------------------------------------------------------
 	// + <final> FUNCTIONS
@@ -109,6 +217,37 @@ public class DICOMImageReader extends DICOMReader {
 	 */
 	public final DICOMImage parse() throws IOException, EOFException, DICOMException {
 		
+		mEncodedDataSetIndex = null;
+		mDataSetIndex = mIsDataSetIndexed ? new DICOMDataSet(
+				isMemoryMapped() ? mMappedBuffer.duplicate() : null) : null;
+		
+		try {
+			
+			return parseImage();
+			
+		} finally {
+			
+			mDataSetIndex = null;
+			
+		}
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Parse the image DICOM file and encode its data set index
+	 * if it is recorded.
+	 * 
+	 * @throws IOException
+	 * @throws EOFException
+	 * @throws DICOMException 
+	 */
+	private DICOMImage parseImage() throws IOException, EOFException, DICOMException {
+		
 		
 		// Variables declaration
 		DICOMMetaInformation metaInformation;
@@ -168,6 +307,14 @@ public class DICOMImageReader extends DICOMReader {
 		
 		parse(null, 0xffffffffL, isExplicit, dicomReaderFunctions, true);
 		
+		if (mDataSetIndex != null) {
+			
+			mDataSetIndex.setByteOrder(getByteOrder() == BIG_ENDIAN
+					? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			mEncodedDataSetIndex = mDataSetIndex.encode();
+			
+		}
+		
 		DICOMImage dicomImage = new DICOMImage(metaInformation,
 				dicomReaderFunctions.getBody(),
 				dicomReaderFunctions.getImage(),
@@ -190,6 +337,8 @@ public class DICOMImageReader extends DICOMReader {
 		LISAImageGray16Bit mImage;
 		boolean mIsExplicit;
 		short mCompressionStatus;
+		ByteBuffer mDirectImageData = null;
+		int mDecodedRowCount = 0;
 		
 		public DICOMImageReaderFunctions(boolean isExplicit, short compressionStatus) {
 			
@@ -266,13 +415,8 @@ public class DICOMImageReader extends DICOMReader {
 			
 		}
 
-		public boolean isRequiredElement(int tag) {
-			
-			return (tag == 0x00080005) || (tag == 0x00080008) || (tag == 0x00200037)
-			|| (tag == 0x00280002) || (tag == 0x00280010) || (tag == 0x00280011)
-			|| (tag == 0x00280100) || (tag == 0x00280101) || (tag == 0x00280102)
-			|| (tag == 0x00280103) || (tag == 0x00281050) || (tag == 0x00281051);
-			
+		public DICOMTagSelection getRequiredElements() {
+			return IMAGE_ELEMENTS;
 		}
 
 		public void computeImage(DICOMElement parent,
@@ -438,60 +582,32 @@ public class DICOMImageReader extends DICOMReader {
 			// => 11 - 12 + 1 = 0 i.e. no bit shift), (e.g.: highBit = 15,
 			// bitsStored = 12 => 15 - 12 + 1 = 4
 			int bitShift = mBody.getHightBit() - mBody.getBitsStored() + 1;
-			int grayLevel = mImage.getGrayLevel();
 			
-			int[] imageData = new int[(int) (valueLength / 2)];
-			int imageDataMax = 0;
-			int[] imageHistogram = new int[grayLevel];
-			int imageHistogramMax = 0;
+			int pixelCount = (int) (valueLength / 2);
+			ShortBuffer imageData = allocateImageData(pixelCount);
+			
+			// Read the whole PixelData value at once and decode it
+			// with the byte order of the stream
+			ShortBuffer pixelBuffer = readBuffer((int) valueLength).asShortBuffer();
 			
-			if (bitShift == 0) {
+			short[] pixels = new short[Math.min(pixelCount, BULK_PIXEL_COUNT)];
+			
+			for (int offset = 0; offset < pixelCount; offset += pixels.length) {
 				
-				for (int i = 0; i < imageData.length; i++) {
-					
-					imageData[i] = readUnsignedInt16() & 0x0000ffff;
-					
-					if (imageData[i] > imageDataMax)
-						imageDataMax = imageData[i];
-					
-					if (imageData[i] >= 0 && imageData[i] < grayLevel) {
-						
-						imageHistogram[imageData[i]] += 1;
-						
-						if (imageHistogram[imageData[i]] > imageHistogramMax)
-							imageHistogramMax = imageHistogram[imageData[i]];
-						
-					}
-					
-				}
+				int count = Math.min(pixels.length, pixelCount - offset);
 				
+				pixelBuffer.get(pixels, 0, count);
 				
-			} else {
+				for (int i = 0; i < count; i++)
+					pixels[i] = (short) ((pixels[i] & 0xffff) >> bitShift);
 				
-				for (int i = 0; i < imageData.length; i++) {
-					
-					imageData[i] = (readUnsignedInt16() >> bitShift) & 0x0000ffff;
-					
-					if (imageData[i] > imageDataMax)
-						imageDataMax = imageData[i];
-					
-					if (imageData[i] >= 0 && imageData[i] < grayLevel) {
-						
-						imageHistogram[imageData[i]] += 1;
-						
-						if (imageHistogram[imageData[i]] > imageHistogramMax)
-							imageHistogramMax = imageHistogram[imageData[i]];
-						
-					}
-					
-				}
+				imageData.put(pixels, 0, count);
+				
+				notifyDecodedPixels(offset + count);
 				
 			}
 			
-			mImage.setData(imageData);
-			mImage.setDataMax(imageDataMax);
-			mImage.setHistogramData(imageHistogram);
-			mImage.setHistogramMax(imageHistogramMax);
+			setImageData();
 			
 		}
 		
@@ -508,60 +624,107 @@ public class DICOMImageReader extends DICOMReader {
 			// => 4 - 5 + 1 = 0 i.e. no bit shift), (e.g.: highBit = 6,
 			// bitsStored = 5 => 6 - 5 + 1 = 2
 			int bitShift = mBody.getHightBit() - mBody.getBitsStored() + 1;
-			int grayLevel = mImage.getGrayLevel();
 			
-			int[] imageData = new int[(int) (valueLength)];
-			int imageDataMax = 0;
-			int[] imageHistogram = new int[grayLevel];
-			int imageHistogramMax = 0;
+			int pixelCount = (int) valueLength;
+			ShortBuffer imageData = allocateImageData(pixelCount);
+			
+			// Read the whole PixelData value at once
+			ByteBuffer pixelBuffer = readBuffer((int) valueLength);
 			
-			if (bitShift == 0) {
+			byte[] pixels = new byte[Math.min(pixelCount, BULK_PIXEL_COUNT)];
+			short[] values = new short[pixels.length];
+			
+			for (int offset = 0; offset < pixelCount; offset += pixels.length) {
 				
-				for (int i = 0; i < imageData.length; i++) {
-					
-					imageData[i] = read() & 0x000000ff;
-					
-					if (imageData[i] > imageDataMax)
-						imageDataMax = imageData[i];
-					
-					if (imageData[i] >= 0 && imageData[i] < grayLevel) {
-						
-						imageHistogram[imageData[i]] += 1;
-						
-						if (imageHistogram[imageData[i]] > imageHistogramMax)
-							imageHistogramMax = imageHistogram[imageData[i]];
-						
-					}
-					
-				}
+				int count = Math.min(pixels.length, pixelCount - offset);
+				
+				pixelBuffer.get(pixels, 0, count);
+				
+				for (int i = 0; i < count; i++)
+					values[i] = (short) ((pixels[i] & 0xff) >> bitShift);
+				
+				imageData.put(values, 0, count);
 				
+				notifyDecodedPixels(offset + count);
+				
+			}
+			
+			setImageData();
+			
+		}
+		
+		/**
+		 * Allocate the image data in the pixel arena if there
+		 * is one or in the Java heap otherwise, and set them as
+		 * the data of the image such that the decoded rows can
+		 * be read by the row listener.
+		 * 
+		 * @param pixelCount
+		 * @return Buffer to fill with the image data.
+		 */
+		private ShortBuffer allocateImageData(int pixelCount) {
+			
+			ShortBuffer imageData;
+			
+			if (mPixelArena == null) {
+				
+				imageData = ShortBuffer.wrap(new short[pixelCount]);
+				mImage.setData(imageData.array());
 				
 			} else {
 				
-				for (int i = 0; i < imageData.length; i++) {
-					
-					imageData[i] = (read() >> bitShift) & 0x000000ff;
-					
-					if (imageData[i] > imageDataMax)
-						imageDataMax = imageData[i];
-					
-					if (imageData[i] >= 0 && imageData[i] < grayLevel) {
-						
-						imageHistogram[imageData[i]] += 1;
-						
-						if (imageHistogram[imageData[i]] > imageHistogramMax)
-							imageHistogramMax = imageHistogram[imageData[i]];
-						
-					}
-					
-				}
+				mDirectImageData = mPixelArena.allocate(pixelCount);
+				mImage.setData(mDirectImageData, mPixelArena);
+				
+				imageData = mDirectImageData.asShortBuffer();
 				
 			}
 			
-			mImage.setData(imageData);
-			mImage.setDataMax(imageDataMax);
-			mImage.setHistogramData(imageHistogram);
-			mImage.setHistogramMax(imageHistogramMax);
+			mDecodedRowCount = 0;
+			
+			if (mRowListener != null)
+				mRowListener.onImageStarted(mImage);
+			
+			return imageData;
+			
+		}
+		
+		/**
+		 * Call the row listener if a band of rows has been
+		 * decoded since its last call or if the image is
+		 * complete.
+		 * 
+		 * @param decodedPixelCount Number of decoded pixels.
+		 */
+		private void notifyDecodedPixels(int decodedPixelCount) {
+			
+			if (mRowListener == null || mImage.getWidth() <= 0)
+				return;
+			
+			int width = mImage.getWidth();
+			int rowCount = decodedPixelCount / width - mDecodedRowCount;
+			
+			if (rowCount <= 0 || (rowCount * width < BAND_PIXEL_COUNT
+					&& decodedPixelCount < mImage.getDataLength()))
+				return;
+			
+			mRowListener.onRowsDecoded(mImage, mDecodedRowCount, rowCount);
+			mDecodedRowCount += rowCount;
+			
+		}
+		
+		/**
+		 * Compute the statistics of the image data allocated by
+		 * allocateImageData once they are decoded.
+		 */
+		private void setImageData() {
+			
+			// Compute the statistics once for the histogram and
+			// the grayscale window
+			mImage.computeStatistics();
+			
+			if (mImage.getWindowWidth() <= 0)
+				mImage.setAutoWindow();
 			
 		}
 		
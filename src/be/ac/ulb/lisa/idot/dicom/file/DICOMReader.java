@@ -60,13 +60,17 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import be.ac.ulb.lisa.idot.dicom.DICOMElement;
 import be.ac.ulb.lisa.idot.dicom.DICOMException;
 import be.ac.ulb.lisa.idot.dicom.DICOMItem;
 import be.ac.ulb.lisa.idot.dicom.DICOMSequence;
 import be.ac.ulb.lisa.idot.dicom.DICOMTag;
+import be.ac.ulb.lisa.idot.dicom.DICOMTagSelection;
 import be.ac.ulb.lisa.idot.dicom.DICOMValueRepresentation;
+import be.ac.ulb.lisa.idot.dicom.data.DICOMDataSet;
 import be.ac.ulb.lisa.idot.dicom.data.DICOMMetaInformation;
 
 /**
@@ -93,6 +97,13 @@ public class DICOMReader extends DICOMBufferedInputStream {
 	 */
 	private static final String PREFIX = "DICM";
 	
+	/**
+	 * Required elements of the meta information.
+	 */
+	private static final DICOMTagSelection META_INFORMATION_ELEMENTS =
+		new DICOMTagSelection(0x00020002, 0x00020003, 0x00020010,
+				0x00020012, 0x00020013, 0x00020016);
+	
 	
 	// ---------------------------------------------------------------
 	// - VARIABLES
@@ -113,6 +124,24 @@ public class DICOMReader extends DICOMBufferedInputStream {
 	 */
 	protected long mFileSize = 0;
 	
+	/**
+	 * Lazy data set in which parse records the tag, the value
+	 * representation, the offset and the length of each data
+	 * element it walks, or null.
+	 */
+	protected DICOMDataSet mDataSetIndex = null;
+	
+	/**
+	 * Index of the sequence whose items are parsed in the data
+	 * set index or NO_PARENT.
+	 */
+	private int mIndexParent = DICOMDataSet.NO_PARENT;
+	
+	/**
+	 * Index of the parsed item of the sequence.
+	 */
+	private int mIndexItem = 0;
+	
 	
 	// ---------------------------------------------------------------
 	// + CONSTRUCTORS
@@ -131,6 +160,20 @@ public class DICOMReader extends DICOMBufferedInputStream {
 		mark(Integer.MAX_VALUE);
 	}
 	
+	/**
+	 * Create a DICOMReader that walks a memory-mapped view of the
+	 * file if memoryMapped is true.
+	 * 
+	 * @param file
+	 * @param memoryMapped
+	 * @throws IOException
+	 */
+	public DICOMReader(File file, boolean memoryMapped) throws IOException {
+		super(file, memoryMapped);
+		mFileSize = file.length();
+		mark(Integer.MAX_VALUE);
+	}
+	
 	
 	// ---------------------------------------------------------------
 	// - CONSTRUCTORS
@@ -234,10 +277,17 @@ public class DICOMReader extends DICOMBufferedInputStream {
 			if (tag != 0x00020000)
 				throw new DICOMException("Meta Information has now length");
 			
-			// Skip 4 byte because we now that it is an UL
-			skip(4);
+			// Get the value representation and skip the 2 bytes
+			// of the length because we now that it is an UL
+			DICOMValueRepresentation VR =
+				DICOMValueRepresentation.get(readVRCode());
+			skip(2);
 			mByteOffset += 4;
 			
+			if (mDataSetIndex != null)
+				mDataSetIndex.add(tag, VR, (int) mByteOffset, 4,
+						DICOMDataSet.NO_PARENT, 0);
+			
 			// Get the FileMeta group length
 			long groupLength = readUnsignedLong();
 			mByteOffset+= 4;
@@ -271,6 +321,126 @@ public class DICOMReader extends DICOMBufferedInputStream {
 	}
 	
 	
+	/**
+	 * Parse the meta information and the body of the DICOM file
+	 * in a lazy data set. Only the tag, the value representation,
+	 * the offset and the length of the data elements are read;
+	 * the values are decoded when they are accessed.
+	 * 
+	 * If the end of the file is reached before the end of the
+	 * body, the data set contains the data elements read before.
+	 * 
+	 * @return The lazy data set.
+	 * @throws IOException If the file is not memory-mapped or
+	 * cannot be read.
+	 * @throws DICOMException
+	 */
+	public final DICOMDataSet parseDataSet() throws IOException, DICOMException {
+		
+		if (!isMemoryMapped())
+			throw new IOException("The lazy data set needs a memory-mapped file.");
+		
+		// Reset the BufferedInputStream
+		reset();
+		mark(Integer.MAX_VALUE);
+		mByteOffset = 0;
+		
+		DICOMDataSet dataSet = new DICOMDataSet(mMappedBuffer.duplicate());
+		
+		boolean isExplicit = false;
+		short byteOrder = LITTLE_ENDIAN;
+		
+		try {
+			
+			if (hasMetaInformation()) {
+				
+				// Skip the preamble and the prefix
+				skip(PREAMBLE_LENGTH + PREFIX.length());
+				mByteOffset += PREAMBLE_LENGTH + PREFIX.length();
+				
+				// The meta information is explicit little endian and
+				// begins with its group length
+				setByteOrder(LITTLE_ENDIAN);
+				parseDataSet(dataSet, DICOMDataSet.NO_PARENT, 0, mByteOffset + 12, true);
+				
+				Object groupLength = (dataSet.size() == 1 && dataSet.getTag(0) == 0x00020000)
+					? dataSet.getValue(0) : null;
+				
+				if (!(groupLength instanceof Long))
+					throw new DICOMException("Meta Information has now length");
+				
+				parseDataSet(dataSet, DICOMDataSet.NO_PARENT, 0,
+						mByteOffset + (Long) groupLength, true);
+				
+				int index = dataSet.indexOf(0x00020010);
+				Object transferSyntaxUID = (index < 0) ? null : dataSet.getValue(index);
+				
+				if ("1.2.840.10008.1.2".equals(transferSyntaxUID)) {
+					
+					isExplicit = false;
+					
+				} else if ("1.2.840.10008.1.2.2".equals(transferSyntaxUID)) {
+					
+					isExplicit = true;
+					byteOrder = BIG_ENDIAN;
+					
+				} else {
+					
+					isExplicit = true;
+					
+				}
+				
+			}
+			
+			// Parse the body
+			setByteOrder(byteOrder);
+			dataSet.setByteOrder(byteOrder == BIG_ENDIAN ? ByteOrder.BIG_ENDIAN
+					: ByteOrder.LITTLE_ENDIAN);
+			
+			parseDataSet(dataSet, DICOMDataSet.NO_PARENT, 0, -1, isExplicit);
+			
+		} catch (EOFException ex) {
+			
+			// Keep the data elements read before
+			
+		}
+		
+		return dataSet;
+		
+	}
+	
+	/**
+	 * Get the lazy data set of the DICOM file from its index
+	 * if it is valid, else parse the file.
+	 * 
+	 * @param index Encoded data set index of the file stored with
+	 * its cached image (see DICOMImageReader.getDataSetIndex)
+	 * or null.
+	 * @return The lazy data set.
+	 * @throws IOException If the file is not memory-mapped or
+	 * cannot be read.
+	 * @throws DICOMException
+	 */
+	public final DICOMDataSet parseDataSet(ByteBuffer index)
+			throws IOException, DICOMException {
+		
+		if (index != null && isMemoryMapped()) {
+			
+			try {
+				
+				return DICOMDataSet.decode(index, mMappedBuffer.duplicate());
+				
+			} catch (IOException ex) {
+				// Parse the file
+			}
+			
+		}
+		
+		return parseDataSet();
+		
+	}
+	
+	
 	// ---------------------------------------------------------------
 	// # FUNCTIONS
 	// ---------------------------------------------------------------
@@ -278,6 +448,14 @@ public class DICOMReader extends DICOMBufferedInputStream {
 	/**
 	 * Parse the DICOM file.
 	 * 
+	 * If the length is undefined and there is no parent element,
+	 * the parsing stops at the first tag that comes after the last
+	 * required element. The stream is then positioned after this tag.
+	 * 
+	 * If the data set index is not null, every data element is
+	 * recorded in it, the sequences are parsed and the parsing
+	 * does not stop after the last required element.
+	 * 
 	 * @param parentElement If a sequence is parsed.
 	 * @param length The length to parse. 0xffffffffL is
 	 * the undefined length.
@@ -302,6 +480,8 @@ public class DICOMReader extends DICOMBufferedInputStream {
 		try {
 			
 			// Variable declaration and initialization
+			DICOMTagSelection requiredElements =
+				dicomReaderFunctions.getRequiredElements();
 			DICOMTag dicomTag = null;
 			DICOMValueRepresentation VR = null;
 			long valueLength = 0;
@@ -354,21 +534,25 @@ public class DICOMReader extends DICOMBufferedInputStream {
 					continue;
 				}
 				
+				// If all the required elements of the data set
+				// are parsed, stop
+				if (isLengthUndefined && parentElement == null
+						&& mDataSetIndex == null
+						&& requiredElements.isAfterLast(tag))
+					return;
+				
 				// Get the value representation and length
 				// and create the DICOMTag.
 				if (isExplicit) {
 					
 					// Get the DICOM value representation code/abreviation
-					String VRAbbreviation = readASCII(2);
+					VR = DICOMValueRepresentation.get(readVRCode());
 					mByteOffset += 2;
 					
-					VR = DICOMValueRepresentation.c.get(VRAbbreviation);
-					VR = (VR == null) ? DICOMValueRepresentation.c.get("UN") : VR;
-					
 					dicomTag = DICOMTag.createDICOMTag(tag, VR);
 					
 					// If the value is on 2 bytes
-					if (hasValueLengthOn2Bytes(VR.getVR())) {
+					if (VR.hasValueLengthOn2Bytes()) {
 						
 						valueLength = readUnsignedInt16();
 						mByteOffset += 2;
@@ -388,7 +572,7 @@ public class DICOMReader extends DICOMBufferedInputStream {
 					dicomTag = DICOMTag.createDICOMTag(tag);
 					
 					VR = dicomTag.getValueRepresentation();
-					VR = (VR == null) ? DICOMValueRepresentation.c.get("UN") : VR;
+					VR = (VR == null) ? DICOMValueRepresentation.UNKNOWN : VR;
 					
 					// If the value lengths are implicit, the length of the value
 					// comes directly after the tag
@@ -399,20 +583,42 @@ public class DICOMReader extends DICOMBufferedInputStream {
 				
 				valueLength = valueLength & 0xffffffffL;
 				
+				int VRCode = VR.getCode();
+				
+				// Record the data element in the data set index
+				int index = DICOMDataSet.NO_PARENT;
+				
+				if (mDataSetIndex != null)
+					index = mDataSetIndex.add(tag, VR, (int) mByteOffset,
+							valueLength == 0xffffffffL ? DICOMDataSet.UNDEFINED_LENGTH
+									: (int) valueLength,
+							mIndexParent, mIndexItem);
+				
 				// Get the value
 				// If it is a sequence, read a new sequence
-				if (VR.equals("SQ")
-						|| VR.equals("UN") && valueLength == 0xffffffffL) {
+				if (VR.isSequence()
+						|| VRCode == DICOMValueRepresentation.UN
+						&& valueLength == 0xffffffffL) {
 					
 					// If the attribute has undefined value length
 					// and/or do not skip sequence
-					if (!skipSequence || valueLength == 0xffffffffL) {
+					if (!skipSequence || valueLength == 0xffffffffL
+							|| mDataSetIndex != null) {
 						
-						// Parse the sequence
+						int indexParent = mIndexParent;
+						int indexItem = mIndexItem;
+						mIndexParent = index;
+						
+						// Parse the sequence. The unknown values
+						// are implicit (PS 3.5-2009 6.2.2)
 						element = new DICOMSequence(dicomTag);
-						parseSequence((DICOMSequence) element, valueLength, isExplicit,
+						parseSequence((DICOMSequence) element, valueLength,
+								VR.isSequence() && isExplicit,
 								dicomReaderFunctions, skipSequence);
 						
+						mIndexParent = indexParent;
+						mIndexItem = indexItem;
+						
 					} else {
 						
 						// Skip the value length
@@ -432,7 +638,7 @@ public class DICOMReader extends DICOMBufferedInputStream {
 					
 					// If it's not a required element, skip it
 					if (parentElement != null ||
-							!dicomReaderFunctions.isRequiredElement(tag)) {
+							!requiredElements.contains(tag)) {
 						
 						skip(valueLength);
 						mByteOffset += valueLength;
@@ -440,194 +646,20 @@ public class DICOMReader extends DICOMBufferedInputStream {
 						
 					}
 					
-					Object value = null;
-					
-					if (VR.equals("UL")) {
-						
-						if (valueLength == 4) {
-							
-							value = readUnsignedLong();
-							mByteOffset += 4;
-							
-						} else {
-							
-							int size = (int) (valueLength / 4);
-							long[] values = new long[size];
-							
-							for (int i = 0; i < size; i++) {
-								
-								values[i] = readUnsignedLong();
-								mByteOffset += 4;
-								
-							}
-							
-							value = values;
-							
-						}
-						
-					} else if (VR.equals("AT")) {
-						
-						value = readTag();
-						mByteOffset += 4;
-					
-					} else if (VR.equals("OB") || VR.equals("OF")
-							|| VR.equals("OW")) {
-						
-						String valueString = new String();
-						
-						for (int i = 0; i < valueLength; i++) {
-							
-							valueString += (i == 0) ? "" : "\\";
-							valueString += String.valueOf(read());
-							mByteOffset++;
-							
-						}
-						
-						value = valueString;
-						
-					} else if (VR.equals("FL")) {
-						
-						// if the value length is greater
-						// than 4 it is an array of float
-						if (valueLength ==  4) {
-							
-							value = readFloatSingle();
-							mByteOffset += 4;
-							
-						} else {
-						
-							int size = (int) (valueLength / 4);
-							float[] values = new float[size];
-							
-							for (int i = 0; i < size; i++) {
-								
-								values[i] = readFloatSingle();
-								mByteOffset += 4;
-								
-							}
-							
-							value = values;
-							
-						}
-						
-					} else if (VR.equals("FD")) {
-						
-						// if the value length is greater
-						// than 8 it is an array of double
-						if (valueLength == 8) {
-							
-							value = readFloatDouble();
-							mByteOffset += 8;
-							
-						} else {
-							
-							int size = (int) (valueLength / 8);
-							double[] values = new double[size];
-							
-							for (int i = 0; i < size; i++) {
-								
-								values[i] = readFloatDouble();
-								mByteOffset += 8;
-								
-							}
-							
-							value = values;
-							
-						}
-						
-					} else if (VR.equals("SL")) {
-						
-						// if the value length is greater
-						// than 4 it is an array of int
-						if (valueLength == 4) {
-							
-							value = readSignedLong();
-							mByteOffset += 4;
-							
-						} else {
-							
-							int size = (int) (valueLength / 4);
-							int[] values = new int[size];
-							
-							for (int i = 0; i < size; i++) {
-								
-								values[i] = readSignedLong();
-								mByteOffset += 4;
-								
-							}
-							
-							value = values;
-							
-						}
-						
-					} else if (VR.equals("SS")) {
-						
-						// if the value length is greater
-						// than 2 it is an array of short
-						if (valueLength == 2) {
-							
-							value = readSignedShort();
-							mByteOffset += 2;
-							
-						} else {
-						
-							int size = (int) (valueLength / 2);
-							short[] values = new short[size];
-							
-							for (int i = 0; i < size; i++) {
-								
-								values[i] = readSignedShort();
-								mByteOffset += 2;
-								
-							}
-							
-							value = values;
-							
-						}
-						
-					} else if (VR.equals("US")) {
-						
-						// if the value length is greater
-						// than 2 it is an array of int
-						if (valueLength ==  2) {
-							
-							value = readUnsignedShort();
-							mByteOffset += 2;
-							
-						} else {
-						
-							int size = (int) (valueLength / 2);
-							int[] values = new int[size];
-							
-							for (int i = 0; i < size; i++) {
-								
-								values[i] = readUnsignedShort();
-								mByteOffset += 2;
-								
-							}
-							
-							value = values;
-							
-						}
-						
-					} else if (VR.equals("LO") || VR.equals("LT")
-							|| VR.equals("PN") || VR.equals("SH")
-							|| VR.equals("ST") || VR.equals("UT")) {
-						
-						value = readString((int) valueLength, mSpecificCharset);
-						mByteOffset += valueLength;
-											
-					// Else interpreted as ASCII String
-					} else {
-						
-						value = readASCII((int) valueLength);
-						mByteOffset += valueLength;
-						
-					}
+					// Decode the value
+					Object value = VR.decodeValue(readBuffer((int) valueLength),
+							mSpecificCharset);
+					mByteOffset += valueLength;
 					
 					// Create the element
 					element = new DICOMElement(dicomTag, valueLength, value);
 				
+				// Else it is an encapsulated value, skip its fragments
+				} else {
+					
+					skipFragments();
+					continue;
+					
 				}
 				
 				if (element != null) {
@@ -687,6 +719,8 @@ public class DICOMReader extends DICOMBufferedInputStream {
 			long lastByteOffset = isLengthUndefined ? 0xffffffffL
 					: mByteOffset + length - 1;
 			
+			int itemCount = 0;
+			
 			// Loop on all the items
 			while (isLengthUndefined || mByteOffset < lastByteOffset) {
 				
@@ -705,6 +739,8 @@ public class DICOMReader extends DICOMBufferedInputStream {
 					
 					DICOMItem item = new DICOMItem();
 					
+					mIndexItem = itemCount++;
+					
 					parse(item, valueLength, isExplicit,
 							dicomReaderFunctions, skipSequence);
 					
@@ -741,12 +777,192 @@ public class DICOMReader extends DICOMBufferedInputStream {
 	 * @return
 	 */
 	protected static final boolean hasValueLengthOn2Bytes(String VR) {
-		return VR.equals("AR") || VR.equals("AE") || VR.equals("AS") || VR.equals("AT")
-			|| VR.equals("CS") || VR.equals("DA") || VR.equals("DS") || VR.equals("DT")
-			|| VR.equals("FD") || VR.equals("FL") || VR.equals("IS") || VR.equals("LO")
-			|| VR.equals("LT") || VR.equals("PN") || VR.equals("SH") || VR.equals("SL")
-			|| VR.equals("SL") || VR.equals("SS") || VR.equals("ST") || VR.equals("TM")
-			|| VR.equals("UI") || VR.equals("UL") || VR.equals("US");
+		return VR != null && VR.length() == 2
+			&& DICOMValueRepresentation.get(DICOMValueRepresentation.getCode(
+					VR.charAt(0), VR.charAt(1))).hasValueLengthOn2Bytes();
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Record the data elements of a data set in a lazy data set
+	 * and skip their values.
+	 * 
+	 * @param dataSet The lazy data set.
+	 * @param parent Index of the parent sequence or NO_PARENT.
+	 * @param item Index of the item in the parent sequence.
+	 * @param end Byte offset of the end of the data set or -1
+	 * if its length is undefined.
+	 * @param isExplicit Set if the data set has explicit (true)
+	 * or implicit (false) value representation.
+	 * @throws IOException
+	 * @throws EOFException
+	 * @throws DICOMException
+	 */
+	private void parseDataSet(DICOMDataSet dataSet, int parent, int item,
+			long end, boolean isExplicit)
+			throws IOException, EOFException, DICOMException {
+		
+		while ((end < 0 || mByteOffset < end) && mByteOffset < mFileSize) {
+			
+			int tag = readTag();
+			mByteOffset += 4;
+			
+			// If the tag is an item delimitation, this is
+			// the end of the item
+			if (tag == 0xfffee00d) {
+				
+				skip(4);
+				mByteOffset += 4;
+				
+				return;
+			}
+			
+			// If the tag is an Item, ignore it
+			if (tag == 0xfffee000) {
+				
+				skip(4);
+				mByteOffset += 4;
+				
+				continue;
+			}
+			
+			DICOMValueRepresentation VR;
+			long valueLength;
+			
+			if (isExplicit) {
+				
+				VR = DICOMValueRepresentation.get(readVRCode());
+				mByteOffset += 2;
+				
+				if (VR.hasValueLengthOn2Bytes()) {
+					
+					valueLength = readUnsignedInt16();
+					mByteOffset += 2;
+					
+				} else {
+					
+					skip(2);
+					
+					valueLength = readUnsignedLong();
+					mByteOffset += 6;
+					
+				}
+				
+			} else {
+				
+				VR = DICOMTag.createDICOMTag(tag).getValueRepresentation();
+				
+				valueLength = readUnsignedLong();
+				mByteOffset += 4;
+				
+			}
+			
+			boolean isLengthUndefined = valueLength == 0xffffffffL;
+			
+			int index = dataSet.add(tag, VR, (int) mByteOffset,
+					isLengthUndefined ? DICOMDataSet.UNDEFINED_LENGTH : (int) valueLength,
+					parent, item);
+			
+			// A sequence and an unknown value with undefined length
+			// contain items. The unknown values are implicit
+			// (PS 3.5-2009 6.2.2)
+			if (VR.isSequence()
+					|| VR.getCode() == DICOMValueRepresentation.UN && isLengthUndefined) {
+				
+				parseDataSetSequence(dataSet, index,
+						isLengthUndefined ? -1 : mByteOffset + valueLength,
+						VR.isSequence() && isExplicit);
+				
+			// Else if it is an encapsulated value, skip its fragments
+			} else if (isLengthUndefined) {
+				
+				skipFragments();
+				
+			} else {
+				
+				skip(valueLength);
+				mByteOffset += valueLength;
+				
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Record the data elements of the items of a sequence in a
+	 * lazy data set.
+	 * 
+	 * @param dataSet The lazy data set.
+	 * @param sequence Index of the sequence.
+	 * @param end Byte offset of the end of the sequence or -1
+	 * if its length is undefined.
+	 * @param isExplicit Set if the items have explicit (true)
+	 * or implicit (false) value representation.
+	 * @throws IOException
+	 * @throws EOFException
+	 * @throws DICOMException
+	 */
+	private void parseDataSetSequence(DICOMDataSet dataSet, int sequence,
+			long end, boolean isExplicit)
+			throws IOException, EOFException, DICOMException {
+		
+		int item = 0;
+		
+		while ((end < 0 || mByteOffset < end) && mByteOffset < mFileSize) {
+			
+			int tag = readTag();
+			mByteOffset += 4;
+			
+			long itemLength = readUnsignedLong();
+			mByteOffset += 4;
+			
+			// If the tag is a sequence delimitation
+			if (tag == 0xfffee0dd)
+				return;
+			
+			if (tag != 0xfffee000)
+				throw new DICOMException("Error Sequence: unknown tag "
+						+ Integer.toHexString(tag));
+			
+			parseDataSet(dataSet, sequence, item++,
+					itemLength == 0xffffffffL ? -1 : mByteOffset + itemLength,
+					isExplicit);
+			
+		}
+		
+	}
+	
+	/**
+	 * Skip the fragments of an encapsulated value up to the
+	 * sequence delimitation.
+	 * 
+	 * @throws IOException
+	 * @throws EOFException
+	 */
+	private void skipFragments() throws IOException, EOFException {
+		
+		while (mByteOffset < mFileSize) {
+			
+			int tag = readTag();
+			mByteOffset += 4;
+			
+			long fragmentLength = readUnsignedLong();
+			mByteOffset += 4;
+			
+			// If the tag is a sequence delimitation
+			if (tag == 0xfffee0dd)
+				return;
+			
+			skip(fragmentLength);
+			mByteOffset += fragmentLength;
+			
+		}
+		
 	}
 	
 	
@@ -820,9 +1036,8 @@ public class DICOMReader extends DICOMBufferedInputStream {
 			
 		}
 
-		public boolean isRequiredElement(int tag) {
-			return (tag == 0x00020002) || (tag == 0x00020003) || (tag == 0x00020010)
-				|| (tag == 0x00020012) || (tag == 0x00020013) || (tag == 0x00020016);
+		public DICOMTagSelection getRequiredElements() {
+			return META_INFORMATION_ELEMENTS;
 		}
 
 		public void computeImage(DICOMElement parent, DICOMValueRepresentation VR,
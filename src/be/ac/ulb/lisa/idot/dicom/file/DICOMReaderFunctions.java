@@ -38,6 +38,7 @@ import java.io.IOException;
 
 import be.ac.ulb.lisa.idot.dicom.DICOMElement;
 import be.ac.ulb.lisa.idot.dicom.DICOMException;
+import be.ac.ulb.lisa.idot.dicom.DICOMTagSelection;
 import be.ac.ulb.lisa.idot.dicom.DICOMValueRepresentation;
 
 /**
@@ -59,13 +60,13 @@ public interface DICOMReaderFunctions {
 	void addDICOMElement(DICOMElement parent, DICOMElement element);
 	
 	/**
-	 * Check if the DICOM element is required for DICOMTag integer value
-	 * tag.
+	 * Get the tags of the DICOM elements that are required. The
+	 * other DICOM elements are skipped. When the parser reaches
+	 * a tag that comes after the last required tag, it stops.
 	 * 
-	 * @param tag Integer value of the DICOMTag to check.
-	 * @return
+	 * @return Selection of the required tags.
 	 */
-	boolean isRequiredElement(int tag);
+	DICOMTagSelection getRequiredElements();
 	
 	
 	/**
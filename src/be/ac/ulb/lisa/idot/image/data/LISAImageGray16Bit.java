@@ -33,6 +33,9 @@
 
 package be.ac.ulb.lisa.idot.image.data;
 
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
 /**
  * LISA 16-Bit grayscale image.
  * 
@@ -59,9 +62,26 @@ public class LISAImageGray16Bit {
 	protected short mHeight = 0;
 	
 	/**
-	 * Image data.
+	 * Image data. The 16-bit samples are stored as unsigned
+	 * values in a short array, use getPixel to read them.
+	 * It is null if the data are stored in a direct buffer.
+	 */
+	protected short[] mData = null;
+	
+	/**
+	 * Image data stored outside of the Java heap.
+	 */
+	protected ShortBuffer mDirectData = null;
+	
+	/**
+	 * Direct buffer that backs mDirectData.
+	 */
+	protected ByteBuffer mDirectBuffer = null;
+	
+	/**
+	 * Arena from which mDirectBuffer was allocated.
 	 */
-	protected int[] mData = null;
+	protected LISAPixelArena mArena = null;
 	
 	/**
 	 * Maximum value of the data.
@@ -78,6 +98,11 @@ public class LISAImageGray16Bit {
 	 */
 	protected int mHistogramMax = 0;
 	
+	/**
+	 * Statistics of the image data.
+	 */
+	protected LISAImageGray16BitStatistics mStatistics = null;
+	
 	/**
 	 * The total number of gray level.
 	 */
@@ -127,17 +152,73 @@ public class LISAImageGray16Bit {
 	}
 
 	/**
-	 * @return Image data.
+	 * @return Image data. The samples are unsigned 16-bit
+	 * values, they must be masked with 0xffff. It is null if
+	 * the data are stored in a direct buffer, use getPixels
+	 * to read them in this case.
 	 */
-	public int[] getData() {
+	public short[] getData() {
 		return mData;
 	}
 	
+	/**
+	 * Get the unsigned value of a pixel.
+	 * 
+	 * @param index Index of the pixel.
+	 * @return The pixel value.
+	 */
+	public int getPixel(int index) {
+		
+		if (mData != null)
+			return mData[index] & 0xffff;
+		
+		return mDirectData.get(index) & 0xffff;
+		
+	}
+	
+	/**
+	 * Copy pixels to an array. The copied values are unsigned
+	 * 16-bit values, they must be masked with 0xffff.
+	 * 
+	 * @param index Index of the first pixel.
+	 * @param dst Destination array.
+	 * @param offset Offset in the destination array.
+	 * @param length Number of pixels to copy.
+	 */
+	public void getPixels(int index, short[] dst, int offset, int length) {
+		
+		if (mData != null) {
+			
+			System.arraycopy(mData, index, dst, offset, length);
+			
+		} else {
+			
+			ShortBuffer data = mDirectData.duplicate();
+			data.position(index);
+			data.get(dst, offset, length);
+			
+		}
+		
+	}
+	
+	/**
+	 * @return True if the data are stored in a direct
+	 * buffer, false otherwise.
+	 */
+	public boolean isDirect() {
+		return mDirectData != null;
+	}
+	
 	/**
 	 * @return Image data length.
 	 */
 	public int getDataLength() {
-		return mData == null ? 0 : mData.length;
+		
+		if (mData != null)
+			return mData.length;
+		
+		return mDirectData == null ? 0 : mDirectData.limit();
+		
 	}
 
 	/**
@@ -170,6 +251,22 @@ public class LISAImageGray16Bit {
 		return mHistogramMax;
 	}
 
+	/**
+	 * Get the statistics of the image data. If they are not
+	 * computed yet, they are computed.
+	 * 
+	 * @return Statistics of the image data or null if there
+	 * is no data.
+	 */
+	public LISAImageGray16BitStatistics getStatistics() {
+		
+		if (mStatistics == null)
+			computeStatistics();
+		
+		return mStatistics;
+		
+	}
+	
 	/**
 	 * @return The number of gray level.
 	 */
@@ -222,9 +319,47 @@ public class LISAImageGray16Bit {
 	/**
 	 * @param data The data to set.
 	 */
-	public void setData(int[] data) {
+	public void setData(short[] data) {
+		release();
 		mData = data;
 	}
+	
+	/**
+	 * Set the data as a direct buffer. The buffer contains
+	 * the 16-bit samples in its byte order from its position
+	 * to its limit.
+	 * 
+	 * @param data The direct buffer to set.
+	 * @param arena The arena from which the buffer was allocated
+	 * or null.
+	 */
+	public void setData(ByteBuffer data, LISAPixelArena arena) {
+		
+		release();
+		
+		mDirectBuffer = data;
+		mDirectData = data.asShortBuffer();
+		mArena = arena;
+		
+	}
+	
+	/**
+	 * Release the image data. If the data are stored in a
+	 * direct buffer, it is given back to its arena. The
+	 * image has no data after this call.
+	 */
+	public void release() {
+		
+		if (mArena != null)
+			mArena.release(mDirectBuffer);
+		
+		mData = null;
+		mDirectData = null;
+		mDirectBuffer = null;
+		mArena = null;
+		mStatistics = null;
+		
+	}
 
 	/**
 	 * @param dataMax The dataMax to set.
@@ -268,6 +403,106 @@ public class LISAImageGray16Bit {
 		mWindowCenter = windowCenter;
 	}
 	
+	/**
+	 * Set the statistics of the image data and the maximum
+	 * data value, the histogram data and the histogram maximum
+	 * value that derive from them.
+	 * 
+	 * @param statistics The statistics to set.
+	 */
+	public void setStatistics(LISAImageGray16BitStatistics statistics) {
+		
+		mStatistics = statistics;
+		
+		if (statistics == null)
+			return;
+		
+		mDataMax = statistics.getMax();
+		mHistogramData = statistics.getHistogram();
+		mHistogramMax = statistics.getHistogramMax();
+		
+	}
+	
+	/**
+	 * Compute the statistics of the image data in a single
+	 * pass and set them.
+	 */
+	public void computeStatistics() {
+		
+		if (mData != null)
+			setStatistics(LISAImageGray16BitStatistics.compute(mData, mGrayLevel));
+		
+		else if (mDirectData != null)
+			setStatistics(LISAImageGray16BitStatistics.compute(mDirectData, mGrayLevel));
+		
+	}
+	
+	/**
+	 * Create a thumbnail of the image. The image is subsampled
+	 * by the smallest integer factor that makes it fit in a
+	 * square of maxSize pixels. The thumbnail data are stored
+	 * in the Java heap and the thumbnail keeps the gray level
+	 * range, the window and the orientation of the image.
+	 * 
+	 * @param maxSize Maximum width and height of the thumbnail.
+	 * @return The thumbnail.
+	 */
+	public LISAImageGray16Bit createThumbnail(int maxSize) {
+		
+		if (maxSize < 1)
+			throw new IllegalArgumentException("The thumbnail size is less than 1.");
+		
+		int factor = Math.max(1, (Math.max(mWidth, mHeight) + maxSize - 1) / maxSize);
+		
+		int width = Math.max(1, mWidth / factor);
+		int height = Math.max(1, mHeight / factor);
+		
+		short[] data = new short[width * height];
+		short[] row = new short[mWidth];
+		
+		// Keep the first pixel of each factor x factor block
+		for (int y = 0; y < height; y++) {
+			
+			getPixels(y * factor * mWidth, row, 0, mWidth);
+			
+			for (int x = 0; x < width; x++)
+				data[y * width + x] = row[x * factor];
+			
+		}
+		
+		LISAImageGray16Bit thumbnail = new LISAImageGray16Bit();
+		thumbnail.setWidth((short) width);
+		thumbnail.setHeight((short) height);
+		thumbnail.setData(data);
+		thumbnail.setDataMax(mDataMax);
+		thumbnail.setGrayLevel(mGrayLevel);
+		thumbnail.setWindowWidth(mWindowWidth);
+		thumbnail.setWindowCenter(mWindowCenter);
+		thumbnail.setImageOrientation(mImageOrientation);
+		
+		return thumbnail;
+		
+	}
+	
+	/**
+	 * Set the window width and center such that the window
+	 * covers the data from its 1st to its 99th percentile.
+	 */
+	public void setAutoWindow() {
+		
+		LISAImageGray16BitStatistics statistics = getStatistics();
+		
+		if (statistics == null)
+			return;
+		
+		int lower = statistics.getPercentile(0.01f);
+		int upper = statistics.getPercentile(0.99f);
+		
+		mWindowWidth = Math.max(upper - lower, 1);
+		mWindowCenter = lower + mWindowWidth / 2;
+		
+	}
+	
 	/**
 	 * @param imageOrientation The image orientation array.
 	 */
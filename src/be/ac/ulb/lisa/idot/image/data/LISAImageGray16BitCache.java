@@ -0,0 +1,285 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <LISAImageGray16BitCache.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.image.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-bounded cache of decoded LISA 16-Bit grayscale
+ * images, evicted in least recently used order.
+ * 
+ * The cache owns its images: an evicted image is released,
+ * so its pixel data go back to their arena. The pinned image,
+ * which is the displayed image, is never evicted. An image
+ * that is not in the cache must be released by its owner.
+ * 
+ * The cache is used by several threads.
+ * 
+ * @param <K> Type of the keys of the images.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class LISAImageGray16BitCache<K> {
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Maximum number of bytes of pixel data in the cache.
+	 */
+	private final long mMaxBytes;
+	
+	/**
+	 * Number of bytes of pixel data in the cache.
+	 */
+	private long mBytes = 0;
+	
+	/**
+	 * Images in access order, the least recently used first.
+	 */
+	private final LinkedHashMap<K, LISAImageGray16Bit> mImages =
+		new LinkedHashMap<K, LISAImageGray16Bit>(16, 0.75f, true);
+	
+	/**
+	 * Image that is never evicted or null.
+	 */
+	private LISAImageGray16Bit mPinnedImage = null;
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	public LISAImageGray16BitCache(long maxBytes) {
+		
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("The maximum cache size"
+					+ " is negative.");
+		
+		mMaxBytes = maxBytes;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Get an image and mark it as the most recently used.
+	 * 
+	 * @param key
+	 * @return The image or null if it is not in the cache.
+	 */
+	public synchronized LISAImageGray16Bit get(K key) {
+		return mImages.get(key);
+	}
+	
+	/**
+	 * Get an image and pin it. The previous pinned image can
+	 * be evicted again.
+	 * 
+	 * @param key
+	 * @return The image or null if it is not in the cache, in
+	 * which case the pinned image does not change.
+	 */
+	public synchronized LISAImageGray16Bit pin(K key) {
+		
+		LISAImageGray16Bit image = mImages.get(key);
+		
+		if (image != null)
+			mPinnedImage = image;
+		
+		return image;
+		
+	}
+	
+	/**
+	 * @param key
+	 * @return True if the cache contains an image for the key,
+	 * without changing the access order.
+	 */
+	public synchronized boolean containsKey(K key) {
+		return mImages.containsKey(key);
+	}
+	
+	/**
+	 * @param image
+	 * @return True if the cache owns the image.
+	 */
+	public synchronized boolean containsImage(LISAImageGray16Bit image) {
+		return mImages.containsValue(image);
+	}
+	
+	/**
+	 * Put an image in the cache as the most recently used and
+	 * evict the least recently used images if the cache is
+	 * full. If the cache already contains an image for the
+	 * key, the new image is released and the cached image is
+	 * returned, such that a slice decoded twice is kept once.
+	 * 
+	 * @param key
+	 * @param image
+	 * @return The cached image for the key.
+	 */
+	public synchronized LISAImageGray16Bit put(K key, LISAImageGray16Bit image) {
+		return put(key, image, false);
+	}
+	
+	/**
+	 * Put an image in the cache like put and pin the cached
+	 * image for the key in the same step, such that it cannot
+	 * be evicted by another thread before it is pinned.
+	 * 
+	 * @param key
+	 * @param image
+	 * @return The cached and pinned image for the key.
+	 */
+	public synchronized LISAImageGray16Bit putPinned(K key, LISAImageGray16Bit image) {
+		return put(key, image, true);
+	}
+	
+	/**
+	 * Release all the images but the pinned image, which is
+	 * removed from the cache without being released.
+	 */
+	public synchronized void clear() {
+		
+		for (LISAImageGray16Bit image : mImages.values()) {
+			
+			if (image != mPinnedImage)
+				image.release();
+			
+		}
+		
+		mImages.clear();
+		mBytes = 0;
+		
+	}
+	
+	/**
+	 * @return Number of bytes of pixel data in the cache.
+	 */
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Put an image in the cache.
+	 * 
+	 * @param key
+	 * @param image
+	 * @param isPinned True if the cached image is pinned.
+	 * @return The cached image for the key.
+	 */
+	private LISAImageGray16Bit put(K key, LISAImageGray16Bit image,
+			boolean isPinned) {
+		
+		if (image == null)
+			throw new NullPointerException("The image is null.");
+		
+		LISAImageGray16Bit cachedImage = mImages.get(key);
+		
+		if (cachedImage != null) {
+			
+			if (cachedImage != image && image != mPinnedImage)
+				image.release();
+			
+			image = cachedImage;
+			
+		} else {
+			
+			mImages.put(key, image);
+			mBytes += getSize(image);
+			
+		}
+		
+		if (isPinned)
+			mPinnedImage = image;
+		
+		trim();
+		
+		return image;
+		
+	}
+	
+	/**
+	 * Evict the least recently used images until the size of
+	 * the cache is not greater than its maximum size.
+	 */
+	private void trim() {
+		
+		Iterator<Map.Entry<K, LISAImageGray16Bit>> iterator =
+			mImages.entrySet().iterator();
+		
+		while (mBytes > mMaxBytes && iterator.hasNext()) {
+			
+			LISAImageGray16Bit image = iterator.next().getValue();
+			
+			if (image == mPinnedImage)
+				continue;
+			
+			iterator.remove();
+			mBytes -= getSize(image);
+			
+			image.release();
+			
+		}
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param image
+	 * @return Number of bytes of the pixel data of the image.
+	 */
+	private static long getSize(LISAImageGray16Bit image) {
+		return 2L * image.getDataLength();
+	}
+	
+}
@@ -0,0 +1,68 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <LISAImageGray16BitRowListener.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.image.data;
+
+/**
+ * Listener of the decoding of the rows of a LISA 16-Bit
+ * grayscale image. It allows to display the top of a large
+ * image while the rest is decoded.
+ * 
+ * The functions are called by the decoding thread.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public interface LISAImageGray16BitRowListener {
+	
+	/**
+	 * Called when the image data are allocated, before the
+	 * first row is decoded. The width, the height, the gray
+	 * level and the window of the header are set.
+	 * 
+	 * @param image
+	 */
+	void onImageStarted(LISAImageGray16Bit image);
+	
+	/**
+	 * Called when a band of rows is decoded. The rows can be
+	 * read from the image, the next rows are not decoded yet.
+	 * 
+	 * @param image
+	 * @param firstRow Index of the first decoded row.
+	 * @param rowCount Number of decoded rows.
+	 */
+	void onRowsDecoded(LISAImageGray16Bit image, int firstRow, int rowCount);
+	
+}
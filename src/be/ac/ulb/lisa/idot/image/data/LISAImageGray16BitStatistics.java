@@ -0,0 +1,546 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <LISAImageGray16BitStatistics.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.image.data;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Statistics of a LISA 16-Bit grayscale image: minimum, maximum,
+ * mean, histogram, histogram maximum and percentiles.
+ * 
+ * The statistics are computed in a single pass over the image
+ * data. Each pixel costs one increment of the histogram and one
+ * addition, the other statistics are derived from the histogram.
+ * Large images are split across the available processors.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class LISAImageGray16BitStatistics {
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Number of values that can be coded on 16 bits.
+	 */
+	private static final int VALUE_COUNT = 65536;
+	
+	/**
+	 * Minimum number of pixels for which the computation
+	 * is split across the processors.
+	 */
+	private static final int PARALLEL_PIXEL_COUNT = 1 << 20;
+	
+	/**
+	 * Number of pixels copied at once from a direct buffer.
+	 */
+	private static final int CHUNK_PIXEL_COUNT = 8192;
+	
+	/**
+	 * Maximum number of value histograms kept for the next
+	 * computations.
+	 */
+	private static final int POOLED_HISTOGRAM_COUNT =
+		Runtime.getRuntime().availableProcessors() + 1;
+	
+	/**
+	 * The cleared value histograms of VALUE_COUNT entries
+	 * that are reused by the next computations.
+	 */
+	private static final List<int[]> POOLED_HISTOGRAMS = new ArrayList<int[]>();
+	
+	/**
+	 * The workers that compute parts of the large images.
+	 * They are shared by all the computations and created
+	 * when they are first needed.
+	 */
+	private static ExecutorService sWorkers = null;
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Minimum value of the data.
+	 */
+	private final int mMin;
+	
+	/**
+	 * Maximum value of the data.
+	 */
+	private final int mMax;
+	
+	/**
+	 * Mean value of the data.
+	 */
+	private final double mMean;
+	
+	/**
+	 * Number of pixels.
+	 */
+	private final int mCount;
+	
+	/**
+	 * Histogram of the data. Its length is the greatest
+	 * value between the gray level and the maximum value + 1.
+	 */
+	private final int[] mHistogram;
+	
+	/**
+	 * Maximum value of the histogram for the values
+	 * that are smaller than the gray level.
+	 */
+	private final int mHistogramMax;
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	public LISAImageGray16BitStatistics(int min, int max, double mean, int count,
+			int[] histogram, int histogramMax) {
+		
+		mMin = min;
+		mMax = max;
+		mMean = mean;
+		mCount = count;
+		mHistogram = histogram;
+		mHistogramMax = histogramMax;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Compute the statistics of the image data.
+	 * 
+	 * @param data Image data.
+	 * @param grayLevel Number of gray levels of the image.
+	 * @return Statistics of the image data.
+	 */
+	public static LISAImageGray16BitStatistics compute(short[] data, int grayLevel) {
+		return compute(ShortBuffer.wrap(data), grayLevel);
+	}
+	
+	/**
+	 * Compute the statistics of the image data stored in a buffer.
+	 * The data are read from index 0 to the limit of the buffer.
+	 * 
+	 * @param data Image data.
+	 * @param grayLevel Number of gray levels of the image.
+	 * @return Statistics of the image data.
+	 */
+	public static LISAImageGray16BitStatistics compute(final ShortBuffer data, int grayLevel) {
+		
+		final int length = data.limit();
+		int[] valueHistogram = acquireHistogram();
+		int[][] partHistograms = null;
+		long sum = 0;
+		
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		
+		if (length < PARALLEL_PIXEL_COUNT || threadCount < 2) {
+			
+			sum = accumulate(data, 0, length, valueHistogram);
+			
+		} else {
+			
+			// Each worker computes the histogram of a part of the
+			// data, the current thread computes the last part. The
+			// histograms are acquired here, such that an allocation
+			// failure is thrown by the current thread.
+			final int partLength = length / threadCount;
+			
+			partHistograms = new int[threadCount - 1][];
+			
+			for (int i = 0; i < partHistograms.length; i++)
+				partHistograms[i] = acquireHistogram();
+			
+			ExecutorService workers = getWorkers(threadCount - 1);
+			
+			List<Future<Long>> futures = new ArrayList<Future<Long>>(threadCount - 1);
+			
+			for (int i = 0; i < partHistograms.length; i++) {
+				
+				final int from = i * partLength;
+				final int[] partHistogram = partHistograms[i];
+				
+				futures.add(workers.submit(new Callable<Long>() {
+					
+					public Long call() {
+						return accumulate(data, from, from + partLength, partHistogram);
+					}
+					
+				}));
+				
+			}
+			
+			sum = accumulate(data, futures.size() * partLength, length, valueHistogram);
+			
+			// Wait for the workers and merge the histograms. The
+			// parts are needed, so the wait goes on if the thread
+			// is interrupted.
+			boolean isInterrupted = false;
+			
+			for (int i = 0; i < futures.size(); i++) {
+				
+				try {
+					
+					sum += futures.get(i).get();
+					
+				} catch (InterruptedException ex) {
+					
+					isInterrupted = true;
+					i--;
+					continue;
+					
+				} catch (ExecutionException ex) {
+					
+					if (ex.getCause() instanceof RuntimeException)
+						throw (RuntimeException) ex.getCause();
+					
+					if (ex.getCause() instanceof Error)
+						throw (Error) ex.getCause();
+					
+					throw new RuntimeException(ex.getCause());
+					
+				}
+				
+				int[] partHistogram = partHistograms[i];
+				
+				for (int j = 0; j < VALUE_COUNT; j++)
+					valueHistogram[j] += partHistogram[j];
+				
+			}
+			
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+			
+		}
+		
+		LISAImageGray16BitStatistics statistics =
+			fromValueHistogram(valueHistogram, sum, length, grayLevel);
+		
+		// The values of all the histograms are between the
+		// minimum and the maximum
+		releaseHistogram(valueHistogram, statistics.getMin(), statistics.getMax());
+		
+		if (partHistograms != null)
+			for (int[] partHistogram : partHistograms)
+				releaseHistogram(partHistogram, statistics.getMin(), statistics.getMax());
+		
+		return statistics;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Get a cleared value histogram from the pool or allocate
+	 * it if the pool is empty.
+	 * 
+	 * @return Value histogram of VALUE_COUNT entries.
+	 */
+	private static int[] acquireHistogram() {
+		
+		synchronized (POOLED_HISTOGRAMS) {
+			
+			if (!POOLED_HISTOGRAMS.isEmpty())
+				return POOLED_HISTOGRAMS.remove(POOLED_HISTOGRAMS.size() - 1);
+			
+		}
+		
+		return new int[VALUE_COUNT];
+		
+	}
+	
+	/**
+	 * Clear a value histogram and give it back to the pool if
+	 * the pool is not full.
+	 * 
+	 * @param valueHistogram
+	 * @param min Minimum value counted in the histogram.
+	 * @param max Maximum value counted in the histogram.
+	 */
+	private static void releaseHistogram(int[] valueHistogram, int min, int max) {
+		
+		Arrays.fill(valueHistogram, min, max + 1, 0);
+		
+		synchronized (POOLED_HISTOGRAMS) {
+			
+			if (POOLED_HISTOGRAMS.size() < POOLED_HISTOGRAM_COUNT)
+				POOLED_HISTOGRAMS.add(valueHistogram);
+			
+		}
+		
+	}
+	
+	/**
+	 * Get the shared workers and create them if needed. They
+	 * are daemon threads, such that they do not keep the
+	 * application alive.
+	 * 
+	 * @param workerCount
+	 * @return The workers.
+	 */
+	private static synchronized ExecutorService getWorkers(int workerCount) {
+		
+		if (sWorkers == null) {
+			
+			sWorkers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+				
+				public Thread newThread(Runnable runnable) {
+					
+					Thread thread = new Thread(runnable, "LISAImageGray16BitStatistics");
+					thread.setDaemon(true);
+					
+					return thread;
+					
+				}
+				
+			});
+			
+		}
+		
+		return sWorkers;
+		
+	}
+	
+	/**
+	 * Add the data values between from (inclusive) and to (exclusive)
+	 * to the value histogram.
+	 * 
+	 * @param data
+	 * @param from
+	 * @param to
+	 * @param valueHistogram Histogram of VALUE_COUNT entries.
+	 * @return Sum of the values.
+	 */
+	private static long accumulate(ShortBuffer data, int from, int to, int[] valueHistogram) {
+		
+		if (data.hasArray())
+			return accumulate(data.array(), data.arrayOffset() + from,
+					data.arrayOffset() + to, valueHistogram);
+		
+		// Copy the direct buffer by chunks, the position of the
+		// duplicate is independent of the other threads
+		ShortBuffer buffer = data.duplicate();
+		buffer.position(from);
+		
+		short[] chunk = new short[Math.min(CHUNK_PIXEL_COUNT, to - from)];
+		long sum = 0;
+		
+		for (int offset = from; offset < to; offset += chunk.length) {
+			
+			int count = Math.min(chunk.length, to - offset);
+			
+			buffer.get(chunk, 0, count);
+			sum += accumulate(chunk, 0, count, valueHistogram);
+			
+		}
+		
+		return sum;
+		
+	}
+	
+	/**
+	 * Add the array values between from (inclusive) and to (exclusive)
+	 * to the value histogram.
+	 * 
+	 * @param data
+	 * @param from
+	 * @param to
+	 * @param valueHistogram Histogram of VALUE_COUNT entries.
+	 * @return Sum of the values.
+	 */
+	private static long accumulate(short[] data, int from, int to, int[] valueHistogram) {
+		
+		long sum = 0;
+		
+		for (int i = from; i < to; i++) {
+			
+			int value = data[i] & 0xffff;
+			
+			valueHistogram[value]++;
+			sum += value;
+			
+		}
+		
+		return sum;
+		
+	}
+	
+	/**
+	 * Derive the statistics from the histogram of all the 16-Bit values.
+	 * 
+	 * @param valueHistogram
+	 * @param sum
+	 * @param count
+	 * @param grayLevel
+	 * @return
+	 */
+	private static LISAImageGray16BitStatistics fromValueHistogram(int[] valueHistogram,
+			long sum, int count, int grayLevel) {
+		
+		int min = 0;
+		int max = 0;
+		
+		if (count > 0) {
+			
+			while (valueHistogram[min] == 0)
+				min++;
+			
+			max = VALUE_COUNT - 1;
+			
+			while (valueHistogram[max] == 0)
+				max--;
+			
+		}
+		
+		// Keep the histogram up to the gray level or the
+		// maximum value if it is greater
+		int[] histogram = new int[Math.max(grayLevel, max + 1)];
+		System.arraycopy(valueHistogram, 0, histogram, 0, max + 1);
+		
+		int histogramMax = 0;
+		int histogramMaxLength = Math.min(grayLevel, histogram.length);
+		
+		for (int i = min; i < histogramMaxLength; i++)
+			if (histogram[i] > histogramMax)
+				histogramMax = histogram[i];
+		
+		double mean = count > 0 ? (double) sum / count : 0;
+		
+		return new LISAImageGray16BitStatistics(min, max, mean, count,
+				histogram, histogramMax);
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @return Minimum value of the data.
+	 */
+	public int getMin() {
+		return mMin;
+	}
+	
+	/**
+	 * @return Maximum value of the data.
+	 */
+	public int getMax() {
+		return mMax;
+	}
+	
+	/**
+	 * @return Mean value of the data.
+	 */
+	public double getMean() {
+		return mMean;
+	}
+	
+	/**
+	 * @return Number of pixels.
+	 */
+	public int getCount() {
+		return mCount;
+	}
+	
+	/**
+	 * @return Histogram of the data.
+	 */
+	public int[] getHistogram() {
+		return mHistogram;
+	}
+	
+	/**
+	 * @return Maximum value of the histogram.
+	 */
+	public int getHistogramMax() {
+		return mHistogramMax;
+	}
+	
+	/**
+	 * Get the value under which a fraction of the pixels
+	 * are.
+	 * 
+	 * @param fraction Fraction of the pixels between 0 and 1.
+	 * @return Percentile value.
+	 */
+	public int getPercentile(float fraction) {
+		
+		if (mCount == 0)
+			return 0;
+		
+		long threshold = (long) Math.ceil(fraction * (double) mCount);
+		threshold = (threshold < 1) ? 1 : threshold;
+		
+		long cumulativeCount = 0;
+		
+		for (int i = mMin; i < mHistogram.length; i++) {
+			
+			cumulativeCount += mHistogram[i];
+			
+			if (cumulativeCount >= threshold)
+				return i;
+			
+		}
+		
+		return mMax;
+		
+	}
+
+}
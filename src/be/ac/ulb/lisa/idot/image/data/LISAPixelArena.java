@@ -0,0 +1,205 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <LISAPixelArena.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.image.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Pool of direct buffers that store the pixel data of
+ * LISA images outside of the Java heap.
+ * 
+ * The buffers are not collected by the garbage collector
+ * and they must be released when the image is not used
+ * anymore. A released buffer is kept in the pool to be
+ * reused by the next image of similar size if the pooled
+ * size is smaller than the maximum pooled size.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class LISAPixelArena {
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Allocation granularity of the buffers in bytes.
+	 */
+	private static final int PAGE_SIZE = 4096;
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Maximum number of bytes kept in the pool.
+	 */
+	private final long mMaxPooledBytes;
+	
+	/**
+	 * Number of bytes kept in the pool.
+	 */
+	private long mPooledBytes = 0;
+	
+	/**
+	 * Released buffers.
+	 */
+	private final LinkedList<ByteBuffer> mPool = new LinkedList<ByteBuffer>();
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	public LISAPixelArena(long maxPooledBytes) {
+		
+		if (maxPooledBytes < 0)
+			throw new IllegalArgumentException("The maximum pooled size"
+					+ " is negative.");
+		
+		mMaxPooledBytes = maxPooledBytes;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Get a direct buffer that can store pixelCount 16-bit
+	 * pixels. The buffer has the native byte order and its
+	 * limit is set to the size of the pixel data.
+	 * 
+	 * @param pixelCount Number of pixels.
+	 * @return Direct buffer.
+	 * @throws OutOfMemoryError If the buffer cannot be allocated.
+	 */
+	public synchronized ByteBuffer allocate(int pixelCount) {
+		
+		if (pixelCount < 0)
+			throw new IllegalArgumentException("The pixel count is negative.");
+		
+		int size = pixelCount * 2;
+		
+		// Take the smallest pooled buffer that can store the data
+		// but do not waste more than the half of a buffer
+		ByteBuffer buffer = null;
+		
+		Iterator<ByteBuffer> iterator = mPool.iterator();
+		
+		while (iterator.hasNext()) {
+			
+			ByteBuffer pooled = iterator.next();
+			
+			if (pooled.capacity() >= size && pooled.capacity() / 2 <= size
+					&& (buffer == null || pooled.capacity() < buffer.capacity()))
+				buffer = pooled;
+			
+		}
+		
+		if (buffer != null) {
+			
+			mPool.remove(buffer);
+			mPooledBytes -= buffer.capacity();
+			
+		} else {
+			
+			int capacity = ((size + PAGE_SIZE - 1) / PAGE_SIZE) * PAGE_SIZE;
+			
+			try {
+				
+				buffer = ByteBuffer.allocateDirect(capacity);
+				
+			} catch (OutOfMemoryError ex) {
+				
+				// Drop the pool and try again
+				clear();
+				buffer = ByteBuffer.allocateDirect(capacity);
+				
+			}
+			
+		}
+		
+		buffer.clear();
+		buffer.limit(size);
+		buffer.order(ByteOrder.nativeOrder());
+		
+		return buffer;
+		
+	}
+	
+	/**
+	 * Give back a buffer obtained with allocate. The
+	 * buffer must not be used after this call.
+	 * 
+	 * @param buffer Buffer to release.
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		
+		if (buffer == null || !buffer.isDirect())
+			return;
+		
+		if (mPooledBytes + buffer.capacity() > mMaxPooledBytes)
+			return;
+		
+		mPool.add(buffer);
+		mPooledBytes += buffer.capacity();
+		
+	}
+	
+	/**
+	 * Drop all the pooled buffers.
+	 */
+	public synchronized void clear() {
+		
+		mPool.clear();
+		mPooledBytes = 0;
+		
+	}
+	
+	/**
+	 * @return Number of bytes kept in the pool.
+	 */
+	public synchronized long getPooledBytes() {
+		return mPooledBytes;
+	}
+	
+}
@@ -0,0 +1,451 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <LISAImageGray16BitFormat.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.image.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16BitStatistics;
+
+/**
+ * Version 2 of the LISA 16-Bit grayscale image format.
+ * 
+ * A version 2 record is made of a header of HEADER_SIZE
+ * bytes, the histogram and the pixel data. All the values
+ * are coded in the byte order of the device that wrote the
+ * record, which is given by the byte order mark. The
+ * histogram and the pixel data start on ALIGNMENT bytes
+ * boundaries such that a mapped record can be used without
+ * copying the pixel data.
+ * 
+ * Header (offsets in bytes):
+ * <pre>
+ *   0  PREFIX (12 ASCII characters)
+ *  12  byte order mark (int32)
+ *  16  header size (int32)
+ *  20  width (int16)
+ *  22  height (int16)
+ *  24  gray level (int32)
+ *  28  window width (int32)
+ *  32  window center (int32)
+ *  36  image orientation (6 x float32)
+ *  60  data length in pixels (int32)
+ *  64  minimum data value (int32)
+ *  68  maximum data value (int32)
+ *  72  mean data value (float64)
+ *  80  histogram maximum (int32)
+ *  84  histogram length (int32)
+ *  88  histogram offset (int32)
+ *  92  data offset (int32)
+ *  96  reserved up to HEADER_SIZE
+ * </pre>
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public final class LISAImageGray16BitFormat {
+	
+	// ---------------------------------------------------------------
+	// + <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Prefix of the version 1 format.
+	 */
+	public static final String PREFIX_V1 = "LISAGRAY0016";
+	
+	/**
+	 * Prefix of the version 2 format.
+	 */
+	public static final String PREFIX_V2 = "LISAGRAY16V2";
+	
+	/**
+	 * Length of the prefixes.
+	 */
+	public static final int PREFIX_LENGTH = 12;
+	
+	/**
+	 * Size of the version 2 header in bytes.
+	 */
+	public static final int HEADER_SIZE = 128;
+	
+	/**
+	 * Alignment of the histogram and of the pixel data in bytes.
+	 */
+	public static final int ALIGNMENT = 16;
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	private static final int BYTE_ORDER_MARK = 0x01020304;
+	
+	private static final int BYTE_ORDER_MARK_SWAPPED = 0x04030201;
+	
+	private static final int BYTE_ORDER_MARK_OFFSET = 12;
+	private static final int HEADER_SIZE_OFFSET = 16;
+	private static final int WIDTH_OFFSET = 20;
+	private static final int HEIGHT_OFFSET = 22;
+	private static final int GRAY_LEVEL_OFFSET = 24;
+	private static final int WINDOW_WIDTH_OFFSET = 28;
+	private static final int WINDOW_CENTER_OFFSET = 32;
+	private static final int ORIENTATION_OFFSET = 36;
+	private static final int DATA_LENGTH_OFFSET = 60;
+	private static final int MIN_OFFSET = 64;
+	private static final int MAX_OFFSET = 68;
+	private static final int MEAN_OFFSET = 72;
+	private static final int HISTOGRAM_MAX_OFFSET = 80;
+	private static final int HISTOGRAM_LENGTH_OFFSET = 84;
+	private static final int HISTOGRAM_OFFSET_OFFSET = 88;
+	private static final int DATA_OFFSET_OFFSET = 92;
+	
+	/**
+	 * Number of pixels written at once.
+	 */
+	private static final int CHUNK_PIXEL_COUNT = 8192;
+	
+	
+	// ---------------------------------------------------------------
+	// - CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	private LISAImageGray16BitFormat() {
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Write a version 2 record of the image at the current
+	 * position of the channel. The statistics of the image
+	 * are computed if they are not yet computed.
+	 * 
+	 * @param image
+	 * @param channel
+	 * @return Number of bytes written.
+	 * @throws IOException
+	 */
+	public static long writeRecord(LISAImageGray16Bit image, FileChannel channel)
+			throws IOException {
+		
+		long position = channel.position();
+		long recordSize = writeRecord(image, channel, position);
+		
+		channel.position(position + recordSize);
+		
+		return recordSize;
+		
+	}
+	
+	/**
+	 * Write a version 2 record of the image at the given
+	 * position of the channel without changing the position
+	 * of the channel, such that several threads can write
+	 * records in the same channel.
+	 * 
+	 * @param image
+	 * @param channel
+	 * @param position
+	 * @return Number of bytes written.
+	 * @throws IOException
+	 */
+	public static long writeRecord(LISAImageGray16Bit image, FileChannel channel,
+			long position) throws IOException {
+		
+		LISAImageGray16BitStatistics statistics = image.getStatistics();
+		
+		if (statistics == null)
+			throw new IOException("The image has no data.");
+		
+		int dataLength = image.getDataLength();
+		int[] histogram = statistics.getHistogram();
+		
+		int histogramOffset = HEADER_SIZE;
+		int dataOffset = align(histogramOffset + 4 * histogram.length);
+		
+		// HEADER AND HISTOGRAM
+		ByteBuffer header = ByteBuffer.allocate(dataOffset);
+		header.order(ByteOrder.nativeOrder());
+		
+		for (int i = 0; i < PREFIX_LENGTH; i++)
+			header.put((byte) PREFIX_V2.charAt(i));
+		
+		header.putInt(BYTE_ORDER_MARK_OFFSET, BYTE_ORDER_MARK);
+		header.putInt(HEADER_SIZE_OFFSET, HEADER_SIZE);
+		header.putShort(WIDTH_OFFSET, image.getWidth());
+		header.putShort(HEIGHT_OFFSET, image.getHeight());
+		header.putInt(GRAY_LEVEL_OFFSET, image.getGrayLevel());
+		header.putInt(WINDOW_WIDTH_OFFSET, image.getWindowWidth());
+		header.putInt(WINDOW_CENTER_OFFSET, image.getWindowCenter());
+		
+		float[] imageOrientation = image.getImageOrientation();
+		
+		for (int i = 0; i < 6; i++)
+			header.putFloat(ORIENTATION_OFFSET + 4 * i,
+					imageOrientation == null ? 0f : imageOrientation[i]);
+		
+		header.putInt(DATA_LENGTH_OFFSET, dataLength);
+		header.putInt(MIN_OFFSET, statistics.getMin());
+		header.putInt(MAX_OFFSET, statistics.getMax());
+		header.putDouble(MEAN_OFFSET, statistics.getMean());
+		header.putInt(HISTOGRAM_MAX_OFFSET, statistics.getHistogramMax());
+		header.putInt(HISTOGRAM_LENGTH_OFFSET, histogram.length);
+		header.putInt(HISTOGRAM_OFFSET_OFFSET, histogramOffset);
+		header.putInt(DATA_OFFSET_OFFSET, dataOffset);
+		
+		header.position(histogramOffset);
+		header.asIntBuffer().put(histogram);
+		
+		header.clear();
+		long offset = writeFully(channel, header, position);
+		
+		// PIXEL DATA
+		ByteBuffer chunk = ByteBuffer.allocate(2 * Math.min(dataLength, CHUNK_PIXEL_COUNT));
+		chunk.order(ByteOrder.nativeOrder());
+		
+		short[] pixels = new short[chunk.capacity() / 2];
+		
+		for (int pixelOffset = 0; pixelOffset < dataLength; pixelOffset += pixels.length) {
+			
+			int count = Math.min(pixels.length, dataLength - pixelOffset);
+			
+			image.getPixels(pixelOffset, pixels, 0, count);
+			
+			chunk.clear();
+			chunk.asShortBuffer().put(pixels, 0, count);
+			chunk.limit(2 * count);
+			
+			offset = writeFully(channel, chunk, offset);
+			
+		}
+		
+		// PADDING
+		long recordSize = getRecordSize(dataOffset, dataLength);
+		int padding = (int) (recordSize - dataOffset - 2L * dataLength);
+		
+		if (padding > 0)
+			writeFully(channel, ByteBuffer.allocate(padding), offset);
+		
+		return recordSize;
+		
+	}
+	
+	/**
+	 * Get the size of the version 2 record of an image.
+	 * 
+	 * @param image
+	 * @return Size of the record in bytes.
+	 * @throws IOException If the image has no data.
+	 */
+	public static long getRecordSize(LISAImageGray16Bit image) throws IOException {
+		
+		LISAImageGray16BitStatistics statistics = image.getStatistics();
+		
+		if (statistics == null)
+			throw new IOException("The image has no data.");
+		
+		return getRecordSize(align(HEADER_SIZE + 4 * statistics.getHistogram().length),
+				image.getDataLength());
+		
+	}
+	
+	/**
+	 * Read a version 2 record that starts at the position of
+	 * the buffer. The pixel data of the returned image are a
+	 * view of the buffer: they are not copied.
+	 * 
+	 * @param buffer
+	 * @return The LISA 16-Bit grayscale image.
+	 * @throws IOException If the record is not valid.
+	 */
+	public static LISAImageGray16Bit readRecord(ByteBuffer buffer) throws IOException {
+		
+		ByteBuffer record = buffer.slice();
+		
+		if (record.remaining() < HEADER_SIZE)
+			throw new IOException("The LISA image header is truncated.");
+		
+		// Check the prefix
+		for (int i = 0; i < PREFIX_LENGTH; i++)
+			if (record.get(i) != (byte) PREFIX_V2.charAt(i))
+				throw new IOException("This is not a LISA 16-Bit "
+						+ "grayscale image version 2.");
+		
+		// Get the byte order
+		record.order(ByteOrder.BIG_ENDIAN);
+		int byteOrderMark = record.getInt(BYTE_ORDER_MARK_OFFSET);
+		
+		if (byteOrderMark == BYTE_ORDER_MARK_SWAPPED)
+			record.order(ByteOrder.LITTLE_ENDIAN);
+		
+		else if (byteOrderMark != BYTE_ORDER_MARK)
+			throw new IOException("Unknown byte order mark in the LISA image.");
+		
+		LISAImageGray16Bit image = new LISAImageGray16Bit();
+		
+		image.setWidth(record.getShort(WIDTH_OFFSET));
+		image.setHeight(record.getShort(HEIGHT_OFFSET));
+		image.setGrayLevel(record.getInt(GRAY_LEVEL_OFFSET));
+		image.setWindowWidth(record.getInt(WINDOW_WIDTH_OFFSET));
+		image.setWindowCenter(record.getInt(WINDOW_CENTER_OFFSET));
+		
+		float[] imageOrientation = new float[6];
+		
+		for (int i = 0; i < 6; i++)
+			imageOrientation[i] = record.getFloat(ORIENTATION_OFFSET + 4 * i);
+		
+		image.setImageOrientation(imageOrientation);
+		
+		int dataLength = record.getInt(DATA_LENGTH_OFFSET);
+		int histogramLength = record.getInt(HISTOGRAM_LENGTH_OFFSET);
+		int histogramOffset = record.getInt(HISTOGRAM_OFFSET_OFFSET);
+		int dataOffset = record.getInt(DATA_OFFSET_OFFSET);
+		
+		// The data must hold the pixels of the image
+		if (dataLength < 0 || histogramLength < 0
+				|| image.getWidth() < 0 || image.getHeight() < 0
+				|| dataLength != (long) image.getWidth() * image.getHeight()
+				|| histogramOffset < HEADER_SIZE
+				|| histogramOffset + 4L * histogramLength > record.limit()
+				|| dataOffset < HEADER_SIZE
+				|| dataOffset + 2L * dataLength > record.limit())
+			throw new IOException("The LISA image record is truncated.");
+		
+		// Histogram
+		int[] histogram = new int[histogramLength];
+		
+		record.position(histogramOffset);
+		IntBuffer histogramBuffer = record.asIntBuffer();
+		histogramBuffer.get(histogram);
+		
+		// Pixel data
+		record.position(dataOffset);
+		record.limit(dataOffset + 2 * dataLength);
+		
+		ByteBuffer data = record.slice();
+		data.order(record.order());
+		
+		image.setData(data, null);
+		
+		// The statistics must be set after the data
+		image.setStatistics(new LISAImageGray16BitStatistics(
+				record.getInt(MIN_OFFSET),
+				record.getInt(MAX_OFFSET),
+				record.getDouble(MEAN_OFFSET),
+				dataLength,
+				histogram,
+				record.getInt(HISTOGRAM_MAX_OFFSET)));
+		
+		return image;
+		
+	}
+	
+	/**
+	 * Get the size of a version 2 record that is read at the
+	 * position of the buffer, without reading the pixel data.
+	 * 
+	 * @param buffer
+	 * @return Size of the record in bytes.
+	 * @throws IOException If the record is not valid.
+	 */
+	public static long getRecordSize(ByteBuffer buffer) throws IOException {
+		
+		ByteBuffer record = buffer.slice();
+		
+		if (record.remaining() < HEADER_SIZE)
+			throw new IOException("The LISA image header is truncated.");
+		
+		record.order(ByteOrder.BIG_ENDIAN);
+		
+		if (record.getInt(BYTE_ORDER_MARK_OFFSET) == BYTE_ORDER_MARK_SWAPPED)
+			record.order(ByteOrder.LITTLE_ENDIAN);
+		
+		return getRecordSize(record.getInt(DATA_OFFSET_OFFSET),
+				record.getInt(DATA_LENGTH_OFFSET));
+		
+	}
+	
+	/**
+	 * Align an offset on ALIGNMENT bytes.
+	 * 
+	 * @param offset
+	 * @return The aligned offset.
+	 */
+	public static int align(int offset) {
+		return (offset + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	private static long getRecordSize(int dataOffset, int dataLength) {
+		
+		long size = dataOffset + 2L * dataLength;
+		
+		return (size + ALIGNMENT - 1) & ~((long) ALIGNMENT - 1);
+		
+	}
+	
+	/**
+	 * Write a buffer at the given position of a channel.
+	 * 
+	 * @param channel
+	 * @param buffer
+	 * @param position
+	 * @return The position that follows the written bytes.
+	 * @throws IOException
+	 */
+	private static long writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		
+		int start = buffer.position();
+		
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position() - start);
+		
+		return position + buffer.position() - start;
+		
+	}
+	
+}
@@ -39,12 +39,20 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 
 import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
+import be.ac.ulb.lisa.idot.image.data.LISAPixelArena;
 
 /**
  * Reader for LISA 16-Bit grayscale image.
  * 
+ * The version 2 images are memory mapped: their pixel data
+ * are not copied. The version 1 images are decoded.
+ * 
  * @author Pierre Malarme
  * @version 1.0
  *
@@ -55,7 +63,18 @@ public class LISAImageGray16BitReader extends FileInputStream {
 	// - <static> VARIABLE
 	// ---------------------------------------------------------------
 	
-	protected static final String PREFIX = "LISAGRAY0016";
+	protected static final String PREFIX = LISAImageGray16BitFormat.PREFIX_V1;
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Arena from which the image data are allocated. If it
+	 * is null, the image data are stored in the Java heap.
+	 */
+	private LISAPixelArena mPixelArena = null;
 	
 	
 	// ---------------------------------------------------------------
@@ -79,10 +98,25 @@ public class LISAImageGray16BitReader extends FileInputStream {
 	// + FUCTIONS
 	// ---------------------------------------------------------------
 	
+	/**
+	 * Set the arena from which the image data are allocated.
+	 * The image data are stored in the Java heap if it is null.
+	 * 
+	 * @param pixelArena
+	 */
+	public void setPixelArena(LISAPixelArena pixelArena) {
+		mPixelArena = pixelArena;
+	}
+	
 	public synchronized LISAImageGray16Bit parseImage() throws IOException, EOFException {
 
 		// Check the prefix
-		if (!PREFIX.equals(readASCII(PREFIX.length())))
+		String prefix = readASCII(PREFIX.length());
+		
+		if (LISAImageGray16BitFormat.PREFIX_V2.equals(prefix))
+			return parseImageVersion2();
+		
+		if (!PREFIX.equals(prefix))
 				throw new IOException("This is not a LISA 16-Bit" +
 						"grayscale image");
 		
@@ -141,36 +175,29 @@ public class LISAImageGray16BitReader extends FileInputStream {
 				| (buffer[byteOffset + 2] & 0xff) << 8 | (buffer[byteOffset + 3] & 0xff);
 			byteOffset += 4;
 			
-			// Compute the histogram data and max
-			// and the image data and max
-			int[] imageData = new int[dataLength];
-			int imageDataMax = 0;
+			// Get the image data that are coded in big endian
+			ShortBuffer pixelBuffer = ByteBuffer.wrap(buffer, byteOffset, 2 * dataLength)
+				.slice().order(ByteOrder.BIG_ENDIAN).asShortBuffer();
 			
-			int[] imageHistogram = new int[grayLevel];
-			int imageHistogramMax = 0;
-			
-			for (int i = 0; i < dataLength; i ++) {
+			if (mPixelArena == null) {
+				
+				short[] imageData = new short[dataLength];
+				pixelBuffer.get(imageData);
 				
-				imageData[i] = (buffer[byteOffset] & 0xff) << 8
-					| (buffer[byteOffset + 1] & 0xff);
+				image.setData(imageData);
 				
-				byteOffset += 2;
+			} else {
 				
-				if (imageData[i] > imageDataMax)
-					imageDataMax = imageData[i];
-				if (imageData[i] >= 0 && imageData[i] < grayLevel) {
-					imageHistogram[imageData[i]] += 1;
-					if (imageHistogram[imageData[i]] > imageHistogramMax)
-						imageHistogramMax = imageHistogram[imageData[i]];
-				}
+				ByteBuffer imageData = mPixelArena.allocate(dataLength);
+				imageData.asShortBuffer().put(pixelBuffer);
+				
+				image.setData(imageData, mPixelArena);
 				
 			}
 			
-			image.setData(imageData);
-			image.setDataMax(imageDataMax);
-			
-			image.setHistogramData(imageHistogram);
-			image.setHistogramMax(imageHistogramMax);
+			// Compute the histogram data and max
+			// and the image data max
+			image.computeStatistics();
 			
 			return image;
 			
@@ -193,6 +220,33 @@ public class LISAImageGray16BitReader extends FileInputStream {
 	// # FUNCTION
 	// ---------------------------------------------------------------
 	
+	/**
+	 * Map the file and read the version 2 image that it contains.
+	 * 
+	 * @return The LISA 16-Bit grayscale image.
+	 * @throws IOException
+	 */
+	protected final LISAImageGray16Bit parseImageVersion2() throws IOException {
+		
+		FileChannel channel = getChannel();
+		
+		try {
+			
+			// The mapping stays valid when the file is closed
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+			
+			return LISAImageGray16BitFormat.readRecord(buffer);
+			
+		} catch (IOException ex) {
+			
+			throw new IOException("Cannot parse the LISA Image " +
+					"grayscale 16-Bit. \n" + ex.getMessage());
+			
+		}
+		
+	}
+	
 	/**
 	 * Read byte[length] as ASCII.
 	 * @param length The number of bytes to read.
@@ -44,6 +44,9 @@ import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
 /**
  * Writer for LISA 16-Bit grayscale image.
  * 
+ * The images are written in the version 2 format defined
+ * in LISAImageGray16BitFormat.
+ * 
  * @author Pierre Malarme
  * @version 1.0
  *
@@ -54,7 +57,12 @@ public class LISAImageGray16BitWriter extends FileOutputStream {
 	// - <static> VARIABLE
 	// ---------------------------------------------------------------
 	
-	protected static final String PREFIX = "LISAGRAY0016";
+	protected static final String PREFIX = LISAImageGray16BitFormat.PREFIX_V1;
+	
+	/**
+	 * Number of pixels written at once for direct image data.
+	 */
+	protected static final int CHUNK_PIXEL_COUNT = 8192;
 	
 	
 	// ---------------------------------------------------------------
@@ -106,12 +114,35 @@ public class LISAImageGray16BitWriter extends FileOutputStream {
 	// ---------------------------------------------------------------
 
 	/**
-	 * Write a LISA 16-Bit grayscale image.
+	 * Write a LISA 16-Bit grayscale image in the version 2
+	 * format.
 	 * @param image A LISA 16-bit grayscale image.
 	 * @throws IOException
 	 */
 	public void write(LISAImageGray16Bit image) throws IOException {
 		
+		if (image == null)
+			throw new NullPointerException("Image is null");
+		
+		try {
+			
+			LISAImageGray16BitFormat.writeRecord(image, getChannel());
+			
+		} catch (IOException e) {
+			throw new IOException("Cannot open write LISA image.\n"
+					+ e.getMessage());
+		}
+		
+	}
+	
+	/**
+	 * Write a LISA 16-Bit grayscale image in the version 1
+	 * format.
+	 * @param image A LISA 16-bit grayscale image.
+	 * @throws IOException
+	 */
+	public void writeVersion1(LISAImageGray16Bit image) throws IOException {
+		
 		if (image == null)
 			throw new NullPointerException("Image is null");
 		
@@ -145,7 +176,7 @@ public class LISAImageGray16BitWriter extends FileOutputStream {
 			writeLong32(image.getDataLength());
 			
 			// Write the image data
-			writeInt16Array(image.getData());
+			writeImageData(image);
 			
 		} catch (IOException e) {
 			throw new IOException("Cannot open write LISA image.\n"
@@ -204,20 +235,33 @@ public class LISAImageGray16BitWriter extends FileOutputStream {
 	 * 
 	 * Each integer value is coded in 2 bytes.
 	 * 
-	 * @param intArray Array of integer values.
+	 * @param shortArray Array of unsigned 16-bit values.
+	 * @throws IOException
+	 */
+	protected final void writeInt16Array(short[] shortArray) throws IOException {
+		writeInt16Array(shortArray, shortArray.length);
+	}
+	
+	/**
+	 * Write the first length values of an array of integer.
+	 * 
+	 * Each integer value is coded in 2 bytes.
+	 * 
+	 * @param shortArray Array of unsigned 16-bit values.
+	 * @param length Number of values to write.
 	 * @throws IOException
 	 */
-	protected final void writeInt16Array(int[] intArray) throws IOException {
+	protected final void writeInt16Array(short[] shortArray, int length) throws IOException {
 		
-		byte[] intArrayBytes = new byte[intArray.length * 2];
+		byte[] intArrayBytes = new byte[length * 2];
 		
-		for (int i = 0; i < intArray.length; i ++) {
+		for (int i = 0; i < length; i ++) {
 			
 			intArrayBytes[(2 * i) + 0] =
-				(byte) ((intArray[i] >> 8) & 0xff);
+				(byte) ((shortArray[i] >> 8) & 0xff);
 			
 			intArrayBytes[(2 * i) + 1] =
-				(byte) ((intArray[i]) & 0xff);
+				(byte) ((shortArray[i]) & 0xff);
 			
 		}
 		
@@ -225,6 +269,36 @@ public class LISAImageGray16BitWriter extends FileOutputStream {
 		
 	}
 	
+	/**
+	 * Write the image data. If the data are stored in a
+	 * direct buffer, they are written by chunks.
+	 * 
+	 * @param image
+	 * @throws IOException
+	 */
+	protected final void writeImageData(LISAImageGray16Bit image) throws IOException {
+		
+		if (!image.isDirect()) {
+			
+			writeInt16Array(image.getData());
+			return;
+			
+		}
+		
+		int dataLength = image.getDataLength();
+		short[] chunk = new short[Math.min(dataLength, CHUNK_PIXEL_COUNT)];
+		
+		for (int offset = 0; offset < dataLength; offset += chunk.length) {
+			
+			int count = Math.min(chunk.length, dataLength - offset);
+			
+			image.getPixels(offset, chunk, 0, count);
+			writeInt16Array(chunk, count);
+			
+		}
+		
+	}
+	
 	/**
 	 * Write an array of float values.
 	 * 
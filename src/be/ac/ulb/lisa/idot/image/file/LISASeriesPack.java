@@ -0,0 +1,827 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <LISASeriesPack.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.image.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
+
+/**
+ * Series pack that stores the LISA 16-Bit grayscale images
+ * of all the files of a directory in a single hidden file.
+ * 
+ * The pack starts with a header of HEADER_SIZE bytes. It is
+ * followed by the entries, each one made of an entry header,
+ * the name and the fingerprint of the cached file, a
+ * version 2 LISA record (see LISAImageGray16BitFormat) and
+ * optional metadata, e.g. the element index of the file.
+ * An image is read only if the fingerprint of its source
+ * file did not change (see LISASourceFingerprint). An index
+ * of the entries and a footer that gives the index offset
+ * end the pack. If the index is missing, e.g. because the
+ * caching was interrupted, the entries are scanned.
+ * 
+ * The records are memory mapped one by one: reading an image
+ * is an offset lookup and its pixel data are not copied.
+ * 
+ * The pack keeps the pack file opened. When the file grows,
+ * only the entries appended since the last refresh are read.
+ * The header holds a random identifier that changes when the
+ * pack file is created or replaced, e.g. when it is compacted
+ * (see LISASeriesPackWriter). The entries are then loaded
+ * again from the new file.
+ * 
+ * <pre>
+ * Header:       PACK_PREFIX (12 bytes), byte order mark (int32),
+ *               pack identifier (int64)
+ * Entry:        ENTRY_MARK (int32), name length (int32),
+ *               record size (int64), metadata size (int32),
+ *               reserved (int32), fingerprint (24 bytes),
+ *               name (UTF-8), padding, version 2 LISA record,
+ *               metadata
+ * Index:        INDEX_MARK (int32), entry count (int32), then for
+ *               each entry: name length (int32), name (UTF-8),
+ *               record offset (int64), fingerprint (24 bytes),
+ *               metadata offset (int64), metadata size (int32)
+ * Footer:       index offset (int64), index length (int32),
+ *               FOOTER_MARK (int32)
+ * </pre>
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class LISASeriesPack {
+	
+	// ---------------------------------------------------------------
+	// + <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Name of the pack file in the directory. The file is
+	 * hidden such that it is not listed with the DICOM files.
+	 */
+	public static final String FILE_NAME = ".series.lisapack";
+	
+	
+	// ---------------------------------------------------------------
+	// # <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	protected static final String PACK_PREFIX = "LISAPACK0004";
+	
+	protected static final int PACK_ID_OFFSET = 16;
+	
+	protected static final int HEADER_SIZE = 24;
+	
+	protected static final int ENTRY_HEADER_SIZE = 24 + LISASourceFingerprint.ENCODED_SIZE;
+	
+	protected static final int FOOTER_SIZE = 16;
+	
+	protected static final int BYTE_ORDER_MARK = 0x01020304;
+	
+	protected static final int BYTE_ORDER_MARK_SWAPPED = 0x04030201;
+	
+	protected static final int ENTRY_MARK = 0x454e5452;
+	
+	protected static final int INDEX_MARK = 0x494e4458;
+	
+	protected static final int FOOTER_MARK = 0x464f4f54;
+	
+	/**
+	 * Maximum length of an entry name in bytes.
+	 */
+	protected static final int MAX_NAME_LENGTH = 4096;
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Locks of the pack files that are written, by canonical path.
+	 */
+	private static final Map<String, Semaphore> LOCKS =
+		new HashMap<String, Semaphore>();
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Pack file.
+	 */
+	private final File mFile;
+	
+	/**
+	 * Length of the pack file when it was loaded.
+	 */
+	private long mLength = -1;
+	
+	/**
+	 * Last modification time of the pack file when it was loaded.
+	 */
+	private long mLastModified = -1;
+	
+	/**
+	 * The opened pack file or null.
+	 */
+	private RandomAccessFile mRandomAccessFile = null;
+	
+	/**
+	 * Channel of the opened pack file or null.
+	 */
+	private FileChannel mChannel = null;
+	
+	/**
+	 * Byte order of the opened pack file.
+	 */
+	private ByteOrder mByteOrder = null;
+	
+	/**
+	 * Identifier of the opened pack file.
+	 */
+	private long mPackId = 0;
+	
+	/**
+	 * End offset of the loaded entries.
+	 */
+	private long mEnd = HEADER_SIZE;
+	
+	/**
+	 * Entries by name.
+	 */
+	private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Create the pack of a directory. The pack is loaded
+	 * by refresh.
+	 * 
+	 * @param directory
+	 */
+	public LISASeriesPack(File directory) {
+		mFile = getFile(directory);
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Load the entries of the pack if the pack file changed
+	 * since the last call. If it is the same pack file, only
+	 * the entries appended since the last call are read.
+	 * 
+	 * @return True if the pack was loaded, false otherwise.
+	 * @throws IOException
+	 */
+	public synchronized boolean refresh() throws IOException {
+		
+		long length = mFile.exists() ? mFile.length() : 0;
+		long lastModified = mFile.lastModified();
+		
+		if (length == mLength && lastModified == mLastModified)
+			return false;
+		
+		if (length == 0) {
+			
+			close();
+			
+			mLength = length;
+			mLastModified = lastModified;
+			
+			return true;
+			
+		}
+		
+		RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "r");
+		boolean isOpened = false;
+		
+		try {
+			
+			FileChannel channel = randomAccessFile.getChannel();
+			
+			ByteOrder byteOrder = readByteOrder(channel);
+			long packId = (byteOrder == null) ? 0 : readPackId(channel, byteOrder);
+			
+			// Open the new pack file
+			if (byteOrder == null || mChannel == null || packId != mPackId) {
+				
+				close();
+				
+				if (byteOrder == null) {
+					
+					mLength = length;
+					mLastModified = lastModified;
+					
+					return true;
+					
+				}
+				
+				mRandomAccessFile = randomAccessFile;
+				mChannel = channel;
+				mByteOrder = byteOrder;
+				mPackId = packId;
+				isOpened = true;
+				
+			}
+			
+			mLength = length;
+			mLastModified = lastModified;
+			
+			// Read the index if it does not end at the loaded
+			// entries, else the appended entries
+			Map<String, Entry> entries = new HashMap<String, Entry>();
+			long indexOffset = readIndex(mChannel, mByteOrder, entries);
+			
+			if (indexOffset < 0) {
+				
+				mEnd = scanEntries(mChannel, mByteOrder, mEnd, mEntries);
+				
+			} else if (indexOffset != mEnd) {
+				
+				mEntries.clear();
+				mEntries.putAll(entries);
+				mEnd = indexOffset;
+				
+			}
+			
+		} finally {
+			
+			if (!isOpened)
+				randomAccessFile.close();
+			
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Close the pack file. The images that were read stay
+	 * valid. The pack is opened again by refresh.
+	 */
+	public synchronized void close() {
+		
+		if (mRandomAccessFile != null) {
+			
+			try {
+				
+				mRandomAccessFile.close();
+				
+			} catch (IOException ex) {
+				// Nothing is written
+			}
+			
+		}
+		
+		mRandomAccessFile = null;
+		mChannel = null;
+		mByteOrder = null;
+		mEntries.clear();
+		mEnd = HEADER_SIZE;
+		mLength = -1;
+		mLastModified = -1;
+		
+	}
+	
+	/**
+	 * @param name Name of the cached file.
+	 * @return True if the pack contains the image of the file.
+	 */
+	public synchronized boolean contains(String name) {
+		return mEntries.containsKey(name);
+	}
+	
+	/**
+	 * @param name Name of the cached file.
+	 * @return The fingerprint of the cached file or null if
+	 * the pack does not contain the image of the file.
+	 */
+	public synchronized LISASourceFingerprint getFingerprint(String name) {
+		
+		Entry entry = mEntries.get(name);
+		
+		return entry == null ? null : entry.mFingerprint;
+		
+	}
+	
+	/**
+	 * @return Number of images in the pack.
+	 */
+	public synchronized int getImageCount() {
+		return mEntries.size();
+	}
+	
+	/**
+	 * Read the image of a source file if the file did not
+	 * change since it was cached. The pixel data of the
+	 * image are a view of the mapped pack.
+	 * 
+	 * @param source The source file.
+	 * @return The LISA 16-Bit grayscale image or null if the pack
+	 * does not contain an up to date image of the file.
+	 * @throws IOException
+	 */
+	public LISAImageGray16Bit readImage(File source) throws IOException {
+		
+		LISASourceFingerprint fingerprint = getFingerprint(source.getName());
+		
+		if (fingerprint == null || !fingerprint.matches(source))
+			return null;
+		
+		return readImage(source.getName());
+		
+	}
+	
+	/**
+	 * Read the metadata of a source file if the file did not
+	 * change since it was cached.
+	 * 
+	 * @param source The source file.
+	 * @return The metadata, a view of the mapped pack, or null if
+	 * the pack does not contain up to date metadata of the file.
+	 * @throws IOException
+	 */
+	public ByteBuffer readMetadata(File source) throws IOException {
+		
+		LISASourceFingerprint fingerprint = getFingerprint(source.getName());
+		
+		if (fingerprint == null || !fingerprint.matches(source))
+			return null;
+		
+		return readMetadata(source.getName());
+		
+	}
+	
+	/**
+	 * Read the metadata of a file without checking the file.
+	 * 
+	 * @param name Name of the cached file.
+	 * @return The metadata, a view of the mapped pack with the
+	 * byte order of the pack, or null if the pack does not
+	 * contain metadata of the file.
+	 * @throws IOException
+	 */
+	public synchronized ByteBuffer readMetadata(String name) throws IOException {
+		
+		Entry entry = mEntries.get(name);
+		
+		if (entry == null || entry.mMetadataSize == 0)
+			return null;
+		
+		ByteBuffer metadata = mChannel.map(FileChannel.MapMode.READ_ONLY,
+				entry.mMetadataOffset, entry.mMetadataSize);
+		metadata.order(mByteOrder);
+		
+		return metadata;
+		
+	}
+	
+	/**
+	 * Read the image of a file without checking the file.
+	 * The pixel data of the image are a view of the mapped
+	 * pack.
+	 * 
+	 * @param name Name of the cached file.
+	 * @return The LISA 16-Bit grayscale image or null if the pack
+	 * does not contain the image.
+	 * @throws IOException
+	 */
+	public synchronized LISAImageGray16Bit readImage(String name) throws IOException {
+		
+		Entry entry = mEntries.get(name);
+		
+		if (entry == null)
+			return null;
+		
+		long recordSize = entry.mMetadataOffset - entry.mRecordOffset;
+		
+		if (recordSize > Integer.MAX_VALUE)
+			throw new IOException("The LISA image record is too big to be mapped.");
+		
+		// The mapping stays valid when the file is closed
+		ByteBuffer record = mChannel.map(FileChannel.MapMode.READ_ONLY,
+				entry.mRecordOffset, recordSize);
+		
+		return LISAImageGray16BitFormat.readRecord(record);
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param directory
+	 * @return The pack file of the directory.
+	 */
+	public static File getFile(File directory) {
+		return new File(directory, FILE_NAME);
+	}
+	
+	/**
+	 * Delete the pack of a directory. If the pack is being
+	 * written, wait until the writer is closed.
+	 * 
+	 * @param directory
+	 * @return True if the pack is deleted, false otherwise.
+	 * @throws IOException
+	 */
+	public static boolean delete(File directory) throws IOException {
+		
+		File file = getFile(directory);
+		Semaphore lock = getLock(file);
+		
+		lock.acquireUninterruptibly();
+		
+		try {
+			
+			return file.delete();
+			
+		} finally {
+			
+			lock.release();
+			
+		}
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// # <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param file
+	 * @return The lock of the pack file.
+	 * @throws IOException
+	 */
+	protected static Semaphore getLock(File file) throws IOException {
+		
+		String path = file.getCanonicalPath();
+		
+		synchronized (LOCKS) {
+			
+			Semaphore lock = LOCKS.get(path);
+			
+			if (lock == null) {
+				
+				lock = new Semaphore(1);
+				LOCKS.put(path, lock);
+				
+			}
+			
+			return lock;
+			
+		}
+		
+	}
+	
+	/**
+	 * Read the pack header.
+	 * 
+	 * @param channel
+	 * @return The byte order of the pack or null if the header
+	 * is not valid.
+	 * @throws IOException
+	 */
+	protected static ByteOrder readByteOrder(FileChannel channel) throws IOException {
+		
+		if (channel.size() < HEADER_SIZE)
+			return null;
+		
+		ByteBuffer header = read(channel, 0, HEADER_SIZE, ByteOrder.BIG_ENDIAN);
+		
+		for (int i = 0; i < PACK_PREFIX.length(); i++)
+			if (header.get(i) != (byte) PACK_PREFIX.charAt(i))
+				return null;
+		
+		int byteOrderMark = header.getInt(PACK_PREFIX.length());
+		
+		if (byteOrderMark == BYTE_ORDER_MARK)
+			return ByteOrder.BIG_ENDIAN;
+		
+		if (byteOrderMark == BYTE_ORDER_MARK_SWAPPED)
+			return ByteOrder.LITTLE_ENDIAN;
+		
+		return null;
+		
+	}
+	
+	/**
+	 * Read the identifier of the pack.
+	 * 
+	 * @param channel
+	 * @param byteOrder
+	 * @return The identifier of the pack.
+	 * @throws IOException
+	 */
+	protected static long readPackId(FileChannel channel, ByteOrder byteOrder)
+			throws IOException {
+		return read(channel, PACK_ID_OFFSET, 8, byteOrder).getLong(0);
+	}
+	
+	/**
+	 * Load the entries from the index or, if the index is
+	 * missing or not valid, by scanning the entries.
+	 * 
+	 * @param channel
+	 * @param byteOrder
+	 * @param entries Map filled with the entries.
+	 * @return The end offset of the last valid entry.
+	 * @throws IOException
+	 */
+	protected static long loadIndex(FileChannel channel, ByteOrder byteOrder,
+			Map<String, Entry> entries) throws IOException {
+		
+		long end = readIndex(channel, byteOrder, entries);
+		
+		if (end < 0)
+			end = scanEntries(channel, byteOrder, HEADER_SIZE, entries);
+		
+		return end;
+		
+	}
+	
+	/**
+	 * Load the entries from the index.
+	 * 
+	 * @param channel
+	 * @param byteOrder
+	 * @param entries Map filled with the entries.
+	 * @return The offset of the index, which is the end offset
+	 * of the last entry, or -1 if the index is missing or not
+	 * valid.
+	 * @throws IOException
+	 */
+	protected static long readIndex(FileChannel channel, ByteOrder byteOrder,
+			Map<String, Entry> entries) throws IOException {
+		
+		long size = channel.size();
+		
+		// Read the index
+		if (size >= HEADER_SIZE + FOOTER_SIZE) {
+			
+			ByteBuffer footer = read(channel, size - FOOTER_SIZE, FOOTER_SIZE, byteOrder);
+			
+			long indexOffset = footer.getLong(0);
+			int indexLength = footer.getInt(8);
+			
+			if (footer.getInt(12) == FOOTER_MARK
+					&& indexOffset >= HEADER_SIZE && indexLength >= 8
+					&& indexOffset + indexLength + FOOTER_SIZE == size) {
+				
+				ByteBuffer index = read(channel, indexOffset, indexLength, byteOrder);
+				
+				try {
+					
+					if (index.getInt() == INDEX_MARK) {
+						
+						int count = index.getInt();
+						
+						for (int i = 0; i < count; i++) {
+							
+							String name = getName(index, index.getInt());
+							long recordOffset = index.getLong();
+							LISASourceFingerprint fingerprint =
+								LISASourceFingerprint.decode(index);
+							long metadataOffset = index.getLong();
+							int metadataSize = index.getInt();
+							
+							if (recordOffset < HEADER_SIZE || recordOffset >= indexOffset
+									|| metadataSize < 0 || metadataOffset < recordOffset
+									|| metadataOffset + metadataSize > indexOffset)
+								throw new BufferUnderflowException();
+							
+							entries.put(name, new Entry(recordOffset, fingerprint,
+									metadataOffset, metadataSize));
+							
+						}
+						
+						return indexOffset;
+						
+					}
+					
+				} catch (BufferUnderflowException ex) {
+					// The index is not valid
+				}
+				
+				entries.clear();
+				
+			}
+			
+		}
+		
+		return -1;
+		
+	}
+	
+	/**
+	 * Load the entries by scanning them from an offset up to
+	 * the first entry that is not marked as valid.
+	 * 
+	 * @param channel
+	 * @param byteOrder
+	 * @param position Offset of the first entry.
+	 * @param entries Map filled with the entries.
+	 * @return The end offset of the last valid entry.
+	 * @throws IOException
+	 */
+	protected static long scanEntries(FileChannel channel, ByteOrder byteOrder,
+			long position, Map<String, Entry> entries) throws IOException {
+		
+		long size = channel.size();
+		
+		while (position + ENTRY_HEADER_SIZE <= size) {
+			
+			ByteBuffer entryHeader = read(channel, position, ENTRY_HEADER_SIZE, byteOrder);
+			
+			int nameLength = entryHeader.getInt(4);
+			long recordSize = entryHeader.getLong(8);
+			int metadataSize = entryHeader.getInt(16);
+			
+			if (entryHeader.getInt(0) != ENTRY_MARK
+					|| nameLength < 0 || nameLength > MAX_NAME_LENGTH
+					|| recordSize < LISAImageGray16BitFormat.HEADER_SIZE
+					|| metadataSize < 0)
+				break;
+			
+			long recordOffset = position
+				+ LISAImageGray16BitFormat.align(ENTRY_HEADER_SIZE + nameLength);
+			long metadataOffset = recordOffset + recordSize;
+			
+			if (metadataOffset + metadataSize > size)
+				break;
+			
+			ByteBuffer name = read(channel, position + ENTRY_HEADER_SIZE,
+					nameLength, byteOrder);
+			
+			entryHeader.position(24);
+			LISASourceFingerprint fingerprint = LISASourceFingerprint.decode(entryHeader);
+			
+			entries.put(getName(name, nameLength), new Entry(recordOffset, fingerprint,
+					metadataOffset, metadataSize));
+			
+			position = metadataOffset + metadataSize;
+			
+		}
+		
+		return position;
+		
+	}
+	
+	/**
+	 * Read length bytes of the channel at the given position.
+	 * 
+	 * @param channel
+	 * @param position
+	 * @param length
+	 * @param byteOrder
+	 * @return Buffer containing the bytes.
+	 * @throws IOException
+	 * @throws EOFException
+	 */
+	protected static ByteBuffer read(FileChannel channel, long position, int length,
+			ByteOrder byteOrder) throws IOException, EOFException {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.order(byteOrder);
+		
+		while (buffer.hasRemaining()) {
+			
+			int count = channel.read(buffer, position + buffer.position());
+			
+			if (count < 0)
+				throw new EOFException();
+			
+		}
+		
+		buffer.clear();
+		
+		return buffer;
+		
+	}
+	
+	/**
+	 * Get a UTF-8 name from a buffer.
+	 * 
+	 * @param buffer
+	 * @param length Length of the name in bytes.
+	 * @return The name.
+	 */
+	protected static String getName(ByteBuffer buffer, int length) {
+		
+		if (length < 0 || length > MAX_NAME_LENGTH)
+			throw new BufferUnderflowException();
+		
+		byte[] nameBytes = new byte[length];
+		buffer.get(nameBytes);
+		
+		try {
+			
+			return new String(nameBytes, "UTF-8");
+			
+		} catch (UnsupportedEncodingException ex) {
+			
+			// UTF-8 is always supported
+			throw new IllegalStateException(ex.getMessage());
+			
+		}
+		
+	}
+	
+	
+	
+	// ---------------------------------------------------------------
+	// # <static> CLASS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Entry of the pack.
+	 */
+	protected static final class Entry {
+		
+		/**
+		 * Offset of the record in the pack.
+		 */
+		protected final long mRecordOffset;
+		
+		/**
+		 * Fingerprint of the cached file.
+		 */
+		protected final LISASourceFingerprint mFingerprint;
+		
+		/**
+		 * Offset of the metadata in the pack.
+		 */
+		protected final long mMetadataOffset;
+		
+		/**
+		 * Size of the metadata, 0 if there is no metadata.
+		 */
+		protected final int mMetadataSize;
+		
+		protected Entry(long recordOffset, LISASourceFingerprint fingerprint,
+				long metadataOffset, int metadataSize) {
+			
+			mRecordOffset = recordOffset;
+			mFingerprint = fingerprint;
+			mMetadataOffset = metadataOffset;
+			mMetadataSize = metadataSize;
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,318 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <LISASeriesPackJournal.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.image.file;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Journal of the caching of a directory in its series pack.
+ * 
+ * For each source file that was processed, the journal records
+ * its fingerprint and whether its image was cached in the pack
+ * or skipped (e.g. compressed images). A source is done if its
+ * fingerprint did not change since it was recorded.
+ * 
+ * The journal is a hidden text file with one source per line:
+ * status, size, last modification time, hash and name separated
+ * by a tab. It is written in a temporary file that is renamed, so
+ * that an interrupted save keeps the previous journal.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class LISASeriesPackJournal {
+	
+	// ---------------------------------------------------------------
+	// + <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Name of the journal file in the directory.
+	 */
+	public static final String FILE_NAME = ".series.lisajournal";
+	
+	/**
+	 * Status of a source whose image is in the pack.
+	 */
+	public static final char CACHED = 'C';
+	
+	/**
+	 * Status of a source whose image cannot be cached.
+	 */
+	public static final char SKIPPED = 'S';
+	
+	/**
+	 * Status of a source that changed since it was recorded.
+	 */
+	public static final char CHANGED = 'X';
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Journal file.
+	 */
+	private final File mFile;
+	
+	/**
+	 * Entries of the journal by source name.
+	 */
+	private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+	
+	/**
+	 * True if the entries changed since the last save.
+	 */
+	private boolean mIsModified = false;
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	public LISASeriesPackJournal(File directory) {
+		mFile = getFile(directory);
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Load the journal. If the journal does not exist or
+	 * cannot be read, the journal is empty.
+	 */
+	public synchronized void load() {
+		
+		mEntries.clear();
+		mIsModified = false;
+		
+		if (!mFile.exists())
+			return;
+		
+		try {
+			
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(mFile), "UTF-8"));
+			
+			try {
+				
+				String line;
+				
+				while ((line = reader.readLine()) != null) {
+					
+					String[] fields = line.split("\t", 5);
+					
+					// Ignore a line that is not valid
+					if (fields.length != 5 || fields[0].length() != 1)
+						continue;
+					
+					try {
+						
+						mEntries.put(fields[4], new Entry(fields[0].charAt(0),
+								new LISASourceFingerprint(Long.parseLong(fields[1]),
+										Long.parseLong(fields[2]),
+										Integer.parseInt(fields[3]))));
+						
+					} catch (NumberFormatException ex) {
+						// Ignore the line
+					}
+					
+				}
+				
+			} finally {
+				
+				reader.close();
+				
+			}
+			
+		} catch (IOException ex) {
+			
+			mEntries.clear();
+			
+		}
+		
+	}
+	
+	/**
+	 * Get the status of a source file.
+	 * 
+	 * @param source
+	 * @param fingerprint The current fingerprint of the source.
+	 * @return CACHED or SKIPPED if the source did not change since
+	 * it was recorded, CHANGED if it changed or 0 if the source is
+	 * not recorded.
+	 */
+	public synchronized char getStatus(File source, LISASourceFingerprint fingerprint) {
+		
+		Entry entry = mEntries.get(source.getName());
+		
+		if (entry == null)
+			return 0;
+		
+		if (!entry.mFingerprint.equals(fingerprint))
+			return CHANGED;
+		
+		return entry.mStatus;
+		
+	}
+	
+	/**
+	 * Record that a source file is done.
+	 * 
+	 * @param source
+	 * @param fingerprint The fingerprint of the source.
+	 * @param status CACHED or SKIPPED.
+	 */
+	public synchronized void setDone(File source, LISASourceFingerprint fingerprint,
+			char status) {
+		
+		mEntries.put(source.getName(), new Entry(status, fingerprint));
+		mIsModified = true;
+		
+	}
+	
+	/**
+	 * Write the journal if it changed since the last save.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		
+		if (!mIsModified)
+			return;
+		
+		File temporaryFile = new File(mFile.getPath() + TEMPORARY_SUFFIX);
+		
+		FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+				outputStream, "UTF-8"));
+		
+		try {
+			
+			for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+				
+				Entry value = entry.getValue();
+				
+				writer.write(value.mStatus + "\t" + value.mFingerprint
+						+ "\t" + entry.getKey());
+				writer.newLine();
+				
+			}
+			
+			// The journal must be on the disk before it is renamed
+			writer.flush();
+			outputStream.getFD().sync();
+			
+		} finally {
+			
+			writer.close();
+			
+		}
+		
+		// Replace the journal. If the rename fails, the previous
+		// journal is kept.
+		if (!temporaryFile.renameTo(mFile)) {
+			
+			temporaryFile.delete();
+			throw new IOException("Cannot write the cache journal.");
+			
+		}
+		
+		mIsModified = false;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param directory
+	 * @return The journal file of the directory.
+	 */
+	public static File getFile(File directory) {
+		return new File(directory, FILE_NAME);
+	}
+	
+	/**
+	 * Delete the journal of a directory.
+	 * 
+	 * @param directory
+	 * @return True if the journal is deleted, false otherwise.
+	 */
+	public static boolean delete(File directory) {
+		return getFile(directory).delete();
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> CLASS
+	// ---------------------------------------------------------------
+	
+	private static final class Entry {
+		
+		private final char mStatus;
+		private final LISASourceFingerprint mFingerprint;
+		
+		public Entry(char status, LISASourceFingerprint fingerprint) {
+			
+			mStatus = status;
+			mFingerprint = fingerprint;
+			
+		}
+		
+	}
+	
+}
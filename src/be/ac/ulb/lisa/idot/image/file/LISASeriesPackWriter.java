@@ -0,0 +1,770 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <LISASeriesPackWriter.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.image.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import be.ac.ulb.lisa.idot.image.data.LISAImageGray16Bit;
+
+/**
+ * Writer that appends LISA 16-Bit grayscale images to the
+ * series pack of a directory (see LISASeriesPack).
+ * 
+ * Only one writer can be opened on a pack at the same time,
+ * but a writer can be shared by several threads: each image
+ * is written in its own region of the pack, out of the lock
+ * of the writer. The index is removed when the writer is
+ * opened and written again when it is closed.
+ * 
+ * The written entries are marked as valid by sync, once their
+ * records are on the disk, such that an interrupted writer
+ * leaves a pack that can be scanned. The disk is synchronized
+ * once for all the entries written since the last call, so
+ * sync should be called after a batch of images, e.g. when
+ * the journal of the caching is saved. The writer is
+ * synchronized when it is closed.
+ * 
+ * Opening and closing a writer costs a write of the whole
+ * index, so the images should be appended in batches through
+ * the same writer. While it is open, the readers scan the
+ * entries.
+ * 
+ * A replaced image stays in the pack as dead bytes. When the
+ * dead bytes exceed the live bytes, the writer compacts the
+ * pack on close: the live entries are copied in a temporary
+ * file that replaces the pack. The mapped entries of the
+ * readers stay valid because they map the replaced file.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public class LISASeriesPackWriter {
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	
+	/**
+	 * Generator of the pack identifiers.
+	 */
+	private static final Random PACK_ID_GENERATOR = new Random();
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Pack file.
+	 */
+	private final File mFile;
+	
+	/**
+	 * Lock of the pack file.
+	 */
+	private final Semaphore mLock;
+	
+	/**
+	 * Random access to the pack file.
+	 */
+	private final RandomAccessFile mRandomAccessFile;
+	
+	/**
+	 * Channel of the pack file.
+	 */
+	private final FileChannel mChannel;
+	
+	/**
+	 * Byte order of the pack.
+	 */
+	private final ByteOrder mByteOrder;
+	
+	/**
+	 * Entries by name.
+	 */
+	private final Map<String, LISASeriesPack.Entry> mEntries =
+		new LinkedHashMap<String, LISASeriesPack.Entry>();
+	
+	/**
+	 * Entries that are written but not yet marked as valid.
+	 */
+	private final List<PendingEntry> mPendingEntries = new ArrayList<PendingEntry>();
+	
+	/**
+	 * Number of entries that are being written.
+	 */
+	private int mWritingCount = 0;
+	
+	/**
+	 * Offset at which the next entry is written.
+	 */
+	private long mPosition;
+	
+	
+	// ---------------------------------------------------------------
+	// - CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	private LISASeriesPackWriter(File file, Semaphore lock) throws IOException {
+		
+		mFile = file;
+		mLock = lock;
+		mRandomAccessFile = new RandomAccessFile(file, "rw");
+		mChannel = mRandomAccessFile.getChannel();
+		
+		ByteOrder byteOrder = LISASeriesPack.readByteOrder(mChannel);
+		
+		if (byteOrder == null) {
+			
+			// Create the pack or replace a pack that is not valid
+			byteOrder = ByteOrder.nativeOrder();
+			
+			mChannel.truncate(0);
+			writeHeader(mChannel, byteOrder);
+			
+			mPosition = LISASeriesPack.HEADER_SIZE;
+			
+		} else {
+			
+			// Remove the index and the incomplete entry if any
+			mPosition = LISASeriesPack.loadIndex(mChannel, byteOrder, mEntries);
+			mChannel.truncate(mPosition);
+			
+		}
+		
+		mByteOrder = byteOrder;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Open a writer on the pack of a directory. If another
+	 * writer is opened on this pack, wait until it is closed.
+	 * 
+	 * @param directory
+	 * @return The writer.
+	 * @throws IOException
+	 */
+	public static LISASeriesPackWriter open(File directory) throws IOException {
+		
+		File file = LISASeriesPack.getFile(directory);
+		Semaphore lock = LISASeriesPack.getLock(file);
+		
+		lock.acquireUninterruptibly();
+		
+		return create(file, lock);
+		
+	}
+	
+	/**
+	 * Open a writer on the pack of a directory if no other
+	 * writer is opened on this pack.
+	 * 
+	 * @param directory
+	 * @return The writer or null if the pack is being written.
+	 * @throws IOException
+	 */
+	public static LISASeriesPackWriter tryOpen(File directory) throws IOException {
+		
+		File file = LISASeriesPack.getFile(directory);
+		Semaphore lock = LISASeriesPack.getLock(file);
+		
+		if (!lock.tryAcquire())
+			return null;
+		
+		return create(file, lock);
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @param name Name of the cached file.
+	 * @return True if the pack contains the image of the file.
+	 */
+	public synchronized boolean contains(String name) {
+		return mEntries.containsKey(name);
+	}
+	
+	/**
+	 * @param name Name of the cached file.
+	 * @return The fingerprint of the cached file or null if
+	 * the pack does not contain the image of the file.
+	 */
+	public synchronized LISASourceFingerprint getFingerprint(String name) {
+		
+		LISASeriesPack.Entry entry = mEntries.get(name);
+		
+		return entry == null ? null : entry.mFingerprint;
+		
+	}
+	
+	/**
+	 * Append the image of a file to the pack. If the pack
+	 * already contains an image of the file, the appended
+	 * image replaces it.
+	 * 
+	 * @param name Name of the cached file.
+	 * @param fingerprint Fingerprint of the cached file.
+	 * @param image
+	 * @throws IOException
+	 */
+	public void append(String name, LISASourceFingerprint fingerprint,
+			LISAImageGray16Bit image) throws IOException {
+		append(name, fingerprint, image, null);
+	}
+	
+	/**
+	 * Append the image and the metadata of a file to the pack.
+	 * If the pack already contains an image of the file, the
+	 * appended image and metadata replace it.
+	 * 
+	 * @param name Name of the cached file.
+	 * @param fingerprint Fingerprint of the cached file.
+	 * @param image
+	 * @param metadata Metadata from its position to its limit,
+	 * e.g. the element index of the file, or null.
+	 * @throws IOException
+	 */
+	public void append(String name, LISASourceFingerprint fingerprint,
+			LISAImageGray16Bit image, ByteBuffer metadata) throws IOException {
+		
+		byte[] nameBytes = name.getBytes("UTF-8");
+		
+		if (nameBytes.length > LISASeriesPack.MAX_NAME_LENGTH)
+			throw new IOException("The file name is too long.");
+		
+		int entryHeaderSize = LISAImageGray16BitFormat.align(
+				LISASeriesPack.ENTRY_HEADER_SIZE + nameBytes.length);
+		long recordSize = LISAImageGray16BitFormat.getRecordSize(image);
+		int metadataSize = (metadata == null) ? 0 : metadata.remaining();
+		
+		// Reserve the region of the entry
+		long entryOffset;
+		
+		synchronized (this) {
+			
+			entryOffset = mPosition;
+			mPosition += entryHeaderSize + recordSize + metadataSize;
+			mWritingCount++;
+			
+		}
+		
+		long recordOffset = entryOffset + entryHeaderSize;
+		long metadataOffset = recordOffset + recordSize;
+		
+		try {
+			
+			// Entry header not yet marked as valid, name and padding
+			ByteBuffer entry = ByteBuffer.allocate(entryHeaderSize);
+			entry.order(mByteOrder);
+			
+			entry.putInt(0);
+			entry.putInt(nameBytes.length);
+			entry.putLong(0);
+			entry.putInt(0);
+			entry.putInt(0);
+			fingerprint.encode(entry);
+			entry.put(nameBytes);
+			entry.clear();
+			
+			write(entry, entryOffset);
+			
+			// Record
+			if (LISAImageGray16BitFormat.writeRecord(image, mChannel, recordOffset)
+					!= recordSize)
+				throw new IOException("The LISA image record size changed.");
+			
+			// Metadata
+			if (metadata != null)
+				write(metadata.duplicate(), metadataOffset);
+			
+			// Entry header marked as valid, written by sync
+			ByteBuffer entryHeader = ByteBuffer.allocate(LISASeriesPack.ENTRY_HEADER_SIZE);
+			entryHeader.order(mByteOrder);
+			
+			entryHeader.putInt(LISASeriesPack.ENTRY_MARK);
+			entryHeader.putInt(nameBytes.length);
+			entryHeader.putLong(recordSize);
+			entryHeader.putInt(metadataSize);
+			entryHeader.putInt(0);
+			fingerprint.encode(entryHeader);
+			entryHeader.flip();
+			
+			synchronized (this) {
+				
+				mPendingEntries.add(new PendingEntry(name, entryOffset, entryHeader,
+						new LISASeriesPack.Entry(recordOffset, fingerprint,
+								metadataOffset, metadataSize)));
+				
+			}
+			
+		} finally {
+			
+			// A region that is not written stays a dead region
+			// that is not marked
+			synchronized (this) {
+				
+				mWritingCount--;
+				notifyAll();
+				
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Synchronize the written entries with the disk and mark
+	 * them as valid.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		
+		if (mPendingEntries.isEmpty())
+			return;
+		
+		// The records and the metadata must be on the disk before
+		// the marks, else a crash could leave a marked entry whose
+		// record is truncated
+		mChannel.force(false);
+		
+		// The last entry of a file replaces the previous ones
+		Collections.sort(mPendingEntries, new Comparator<PendingEntry>() {
+			
+			public int compare(PendingEntry entry0, PendingEntry entry1) {
+				
+				return (entry0.mEntryOffset < entry1.mEntryOffset) ? -1
+						: ((entry0.mEntryOffset == entry1.mEntryOffset) ? 0 : 1);
+				
+			}
+			
+		});
+		
+		for (PendingEntry pendingEntry : mPendingEntries) {
+			
+			write(pendingEntry.mEntryHeader.duplicate(), pendingEntry.mEntryOffset);
+			
+			mEntries.remove(pendingEntry.mName);
+			mEntries.put(pendingEntry.mName, pendingEntry.mEntry);
+			
+		}
+		
+		mPendingEntries.clear();
+		
+	}
+	
+	/**
+	 * Write the index and close the pack. If the dead bytes
+	 * of the replaced images exceed the live bytes, the pack
+	 * is compacted.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		
+		try {
+			
+			// Wait for the entries that are being written
+			boolean isInterrupted = false;
+			
+			while (mWritingCount > 0) {
+				
+				try {
+					
+					wait();
+					
+				} catch (InterruptedException ex) {
+					
+					isInterrupted = true;
+					
+				}
+				
+			}
+			
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+			
+			sync();
+			
+			boolean isCompacted = false;
+			long liveSize = getLiveSize();
+			
+			if (mPosition - LISASeriesPack.HEADER_SIZE - liveSize > liveSize) {
+				
+				try {
+					
+					compact();
+					isCompacted = true;
+					
+				} catch (IOException ex) {
+					// Keep the dead bytes
+				}
+				
+			}
+			
+			if (!isCompacted)
+				writeIndex(mChannel, mEntries, mPosition);
+			
+		} finally {
+			
+			try {
+				
+				mRandomAccessFile.close();
+				
+			} finally {
+				
+				mLock.release();
+				
+			}
+			
+		}
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Write the header of a pack with a new identifier.
+	 * 
+	 * @param channel
+	 * @param byteOrder
+	 * @throws IOException
+	 */
+	private static void writeHeader(FileChannel channel, ByteOrder byteOrder)
+			throws IOException {
+		
+		ByteBuffer header = ByteBuffer.allocate(LISASeriesPack.HEADER_SIZE);
+		header.order(byteOrder);
+		
+		for (int i = 0; i < LISASeriesPack.PACK_PREFIX.length(); i++)
+			header.put((byte) LISASeriesPack.PACK_PREFIX.charAt(i));
+		
+		header.putInt(LISASeriesPack.BYTE_ORDER_MARK);
+		header.putLong(PACK_ID_GENERATOR.nextLong());
+		header.flip();
+		
+		write(channel, header, 0);
+		
+	}
+	
+	/**
+	 * Write a buffer at the given position of a channel.
+	 * 
+	 * @param channel
+	 * @param buffer
+	 * @param position
+	 * @throws IOException
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+		
+	}
+	
+	/**
+	 * @param name Name of the cached file.
+	 * @param entry
+	 * @return Offset of the entry header in the pack.
+	 * @throws IOException
+	 */
+	private static long getEntryOffset(String name, LISASeriesPack.Entry entry)
+			throws IOException {
+		
+		return entry.mRecordOffset - LISAImageGray16BitFormat.align(
+				LISASeriesPack.ENTRY_HEADER_SIZE + name.getBytes("UTF-8").length);
+		
+	}
+	
+	private static LISASeriesPackWriter create(File file, Semaphore lock)
+			throws IOException {
+		
+		try {
+			
+			return new LISASeriesPackWriter(file, lock);
+			
+		} catch (IOException ex) {
+			
+			lock.release();
+			throw ex;
+			
+		}
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * @return Size in bytes of the entries that are in the index.
+	 * @throws IOException
+	 */
+	private long getLiveSize() throws IOException {
+		
+		long size = 0;
+		
+		for (Map.Entry<String, LISASeriesPack.Entry> entry : mEntries.entrySet()) {
+			
+			LISASeriesPack.Entry value = entry.getValue();
+			
+			size += value.mMetadataOffset + value.mMetadataSize
+				- getEntryOffset(entry.getKey(), value);
+			
+		}
+		
+		return size;
+		
+	}
+	
+	/**
+	 * Copy the header and the entries that are in the index in
+	 * a temporary file, write the index and replace the pack
+	 * with the temporary file.
+	 * 
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		
+		File temporaryFile = new File(mFile.getPath() + TEMPORARY_SUFFIX);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(temporaryFile, "rw");
+		boolean isWritten = false;
+		
+		try {
+			
+			FileChannel channel = randomAccessFile.getChannel();
+			channel.truncate(0);
+			
+			// The new pack file has a new identifier
+			writeHeader(channel, mByteOrder);
+			
+			// The entries are moved, their content is unchanged
+			Map<String, LISASeriesPack.Entry> entries =
+				new LinkedHashMap<String, LISASeriesPack.Entry>();
+			long position = LISASeriesPack.HEADER_SIZE;
+			
+			for (Map.Entry<String, LISASeriesPack.Entry> entry : mEntries.entrySet()) {
+				
+				LISASeriesPack.Entry value = entry.getValue();
+				
+				long entryOffset = getEntryOffset(entry.getKey(), value);
+				long entrySize = value.mMetadataOffset + value.mMetadataSize - entryOffset;
+				long shift = position - entryOffset;
+				
+				transfer(entryOffset, entrySize, channel, position);
+				
+				entries.put(entry.getKey(), new LISASeriesPack.Entry(
+						value.mRecordOffset + shift, value.mFingerprint,
+						value.mMetadataOffset + shift, value.mMetadataSize));
+				position += entrySize;
+				
+			}
+			
+			writeIndex(channel, entries, position);
+			
+			// The pack must be on the disk before it is replaced
+			channel.force(false);
+			isWritten = true;
+			
+		} finally {
+			
+			randomAccessFile.close();
+			
+			if (!isWritten)
+				temporaryFile.delete();
+			
+		}
+		
+		if (!temporaryFile.renameTo(mFile)) {
+			
+			temporaryFile.delete();
+			throw new IOException("Cannot replace the series pack.");
+			
+		}
+		
+	}
+	
+	/**
+	 * Copy bytes of the pack in another channel.
+	 * 
+	 * @param position Offset of the bytes in the pack.
+	 * @param count Number of bytes.
+	 * @param channel
+	 * @param channelPosition Offset of the bytes in the channel.
+	 * @throws IOException
+	 */
+	private void transfer(long position, long count, FileChannel channel,
+			long channelPosition) throws IOException {
+		
+		channel.position(channelPosition);
+		
+		while (count > 0) {
+			
+			long transferred = mChannel.transferTo(position, count, channel);
+			
+			if (transferred <= 0)
+				throw new IOException("Cannot copy the series pack.");
+			
+			position += transferred;
+			count -= transferred;
+			
+		}
+		
+	}
+	
+	/**
+	 * Write the index and the footer after the last entry.
+	 * 
+	 * @param channel
+	 * @param entries
+	 * @param position End offset of the last entry.
+	 * @throws IOException
+	 */
+	private void writeIndex(FileChannel channel, Map<String, LISASeriesPack.Entry> entries,
+			long position) throws IOException {
+		
+		// Encode the names
+		byte[][] names = new byte[entries.size()][];
+		int indexLength = 8;
+		int i = 0;
+		
+		for (String name : entries.keySet()) {
+			
+			names[i] = name.getBytes("UTF-8");
+			indexLength += 4 + names[i].length + 8 + LISASourceFingerprint.ENCODED_SIZE
+				+ 12;
+			i++;
+			
+		}
+		
+		ByteBuffer index = ByteBuffer.allocate(indexLength + LISASeriesPack.FOOTER_SIZE);
+		index.order(mByteOrder);
+		
+		index.putInt(LISASeriesPack.INDEX_MARK);
+		index.putInt(names.length);
+		
+		i = 0;
+		
+		for (LISASeriesPack.Entry entry : entries.values()) {
+			
+			index.putInt(names[i].length);
+			index.put(names[i]);
+			index.putLong(entry.mRecordOffset);
+			entry.mFingerprint.encode(index);
+			index.putLong(entry.mMetadataOffset);
+			index.putInt(entry.mMetadataSize);
+			i++;
+			
+		}
+		
+		// Footer
+		index.putLong(position);
+		index.putInt(indexLength);
+		index.putInt(LISASeriesPack.FOOTER_MARK);
+		index.flip();
+		
+		channel.truncate(position);
+		write(channel, index, position);
+		
+	}
+	
+	/**
+	 * Write a buffer at the given position.
+	 * 
+	 * @param buffer
+	 * @param position
+	 * @throws IOException
+	 */
+	private void write(ByteBuffer buffer, long position) throws IOException {
+		write(mChannel, buffer, position);
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> CLASS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Entry that is written but not yet marked as valid.
+	 */
+	private static final class PendingEntry {
+		
+		private final String mName;
+		private final long mEntryOffset;
+		private final ByteBuffer mEntryHeader;
+		private final LISASeriesPack.Entry mEntry;
+		
+		public PendingEntry(String name, long entryOffset, ByteBuffer entryHeader,
+				LISASeriesPack.Entry entry) {
+			
+			mName = name;
+			mEntryOffset = entryOffset;
+			mEntryHeader = entryHeader;
+			mEntry = entry;
+			
+		}
+		
+	}
+	
+}
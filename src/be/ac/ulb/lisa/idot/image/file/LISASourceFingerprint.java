@@ -0,0 +1,325 @@
+/*
+ *
+ * Copyright (C) 2011 Pierre Malarme
+ *
+ * Authors: Pierre Malarme <pmalarme at ulb.ac.be>
+ *
+ * Institution: Laboratory of Image Synthesis and Analysis (LISA)
+ *              Faculty of Applied Science
+ *              Universite Libre de Bruxelles (U.L.B.)
+ *
+ * Website: http://lisa.ulb.ac.be
+ *
+ * This file <LISASourceFingerprint.java> is part of Droid Dicom Viewer.
+ *
+ * Droid Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Droid Dicom Viewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Droid Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 17-02-2011
+ *
+ * Version: 1.0
+ *
+ */
+
+package be.ac.ulb.lisa.idot.image.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Fingerprint of the source file of a cached image.
+ * 
+ * The fingerprint is made of the size and the last modification
+ * time of the file and of a CRC32 of its first, middle and last
+ * SAMPLE_SIZE bytes. The first bytes contain the DICOM meta
+ * information and the last bytes belong to the PixelData that
+ * ends the file. Only 3 * SAMPLE_SIZE bytes are read, such that
+ * a cached image can be validated on each lookup.
+ * 
+ * The computed fingerprints are kept for the session: the
+ * CRC32 of a file is computed again only if its size or its
+ * last modification time changed.
+ * 
+ * @author Pierre Malarme
+ * @version 1.0
+ *
+ */
+public final class LISASourceFingerprint {
+	
+	// ---------------------------------------------------------------
+	// + <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Size of an encoded fingerprint in bytes.
+	 */
+	public static final int ENCODED_SIZE = 24;
+	
+	
+	// ---------------------------------------------------------------
+	// - <static> VARIABLES
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Number of bytes of each sample of the file.
+	 */
+	private static final int SAMPLE_SIZE = 4096;
+	
+	/**
+	 * Maximum number of fingerprints kept for the session.
+	 */
+	private static final int CACHE_SIZE = 4096;
+	
+	/**
+	 * Fingerprints computed in the session by absolute path,
+	 * the least recently used first.
+	 */
+	private static final Map<String, LISASourceFingerprint> CACHE =
+		new LinkedHashMap<String, LISASourceFingerprint>(16, 0.75f, true) {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, LISASourceFingerprint> eldest) {
+			return size() > CACHE_SIZE;
+		}
+		
+	};
+	
+	
+	// ---------------------------------------------------------------
+	// - VARIABLES
+	// ---------------------------------------------------------------
+	
+	private final long mSize;
+	
+	private final long mLastModified;
+	
+	private final int mHash;
+	
+	
+	// ---------------------------------------------------------------
+	// + CONSTRUCTOR
+	// ---------------------------------------------------------------
+	
+	public LISASourceFingerprint(long size, long lastModified, int hash) {
+		
+		mSize = size;
+		mLastModified = lastModified;
+		mHash = hash;
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + <static> FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Compute the fingerprint of a file.
+	 * 
+	 * @param file
+	 * @return The fingerprint of the file.
+	 * @throws IOException
+	 */
+	public static LISASourceFingerprint compute(File file) throws IOException {
+		
+		long lastModified = file.lastModified();
+		
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		
+		try {
+			
+			long size = randomAccessFile.length();
+			
+			CRC32 crc = new CRC32();
+			
+			// If the file is small, hash it entirely
+			if (size <= 3 * SAMPLE_SIZE) {
+				
+				byte[] sample = new byte[(int) size];
+				randomAccessFile.readFully(sample);
+				crc.update(sample);
+				
+			} else {
+				
+				byte[] sample = new byte[SAMPLE_SIZE];
+				long[] offsets = { 0, (size - SAMPLE_SIZE) / 2, size - SAMPLE_SIZE };
+				
+				for (int i = 0; i < offsets.length; i++) {
+					
+					randomAccessFile.seek(offsets[i]);
+					randomAccessFile.readFully(sample);
+					crc.update(sample);
+					
+				}
+				
+			}
+			
+			return new LISASourceFingerprint(size, lastModified, (int) crc.getValue());
+			
+		} finally {
+			
+			randomAccessFile.close();
+			
+		}
+		
+	}
+	
+	/**
+	 * Get the fingerprint of a file. The fingerprint computed
+	 * in the session is returned if the size and the last
+	 * modification time of the file did not change.
+	 * 
+	 * @param file
+	 * @return The fingerprint of the file.
+	 * @throws IOException
+	 */
+	public static LISASourceFingerprint get(File file) throws IOException {
+		
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		
+		synchronized (CACHE) {
+			
+			LISASourceFingerprint fingerprint = CACHE.get(path);
+			
+			if (fingerprint != null && fingerprint.mSize == size
+					&& fingerprint.mLastModified == lastModified)
+				return fingerprint;
+			
+		}
+		
+		LISASourceFingerprint fingerprint = compute(file);
+		
+		synchronized (CACHE) {
+			
+			CACHE.put(path, fingerprint);
+			
+		}
+		
+		return fingerprint;
+		
+	}
+	
+	/**
+	 * Read an encoded fingerprint at the position of the buffer.
+	 * 
+	 * @param buffer
+	 * @return The fingerprint.
+	 */
+	public static LISASourceFingerprint decode(ByteBuffer buffer) {
+		
+		long size = buffer.getLong();
+		long lastModified = buffer.getLong();
+		int hash = buffer.getInt();
+		
+		// Reserved
+		buffer.getInt();
+		
+		return new LISASourceFingerprint(size, lastModified, hash);
+		
+	}
+	
+	
+	// ---------------------------------------------------------------
+	// + FUNCTIONS
+	// ---------------------------------------------------------------
+	
+	/**
+	 * Write the fingerprint at the position of the buffer.
+	 * 
+	 * @param buffer
+	 */
+	public void encode(ByteBuffer buffer) {
+		
+		buffer.putLong(mSize);
+		buffer.putLong(mLastModified);
+		buffer.putInt(mHash);
+		
+		// Reserved
+		buffer.putInt(0);
+		
+	}
+	
+	/**
+	 * Check if a file has this fingerprint. The CRC32 of the
+	 * file is only computed if its size and its last
+	 * modification time match.
+	 * 
+	 * @param file
+	 * @return True if the file has this fingerprint.
+	 * @throws IOException
+	 */
+	public boolean matches(File file) throws IOException {
+		
+		if (file.length() != mSize || file.lastModified() != mLastModified)
+			return false;
+		
+		return equals(get(file));
+		
+	}
+	
+	/**
+	 * @return The size of the file.
+	 */
+	public long getSize() {
+		return mSize;
+	}
+	
+	/**
+	 * @return The last modification time of the file.
+	 */
+	public long getLastModified() {
+		return mLastModified;
+	}
+	
+	/**
+	 * @return The CRC32 of the samples of the file.
+	 */
+	public int getHash() {
+		return mHash;
+	}
+	
+	@Override
+	public boolean equals(Object object) {
+		
+		if (!(object instanceof LISASourceFingerprint))
+			return false;
+		
+		LISASourceFingerprint fingerprint = (LISASourceFingerprint) object;
+		
+		return mSize == fingerprint.mSize
+			&& mLastModified == fingerprint.mLastModified
+			&& mHash == fingerprint.mHash;
+		
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (mSize ^ (mSize >>> 32) ^ mLastModified ^ (mLastModified >>> 32)) ^ mHash;
+	}
+	
+	@Override
+	public String toString() {
+		return mSize + "\t" + mLastModified + "\t" + mHash;
+	}
+	
+}